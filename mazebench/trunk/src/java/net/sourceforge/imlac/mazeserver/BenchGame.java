@@ -0,0 +1,220 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * A full game of players on loopback connections, for the benchmarks.  The
+ * server is created but not started, so the benchmark thread plays the part of
+ * the event loop thread.  The far end of each connection is drained by a
+ * daemon thread, so that writes to the players' connections do not block.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+public class BenchGame {
+
+	private final Server server;
+	private final Game game;
+	private final Player[] players;
+	private final SocketChannel[] peers;
+	private final Selector drainSelector;
+	private final GatheringByteChannel discard = new DiscardChannel();
+	private volatile boolean running = true;
+
+	/**
+	 * Create a game with a given number of players, each of which has sent its
+	 * name and been assigned an Imlac id.
+	 *
+	 * @param playerCount	the number of players, at most <code>Game.MAX_PLAYERS</code>
+	 * @throws IOException	if the connections cannot be made
+	 */
+	public BenchGame(int playerCount) throws IOException {
+		super();
+		server = new Server(new InetSocketAddress("localhost", 0));
+		game = server.getEventLoops()[0].getRouter().selectGame();
+		players = new Player[playerCount];
+		peers = new SocketChannel[playerCount];
+		drainSelector = Selector.open();
+		ServerSocketChannel listen = ServerSocketChannel.open();
+		listen.socket().bind(new InetSocketAddress("localhost", 0));
+		InetSocketAddress addr = new InetSocketAddress("localhost", listen.socket().getLocalPort());
+		for (int i = 0; i < playerCount; ++i) {
+			SocketChannel chan = SocketChannel.open(addr);
+			peers[i] = listen.accept();
+			peers[i].configureBlocking(false);
+			peers[i].register(drainSelector, SelectionKey.OP_READ);
+			players[i] = new Player(game, chan);
+			feed(players[i], new byte[] { (byte) ('A' + i), 'B', 'E', 'N', 'C', 'H', 012 });
+		}
+		listen.close();
+		drain();
+		Thread drainer = new Thread("Benchmark drain") {
+			public void run() {
+				drainPeers();
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Return a player of the game.
+	 *
+	 * @param index	the index of the player, in the order of joining
+	 * @return		the player
+	 */
+	public Player getPlayer(int index) {
+		return players[index];
+	}
+
+	/**
+	 * Return the game.
+	 *
+	 * @return	the game
+	 */
+	public Game getGame() {
+		return game;
+	}
+
+	/**
+	 * Move a player to a cell of the maze, by passing it a location message.
+	 *
+	 * @param player	the player
+	 * @param x			the X coordinate
+	 * @param y			the Y coordinate
+	 */
+	public static void place(Player player, int x, int y) {
+		feed(player, new byte[] { 2, (byte) player.getId(), 0101, (byte) (0100 | x),
+			(byte) (0100 | y) });
+	}
+
+	/**
+	 * Pass input to a player's decoder, as if it had been read from the
+	 * connection.
+	 *
+	 * @param player	the player
+	 * @param data		the input
+	 */
+	public static void feed(Player player, byte[] data) {
+		feed(player, data, 0, data.length);
+	}
+
+	/**
+	 * Pass part of an array to a player's decoder, as if it had been read from
+	 * the connection.
+	 *
+	 * @param player	the player
+	 * @param data		the input
+	 * @param offset	the offset of the input in the array
+	 * @param length	the length of the input
+	 */
+	public static void feed(Player player, byte[] data, int offset, int length) {
+		player.inBuf.put(data, offset, length);
+		player.processInput();
+	}
+
+	/**
+	 * Write the output queued for every player to a channel which discards it, as
+	 * the write pass of the event loop would, but without the system calls.
+	 */
+	public void drain() {
+		try {
+			for (Player player : players) {
+				player.getOutputQueue().write(discard);
+			}
+		} catch (IOException iox) {
+			throw new RuntimeException(iox);
+		}
+	}
+
+	/**
+	 * Close the connections.
+	 */
+	public void close() {
+		running = false;
+		drainSelector.wakeup();
+		for (Player player : players) {
+			player.close();
+		}
+	}
+
+	private void drainPeers() {
+		ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+		try {
+			while (running) {
+				drainSelector.select();
+				Iterator<SelectionKey> iter = drainSelector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					buf.clear();
+					if (((SocketChannel) key.channel()).read(buf) < 0) {
+						key.cancel();
+					}
+				}
+			}
+			for (SocketChannel peer : peers) {
+				peer.close();
+			}
+			drainSelector.close();
+		} catch (IOException iox) {
+			// The benchmark is over
+		}
+	}
+
+	/**
+	 * A channel which takes everything written to it.
+	 */
+	static class DiscardChannel implements GatheringByteChannel {
+
+		public int write(ByteBuffer src) {
+			int len = src.remaining();
+			src.position(src.limit());
+			return len;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long len = 0;
+			for (int i = offset; i < offset + length; ++i) {
+				len += write(srcs[i]);
+			}
+			return len;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Allocation-rate benchmark for broadcast fan-out.  It compares the original
+ * fan-out, in which each location message is extracted into a new
+ * <code>byte[]</code> and queued on a <code>LinkedList</code> per recipient,
+ * with the pooled path, in which the message is encoded once into a
+ * <code>MessageBuffer</code> and shared by the <code>OutputQueue</code> of
+ * each recipient.
+ * <p>
+ * Both paths decode location messages from an input buffer and fan each one
+ * out to seven recipients.  The original path drains each recipient queue into
+ * a 256-byte output buffer, as <code>Player.write()</code> used to do.  The
+ * pooled path drains each <code>OutputQueue</code> with a gathering write to a
+ * channel that discards the data.  No sockets are involved.
+ * <p>
+ * Usage: <code>BroadcastBenchmark [messages]</code>
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+public class BroadcastBenchmark {
+
+	private static final int RECIPIENTS = 7;
+
+	private final ByteBuffer inBuf;
+	private final ByteBuffer[] outBuf;
+	private final ArrayList<LinkedList<byte[]>> legacyQueue;
+	private final OutputQueue[] pooledQueue;
+	private final MessagePool pool;
+	private final DiscardChannel sink;
+	private long checksum;
+
+	public BroadcastBenchmark() {
+		super();
+		inBuf = ByteBuffer.allocateDirect(256);
+		outBuf = new ByteBuffer[RECIPIENTS];
+		legacyQueue = new ArrayList<LinkedList<byte[]>>(RECIPIENTS);
+		pooledQueue = new OutputQueue[RECIPIENTS];
+		for (int i = 0; i < RECIPIENTS; ++i) {
+			outBuf[i] = ByteBuffer.allocateDirect(256);
+			legacyQueue.add(new LinkedList<byte[]>());
+			pooledQueue[i] = new OutputQueue();
+		}
+		pool = new MessagePool();
+		sink = new DiscardChannel();
+		checksum = 0;
+	}
+
+	/**
+	 * Fill the input buffer with location message bodies, as they would appear
+	 * after the type byte has been read.
+	 */
+	private void fillInput(int n) {
+		inBuf.clear();
+		inBuf.put((byte) 1);
+		inBuf.put((byte) (0100 | (n & 3)));
+		inBuf.put((byte) (0100 | (n & 017)));
+		inBuf.put((byte) (0100 | ((n >> 4) & 037)));
+		inBuf.flip();
+	}
+
+	private void legacyMessage(int n) {
+		fillInput(n);
+		byte[] msg = new byte[5];
+		msg[0] = 2;
+		msg[1] = inBuf.get();
+		msg[2] = inBuf.get();
+		msg[3] = inBuf.get();
+		msg[4] = inBuf.get();
+		for (int i = 0; i < RECIPIENTS; ++i) {
+			legacyQueue.get(i).add(msg);
+		}
+		for (int i = 0; i < RECIPIENTS; ++i) {
+			ByteBuffer out = outBuf[i];
+			LinkedList<byte[]> queue = legacyQueue.get(i);
+			while (!queue.isEmpty()) {
+				byte[] m = queue.removeFirst();
+				out.put(m);
+			}
+			checksum += out.position();
+			out.clear();
+		}
+	}
+
+	private void pooledMessage(int n) {
+		fillInput(n);
+		MessageBuffer msg = pool.encode((byte) 2, inBuf, 4);
+		for (int i = 0; i < RECIPIENTS; ++i) {
+			pooledQueue[i].add(msg);
+		}
+		msg.release();
+		for (int i = 0; i < RECIPIENTS; ++i) {
+			try {
+				checksum += pooledQueue[i].write(sink);
+			} catch (IOException iox) {
+				throw new RuntimeException(iox);
+			}
+		}
+	}
+
+	private void run(String label, boolean pooled, int count) {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		long bytes0 = allocatedBytes(mx, tid);
+		long t0 = System.nanoTime();
+		for (int n = 0; n < count; ++n) {
+			if (pooled) {
+				pooledMessage(n);
+			} else {
+				legacyMessage(n);
+			}
+		}
+		long t1 = System.nanoTime();
+		long bytes1 = allocatedBytes(mx, tid);
+		double secs = (t1 - t0) / 1e9;
+		System.out.println(label
+				+ ": " + Math.round(count / secs) + " messages/sec, "
+				+ ((bytes0 < 0) ? "n/a" : String.valueOf((double) (bytes1 - bytes0) / count))
+				+ " bytes allocated/message");
+	}
+
+	/**
+	 * A channel which accepts and discards everything written to it.
+	 */
+	private static class DiscardChannel implements GatheringByteChannel {
+
+		public int write(ByteBuffer src) {
+			int len = src.remaining();
+			src.position(src.limit());
+			return len;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long len = 0;
+			for (int i = offset; i < offset + length; ++i) {
+				len += write(srcs[i]);
+			}
+			return len;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+	private static long allocatedBytes(ThreadMXBean mx, long tid) {
+		if (mx instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(tid);
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) {
+		int count = 5000000;
+		if (args.length > 0) {
+			count = Integer.parseInt(args[0]);
+		}
+		BroadcastBenchmark bench = new BroadcastBenchmark();
+		// Warm up both paths so that the JIT has compiled them
+		for (int pass = 0; pass < 3; ++pass) {
+			bench.run("warmup legacy", false, count / 10);
+			bench.run("warmup pooled", true, count / 10);
+		}
+		bench.run("legacy", false, count);
+		bench.run("pooled", true, count);
+		System.out.println("pool chunks " + bench.pool.getChunkCount()
+				+ ", in use " + bench.pool.getInUseCount()
+				+ ", checksum " + bench.checksum);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of <code>Player.read()</code> decoding.  Each operation passes a
+ * recorded input stream to the decoder of one player in an eight-player game,
+ * in reads of random sizes which split messages, and relays the messages to the
+ * other seven players.  After each read the output queues are written to a
+ * channel which discards them, as the event loop's write pass would.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+	/** The largest read, in bytes */
+	@Param({ "1", "16", "256" })
+	public int maxRead;
+
+	private BenchGame bench;
+	private Player player;
+	private byte[] data;
+	private int[] reads;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		bench = new BenchGame(Game.MAX_PLAYERS);
+		player = bench.getPlayer(0);
+		RecordedStream stream = new RecordedStream(player.getId(),
+			bench.getPlayer(1).getId(), 4096, maxRead, 1979);
+		data = stream.getData();
+		reads = stream.getReads();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		bench.close();
+	}
+
+	/**
+	 * Decode and relay one recorded stream.
+	 */
+	@Benchmark
+	public void decodeStream() {
+		int pos = 0;
+		for (int n : reads) {
+			BenchGame.feed(player, data, pos, n);
+			bench.drain();
+			pos += n;
+		}
+	}
+}
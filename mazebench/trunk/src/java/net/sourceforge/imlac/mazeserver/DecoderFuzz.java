@@ -0,0 +1,236 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class checks a <code>ProtocolDecoder</code> against random streams.
+ * Each stream is a command line followed by random messages of every type, and
+ * the lines and messages it should decode to are known from how it was made.
+ * The stream is then decoded whole, split at every byte boundary, fed one byte
+ * at a time, cut into random pieces, and decoded with a sink which stops at
+ * random and is resumed.  Every way must give exactly the expected lines and
+ * messages.
+ * <p>
+ * Usage: <code>DecoderFuzz [-seed <i>n</i>] [-streams <i>n</i>]</code>
+ * <p>
+ * The seed is fixed unless one is given, so that every run checks the same
+ * streams and a failure can be repeated.  "ant check" runs it, and fails the
+ * build if any stream fails.  The exit status is 1 if any stream fails.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see ProtocolDecoder
+ */
+public class DecoderFuzz {
+
+	/**
+	 * The seed used when none is given.
+	 */
+	public static final long DEFAULT_SEED = 1979;
+
+	private final Random random;
+	private long streams;
+	private long decodes;
+	private long failures;
+
+	/**
+	 * Create a checker.
+	 *
+	 * @param seed	the seed of the random streams
+	 */
+	public DecoderFuzz(long seed) {
+		super();
+		random = new Random(seed);
+	}
+
+	/**
+	 * Check one random stream in every way.
+	 */
+	public void checkStream() {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		makeStream(stream, expected);
+		byte[] input = stream.toByteArray();
+		byte[] events = expected.toByteArray();
+		++streams;
+		
+		check("whole", input, events, new int[] { input.length }, 0);
+		for (int i = 0; i <= input.length; ++i) {
+			check("split at " + i, input, events, new int[] { i, input.length - i }, 0);
+		}
+		int[] bytes = new int[input.length];
+		Arrays.fill(bytes, 1);
+		check("bytewise", input, events, bytes, 0);
+		for (int n = 0; n < 8; ++n) {
+			check("random pieces", input, events, randomPieces(input.length), 0);
+			check("random stops", input, events, randomPieces(input.length), 3);
+		}
+	}
+
+	private void makeStream(ByteArrayOutputStream stream, ByteArrayOutputStream expected) {
+		int lineLen = random.nextInt(8) == 0
+			? random.nextInt(2 * ProtocolDecoder.LINE_SIZE) : random.nextInt(24);
+		int kept = Math.min(lineLen, ProtocolDecoder.LINE_SIZE);
+		expected.write('L');
+		expected.write(kept >> 8);
+		expected.write(kept);
+		for (int i = 0; i < lineLen; ++i) {
+			int b = 040 + random.nextInt(0137);
+			if (random.nextInt(16) == 0) {
+				b |= 0200;
+			}
+			stream.write(b);
+			if (i < kept) {
+				expected.write(b & 0177);
+			}
+		}
+		stream.write(random.nextBoolean() ? 012 : 0212);
+		
+		int count = random.nextInt(64);
+		for (int n = 0; n < count; ++n) {
+			int type = random.nextInt(8) < 5 ? 1 + random.nextInt(4) : random.nextInt(0200);
+			if (random.nextBoolean()) {
+				type |= 0200;
+			}
+			int len = ProtocolDecoder.lengthOf(type);
+			expected.write('M');
+			expected.write(len);
+			expected.write(type & 0177);
+			stream.write(type);
+			for (int i = 1; i < len; ++i) {
+				int b = random.nextInt(0400);
+				stream.write(b);
+				expected.write(b);
+			}
+		}
+	}
+
+	private int[] randomPieces(int length) {
+		int[] pieces = new int[2 * length + 1];
+		int count = 0;
+		int left = length;
+		while (left > 0) {
+			int n = random.nextBoolean() ? random.nextInt(4) : random.nextInt(left + 1);
+			n = Math.min(n, left);
+			if ((n == 0) && (count >= length)) {
+				n = 1;
+			}
+			pieces[count++] = n;
+			left -= n;
+		}
+		return Arrays.copyOf(pieces, count);
+	}
+
+	/**
+	 * Decode a stream in pieces and compare what comes out with what should.
+	 *
+	 * @param how		a description of the pieces, for a failure report
+	 * @param input		the stream
+	 * @param expected	the lines and messages which should be decoded
+	 * @param pieces	the lengths of the pieces, which add up to the stream
+	 * @param stops		one in how many events the sink stops at, or 0 never to stop
+	 */
+	private void check(String how, byte[] input, byte[] expected, int[] pieces, int stops) {
+		++decodes;
+		ProtocolDecoder decoder = new ProtocolDecoder();
+		RecordingSink sink = new RecordingSink(stops);
+		int offset = 0;
+		for (int i = 0; i < pieces.length; ++i) {
+			ByteBuffer buf = ByteBuffer.wrap(input, offset, pieces[i]);
+			while (!decoder.decode(buf, sink)) {
+				// The sink stopped; resume from where it did
+			}
+			if (buf.hasRemaining()) {
+				fail(how, "bytes left unconsumed", input);
+				return;
+			}
+			offset += pieces[i];
+		}
+		if (!Arrays.equals(sink.events.toByteArray(), expected)) {
+			fail(how, "decoded events differ", input);
+		}
+	}
+
+	private void fail(String how, String what, byte[] input) {
+		if (failures++ < 10) {
+			System.out.println("FAIL (" + how + "): " + what + " for a stream of "
+				+ input.length + " bytes");
+		}
+	}
+
+	/**
+	 * A sink which records what it is given in the form in which the expected
+	 * events are made.
+	 */
+	private class RecordingSink implements ProtocolDecoder.Sink {
+		final ByteArrayOutputStream events = new ByteArrayOutputStream();
+		private final int stops;
+
+		RecordingSink(int stops) {
+			super();
+			this.stops = stops;
+		}
+
+		public boolean commandLine(byte[] line, int len) {
+			events.write('L');
+			events.write(len >> 8);
+			events.write(len);
+			events.write(line, 0, len);
+			return carryOn();
+		}
+
+		public boolean message(byte[] message, int len) {
+			events.write('M');
+			events.write(len);
+			events.write(message, 0, len);
+			return carryOn();
+		}
+
+		private boolean carryOn() {
+			return (stops == 0) || (random.nextInt(stops) != 0);
+		}
+	}
+
+	public static void main(String[] args) {
+		long seed = DEFAULT_SEED;
+		int count = 1000;
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-seed") && (i + 1 < args.length)) {
+				seed = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-streams") && (i + 1 < args.length)) {
+				count = Integer.parseInt(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Usage: DecoderFuzz [-seed n] [-streams n]");
+			}
+		}
+		DecoderFuzz fuzz = new DecoderFuzz(seed);
+		for (int n = 0; n < count; ++n) {
+			fuzz.checkStream();
+		}
+		System.out.println("Seed " + seed + ": " + fuzz.streams + " streams, "
+			+ fuzz.decodes + " decodes, " + fuzz.failures + " failures");
+		if (fuzz.failures > 0) {
+			System.exit(1);
+		}
+	}
+}
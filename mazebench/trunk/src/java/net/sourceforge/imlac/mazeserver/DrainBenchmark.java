@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of <code>Player.write()</code>.  Each operation queues a batch of
+ * messages for one player and drains the queue to its loopback connection,
+ * whose far end is read by another thread.  The messages are a mix of relative
+ * moves and location messages for different players, so that none of them is
+ * coalesced.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrainBenchmark {
+
+	/** The number of messages queued before each write */
+	@Param({ "1", "16", "64" })
+	public int batch;
+
+	private BenchGame bench;
+	private Player player;
+	private MessageBuffer[] messages;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		bench = new BenchGame(2);
+		player = bench.getPlayer(0);
+		MessagePool pool = bench.getGame().getMessagePool();
+		messages = new MessageBuffer[batch];
+		for (int i = 0; i < batch; ++i) {
+			int id = 2 + (i % (Game.MAX_PLAYERS - 1));
+			if ((i & 1) == 0) {
+				messages[i] = pool.encode((byte) (0150 | (id - 1)));
+			} else {
+				messages[i] = pool.encode(new byte[] { 2, (byte) id, 0100, 0101, 0101 });
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for (MessageBuffer msg : messages) {
+			msg.release();
+		}
+		bench.close();
+	}
+
+	/**
+	 * Queue a batch of messages and write them.
+	 *
+	 * @throws IOException	if the write fails
+	 */
+	@Benchmark
+	public void writeBatch() throws IOException {
+		for (MessageBuffer msg : messages) {
+			player.queueMessage(msg);
+		}
+		player.write();
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of message fan-out, <code>Game.queueMessage()</code>, in a game of
+ * eight players.  Each operation queues one message from one player for the
+ * other seven, and then writes the queues to a channel which discards them, so
+ * that every message is queued rather than coalesced.
+ * <p>
+ * The players stand in a row along one corridor of the default maze, so that
+ * they are all in view of each other.  A second game is the same, except that
+ * the sender stands behind a wall, so that its locations are withheld from the
+ * others.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+	private BenchGame bench;
+	private Game game;
+	private BenchGame hiddenBench;
+	private Game hiddenGame;
+	private int fromId;
+	private byte[] location;
+	private byte[] relativeMove;
+	private int step;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		bench = new BenchGame(Game.MAX_PLAYERS);
+		game = bench.getGame();
+		for (int i = 0; i < Game.MAX_PLAYERS; ++i) {
+			BenchGame.place(bench.getPlayer(i), 3 + i, 20);
+		}
+		bench.drain();
+		hiddenBench = new BenchGame(Game.MAX_PLAYERS);
+		hiddenGame = hiddenBench.getGame();
+		BenchGame.place(hiddenBench.getPlayer(0), 1, 20);
+		for (int i = 1; i < Game.MAX_PLAYERS; ++i) {
+			BenchGame.place(hiddenBench.getPlayer(i), 3 + i, 20);
+		}
+		hiddenBench.drain();
+		fromId = bench.getPlayer(0).getId();
+		location = new byte[] { 2, (byte) fromId, 0100, 0101, 0101 };
+		relativeMove = new byte[] { (byte) (0150 | (fromId - 1)) };
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		bench.close();
+		hiddenBench.close();
+	}
+
+	/**
+	 * Encode a location message and queue it for the other players, all of
+	 * which can see the sender.
+	 */
+	@Benchmark
+	public void queueLocation() {
+		location[2] = (byte) (0100 | (++step & 3));
+		MessageBuffer msg = game.getMessagePool().encode(location);
+		game.queueMessage(fromId, msg);
+		msg.release();
+		bench.drain();
+	}
+
+	/**
+	 * Encode a location message from a player out of sight of the others, and
+	 * offer it to them.
+	 */
+	@Benchmark
+	public void queueLocationOutOfSight() {
+		location[2] = (byte) (0100 | (++step & 3));
+		MessageBuffer msg = hiddenGame.getMessagePool().encode(location);
+		hiddenGame.queueMessage(fromId, msg);
+		msg.release();
+		hiddenBench.drain();
+	}
+
+	/**
+	 * Queue a relative move from its array form, as the server does for a
+	 * single-byte message.
+	 */
+	@Benchmark
+	public void queueRelativeMove() {
+		game.queueMessage(fromId, relativeMove);
+		bench.drain();
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark of the construction of the messages which describe a player to a
+ * new player, <code>makeNewPlayerMessage()</code> and
+ * <code>makeLocationMessage()</code>, and of encoding them into the message
+ * pool.  The messages for a join to a full game are also encoded from the
+ * game's <code>WorldSnapshot</code>, for comparison.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBuilderBenchmark {
+
+	private BenchGame bench;
+	private Player player;
+	private MessagePool pool;
+	private Game game;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		bench = new BenchGame(Game.MAX_PLAYERS);
+		player = bench.getPlayer(0);
+		game = bench.getGame();
+		pool = game.getMessagePool();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		bench.close();
+	}
+
+	@Benchmark
+	public byte[] makeNewPlayerMessage() {
+		return player.makeNewPlayerMessage();
+	}
+
+	@Benchmark
+	public byte[] makeLocationMessage() {
+		return player.makeLocationMessage();
+	}
+
+	/**
+	 * Build both messages and encode them, as is done for each existing player
+	 * when a new player joins.
+	 *
+	 * @param bh	sink for the encoded messages
+	 */
+	@Benchmark
+	public void encodeJoinMessages(Blackhole bh) {
+		MessageBuffer newPlayer = pool.encode(player.makeNewPlayerMessage());
+		MessageBuffer location = pool.encode(player.makeLocationMessage());
+		bh.consume(newPlayer);
+		bh.consume(location);
+		newPlayer.release();
+		location.release();
+	}
+
+	/**
+	 * Encode the messages for all the players but one from the snapshot, as is
+	 * done when a player joins a game in which all the others are present.
+	 *
+	 * @param bh	sink for the encoded messages
+	 */
+	@Benchmark
+	public void encodeSnapshot(Blackhole bh) {
+		MessageBuffer buf = game.getSnapshot().encode(pool, player.getId());
+		bh.consume(buf);
+		buf.release();
+	}
+}
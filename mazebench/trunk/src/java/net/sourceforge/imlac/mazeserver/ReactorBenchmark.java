@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput comparison of the single-selector, multi-reactor and
+ * thread-per-connection server modes.
+ * For each mode, a server is started on a local port and filled with full
+ * eight-player games.  Client threads then send location messages from every
+ * connection as fast as the server will take them, and the benchmark reports
+ * the number of messages delivered to clients per second.
+ * <p>
+ * Usage: <code>ReactorBenchmark [games [seconds [workers...]]]</code>
+ * <p>
+ * Each worker count is measured in turn, with 0 meaning the single-selector
+ * mode and -1 the thread-per-connection mode.  By default the single-selector
+ * mode is compared with the multi-reactor mode using one worker for every two
+ * processors, and with the thread-per-connection mode.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+public class ReactorBenchmark {
+
+	private static final int CLIENT_THREADS = 4;
+
+	private final int games;
+	private final int seconds;
+	private final AtomicLong received = new AtomicLong();
+	private volatile boolean running;
+
+	public ReactorBenchmark(int games, int seconds) {
+		super();
+		this.games = games;
+		this.seconds = seconds;
+	}
+
+	/**
+	 * One client thread, driving a share of the connections.
+	 */
+	private class ClientThread extends Thread {
+
+		private final Selector selector;
+		private final ByteBuffer readBuf = ByteBuffer.allocateDirect(65536);
+
+		ClientThread() throws IOException {
+			super();
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void add(SocketChannel chan, int n) throws IOException {
+			chan.configureBlocking(false);
+			ByteBuffer msg = ByteBuffer.allocate(5);
+			msg.flip();
+			SelectionKey key = chan.register(selector, SelectionKey.OP_READ);
+			key.attach(msg);
+		}
+
+		public void run() {
+			int n = 0;
+			try {
+				while (running) {
+					selector.selectNow();
+					selector.selectedKeys().clear();
+					Iterator<SelectionKey> iter = selector.keys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = iter.next();
+						SocketChannel chan = (SocketChannel) key.channel();
+						ByteBuffer msg = (ByteBuffer) key.attachment();
+						if (!msg.hasRemaining()) {
+							++n;
+							msg.clear();
+							msg.put((byte) 2);
+							msg.put((byte) 1);
+							msg.put((byte) (0100 | (n & 3)));
+							msg.put((byte) (0100 | (n & 017)));
+							msg.put((byte) (0100 | ((n >> 4) & 017)));
+							msg.flip();
+						}
+						chan.write(msg);
+						readBuf.clear();
+						int len = chan.read(readBuf);
+						if (len > 0) {
+							received.addAndGet(len);
+						}
+					}
+				}
+				for (SelectionKey key : selector.keys()) {
+					key.channel().close();
+				}
+				selector.close();
+			} catch (IOException iox) {
+				System.out.println("Client I/O exception: " + iox);
+			}
+		}
+	}
+
+	/**
+	 * Measure the throughput of a server with a given number of worker threads.
+	 *
+	 * @param workerCount	the number of workers, 0 for the single-selector mode,
+	 * 						or -1 for the thread-per-connection mode
+	 * @return				the number of messages delivered per second
+	 */
+	public double measure(int workerCount) throws IOException, InterruptedException {
+		Server server = new Server(new InetSocketAddress("localhost", 0), 0,
+			Math.max(workerCount, 0), workerCount < 0);
+		// The locations sent are not places in the maze, and every one should
+		// reach every player
+		server.setMazeModel(null);
+		server.start();
+		InetSocketAddress addr = new InetSocketAddress("localhost", server.getLocalPort());
+
+		ClientThread[] clients = new ClientThread[CLIENT_THREADS];
+		for (int i = 0; i < CLIENT_THREADS; ++i) {
+			clients[i] = new ClientThread();
+		}
+		int count = games * Game.MAX_PLAYERS;
+		for (int n = 0; n < count; ++n) {
+			SocketChannel chan = SocketChannel.open(addr);
+			chan.socket().setTcpNoDelay(true);
+			byte[] name = { (byte) ('A' + (n % 26)), (byte) ('A' + ((n / 26) % 26)),
+				(byte) ('A' + ((n / 676) % 26)), 012 };
+			chan.write(ByteBuffer.wrap(name));
+			clients[n % CLIENT_THREADS].add(chan, n);
+		}
+		Thread.sleep(1000);
+
+		running = true;
+		for (ClientThread client : clients) {
+			client.start();
+		}
+		Thread.sleep(2000);
+		long start = received.get();
+		long t0 = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long end = received.get();
+		long t1 = System.nanoTime();
+		running = false;
+		for (ClientThread client : clients) {
+			client.join();
+		}
+		server.shutdown();
+		server.join();
+		return ((end - start) / 5.0) / ((t1 - t0) / 1e9);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int games = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		int[] workerCounts;
+		if (args.length > 2) {
+			workerCounts = new int[args.length - 2];
+			for (int i = 2; i < args.length; ++i) {
+				workerCounts[i - 2] = Integer.parseInt(args[i]);
+			}
+		} else {
+			int cpus = Runtime.getRuntime().availableProcessors();
+			workerCounts = new int[] { 0, Math.max(2, cpus / 2), -1 };
+		}
+		ReactorBenchmark bench = new ReactorBenchmark(games, seconds);
+		for (int workerCount : workerCounts) {
+			double rate = bench.measure(workerCount);
+			String mode;
+			if (workerCount < 0) {
+				mode = "thread-per-connection";
+			} else if (workerCount == 0) {
+				mode = "single-selector";
+			} else {
+				mode = "multi-reactor, " + workerCount + " workers";
+			}
+			System.out.println(mode + ": " + Math.round(rate) + " messages delivered/sec");
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * A client input stream for the decoding benchmarks, and the sizes of the reads
+ * in which it arrives.  The stream is generated from a fixed seed to resemble
+ * the traffic of a player: mostly relative moves and turns, with a location
+ * message after every few steps, and the occasional echoed byte and kill.  The
+ * read sizes are chosen at random, so that messages are split across reads as
+ * they are on a real connection.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+public class RecordedStream {
+
+	private final byte[] data;
+	private final int[] reads;
+
+	/**
+	 * Generate a stream.
+	 *
+	 * @param id		the Imlac id of the sending player
+	 * @param victim	the Imlac id of the player it kills
+	 * @param length	the approximate length of the stream in bytes
+	 * @param maxRead	the largest read, in bytes
+	 * @param seed		the random number seed
+	 */
+	public RecordedStream(int id, int victim, int length, int maxRead, long seed) {
+		super();
+		Random random = new Random(seed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 16);
+		int dir = 0;
+		int x = 1;
+		int y = 1;
+		while (out.size() < length) {
+			int r = random.nextInt(100);
+			int code = id - 1;
+			if (r < 50) {
+				// Step forward
+				out.write(0150 | code);
+				switch (dir) {
+					case 0: y -= 1; break;
+					case 1: x += 1; break;
+					case 2: y += 1; break;
+					case 3: x -= 1; break;
+				}
+			} else if (r < 60) {
+				out.write(0020 | code);
+				dir = (dir + 1) & 3;
+			} else if (r < 70) {
+				out.write(0030 | code);
+				dir = (dir - 1) & 3;
+			} else if (r < 75) {
+				out.write(0160 | code);
+			} else if (r < 93) {
+				out.write(2);
+				out.write(id);
+				out.write(0100 | dir);
+				out.write(0100 | (x & 037));
+				out.write(0100 | (y & 037));
+			} else if (r < 98) {
+				out.write(040 + random.nextInt(060));
+			} else {
+				out.write(3);
+				out.write(id);
+				out.write(victim);
+			}
+		}
+		data = out.toByteArray();
+
+		int count = 0;
+		int[] sizes = new int[data.length];
+		for (int pos = 0; pos < data.length; ) {
+			int n = Math.min(1 + random.nextInt(maxRead), data.length - pos);
+			sizes[count++] = n;
+			pos += n;
+		}
+		reads = new int[count];
+		System.arraycopy(sizes, 0, reads, 0, count);
+	}
+
+	/**
+	 * Return the bytes of the stream.
+	 *
+	 * @return	the stream
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Return the sizes of the reads in which the stream arrives.
+	 *
+	 * @return	the read sizes, which add up to the length of the stream
+	 */
+	public int[] getReads() {
+		return reads;
+	}
+}
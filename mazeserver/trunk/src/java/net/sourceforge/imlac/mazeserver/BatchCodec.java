@@ -0,0 +1,299 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder and decoder for the batched frame protocol, which a client asks for
+ * by ending its name line with " BATCH".  The messages for such a client are
+ * the same as for any other, but they are sent in frames, each holding all the
+ * messages queued since the last one:
+ * <pre>
+ *     &lt;body length: varint&gt; &lt;body&gt;
+ * </pre>
+ * The body is a sequence of records.  A location message becomes a record of
+ * a tag byte, 0200 plus the player's id, and a varint holding the differences
+ * from the last location received for the same player:
+ * <pre>
+ *     zigzag(direction) | zigzag(x) &lt;&lt; 6 | zigzag(y) &lt;&lt; 12
+ * </pre>
+ * Each difference is taken modulo 64, as a number from -32 to 31.  Every other
+ * message, and a location message whose fields do not all have the 0100 bit
+ * set, is copied unchanged, so its first byte is below 0200.  A varint is
+ * seven bits to a byte, least significant first, with the 0200 bit set on all
+ * but the last byte.
+ * <p>
+ * The server sends a client at most one frame in each batch interval, so that
+ * the messages of several passes of its event loop share a write.
+ * <p>
+ * Both ends start with every location at zero, and update it from every
+ * location message, in either form.  An instance keeps the locations for one
+ * direction of one connection, so a connection needs one to encode and its
+ * client one to decode.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see OutputQueue
+ */
+public class BatchCodec {
+
+	/** Default time in milliseconds between frames for one client */
+	public static final long DEFAULT_INTERVAL = 10;
+
+	/** Size of the buffer in which frames are built */
+	public static final int FRAME_SIZE = 4096;
+
+	/** Space reserved for the length at the start of a frame */
+	public static final int MAX_HEADER = 3;
+
+	/** Largest body length that fits in the header */
+	public static final int MAX_BODY = (1 << (7 * MAX_HEADER)) - 1;
+
+	/** Largest number of bytes that one byte of a body decodes to */
+	public static final int MAX_EXPANSION = 3;
+
+	private static final int TAG = 0200;
+
+	private final byte[] last = new byte[3 * (Game.MAX_PLAYERS + 1)];
+
+	/**
+	 * Create a codec with every location at zero.
+	 */
+	public BatchCodec() {
+		super();
+	}
+
+	/**
+	 * Return the length of the legacy message which starts with a given type
+	 * byte.
+	 *
+	 * @param type	the type byte
+	 * @return		the length of the message
+	 */
+	static int messageLength(int type) {
+		switch (type & 0177) {
+			case 1:
+				return 2;
+			case 2:
+				return 5;
+			case 3:
+				return 3;
+			case 4:
+				return 12;
+			case DatagramTransport.OFFER:
+				return DatagramTransport.OFFER_LENGTH;
+			default:
+				return 1;
+		}
+	}
+
+	/**
+	 * Start a frame in an empty buffer, leaving room for its header.
+	 *
+	 * @param frame	the buffer, which must be clear
+	 */
+	public void beginFrame(ByteBuffer frame) {
+		frame.position(MAX_HEADER);
+	}
+
+	/**
+	 * Return <code>true</code> if no messages have been added to the frame in a
+	 * buffer.
+	 *
+	 * @param frame	the buffer
+	 * @return		<code>true</code> if the frame is empty
+	 */
+	public boolean isEmptyFrame(ByteBuffer frame) {
+		return frame.position() <= MAX_HEADER;
+	}
+
+	/**
+	 * Return <code>true</code> if there is room for a message in the frame in a
+	 * buffer.  A message never takes more room in a frame than it does on its
+	 * own.
+	 *
+	 * @param message	the message
+	 * @param frame		the buffer
+	 * @return			<code>true</code> if the message fits
+	 */
+	public boolean hasRoom(MessageBuffer message, ByteBuffer frame) {
+		int len = message.length();
+		return (len <= frame.remaining()) && (frame.position() - MAX_HEADER + len <= MAX_BODY);
+	}
+
+	/**
+	 * Add the messages in a buffer to a frame.  There must be room for them.
+	 *
+	 * @param message	the buffer, which may hold more than one message
+	 * @param frame		the buffer holding the frame
+	 */
+	public void encode(MessageBuffer message, ByteBuffer frame) {
+		int length = message.length();
+		int offset = 0;
+		while (offset < length) {
+			int type = message.get(offset);
+			int len = Math.min(messageLength(type), length - offset);
+			if ((type == 2) && (len == 5)) {
+				int id = message.get(offset + 1);
+				byte dir = message.get(offset + 2);
+				byte x = message.get(offset + 3);
+				byte y = message.get(offset + 4);
+				if ((id > 0) && (id <= Game.MAX_PLAYERS) && ((dir & x & y & 0100) != 0)) {
+					int base = 3 * id;
+					int delta = zigzag(dir - last[base])
+						| (zigzag(x - last[base + 1]) << 6)
+						| (zigzag(y - last[base + 2]) << 12);
+					frame.put((byte) (TAG | id));
+					putVarint(frame, delta);
+					setLocation(id, dir, x, y);
+					offset += len;
+					continue;
+				}
+				if ((id > 0) && (id <= Game.MAX_PLAYERS)) {
+					setLocation(id, dir, x, y);
+				}
+			}
+			for (int i = 0; i < len; ++i) {
+				frame.put(message.get(offset + i));
+			}
+			offset += len;
+		}
+	}
+
+	/**
+	 * Finish the frame in a buffer, and prepare the buffer for writing.  The
+	 * length is written in front of the body, and the buffer is flipped and
+	 * positioned at the start of the length.
+	 *
+	 * @param frame	the buffer holding the frame
+	 */
+	public void endFrame(ByteBuffer frame) {
+		int bodyLen = frame.position() - MAX_HEADER;
+		int headerLen = 1;
+		while ((bodyLen >> (7 * headerLen)) != 0) {
+			++headerLen;
+		}
+		frame.flip();
+		int start = MAX_HEADER - headerLen;
+		frame.position(start);
+		putVarint(frame, bodyLen);
+		frame.position(start);
+	}
+
+	/**
+	 * Decode the complete frames in a buffer into legacy messages.  A frame is
+	 * decoded only if the output buffer has room for everything it could hold,
+	 * and decoding stops at the first frame which is incomplete or does not fit.
+	 * The input buffer is left positioned at the start of that frame.
+	 *
+	 * @param frames	the input, ready to be read
+	 * @param out		the buffer to which the messages are added
+	 * @return			the number of frames decoded
+	 * @throws IllegalArgumentException	if the input is not a valid frame
+	 */
+	public int decode(ByteBuffer frames, ByteBuffer out) {
+		int count = 0;
+		while (frames.hasRemaining()) {
+			int start = frames.position();
+			int bodyLen = getVarint(frames);
+			if ((bodyLen < 0) || (frames.remaining() < bodyLen)
+					|| (out.remaining() < bodyLen * MAX_EXPANSION)) {
+				frames.position(start);
+				break;
+			}
+			int end = frames.position() + bodyLen;
+			while (frames.position() < end) {
+				int type = frames.get(frames.position()) & 0377;
+				if ((type & TAG) != 0) {
+					frames.get();
+					int id = type & 017;
+					int delta = getVarint(frames);
+					if ((id == 0) || (id > Game.MAX_PLAYERS) || (delta < 0)
+							|| (frames.position() > end)) {
+						throw new IllegalArgumentException("Bad location record in frame");
+					}
+					int base = 3 * id;
+					byte dir = (byte) (0100 | ((last[base] + unzigzag(delta)) & 077));
+					byte x = (byte) (0100 | ((last[base + 1] + unzigzag(delta >> 6)) & 077));
+					byte y = (byte) (0100 | ((last[base + 2] + unzigzag(delta >> 12)) & 077));
+					out.put((byte) 2).put((byte) id).put(dir).put(x).put(y);
+					setLocation(id, dir, x, y);
+				} else {
+					int len = Math.min(messageLength(type), end - frames.position());
+					if ((type == 2) && (len == 5)) {
+						int id = frames.get(frames.position() + 1);
+						if ((id > 0) && (id <= Game.MAX_PLAYERS)) {
+							int p = frames.position();
+							setLocation(id, frames.get(p + 2), frames.get(p + 3), frames.get(p + 4));
+						}
+					}
+					for (int i = 0; i < len; ++i) {
+						out.put(frames.get());
+					}
+				}
+			}
+			++count;
+		}
+		return count;
+	}
+
+	private void setLocation(int id, byte dir, byte x, byte y) {
+		int base = 3 * id;
+		last[base] = (byte) (dir & 077);
+		last[base + 1] = (byte) (x & 077);
+		last[base + 2] = (byte) (y & 077);
+	}
+
+	private static int zigzag(int delta) {
+		// Reduce modulo 64 to -32..31, then interleave the signs
+		int d = (delta << 26) >> 26;
+		return ((d << 1) ^ (d >> 31)) & 077;
+	}
+
+	private static int unzigzag(int bits) {
+		int z = bits & 077;
+		return (z >>> 1) ^ -(z & 1);
+	}
+
+	private static void putVarint(ByteBuffer buf, int value) {
+		while ((value & ~0177) != 0) {
+			buf.put((byte) ((value & 0177) | 0200));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	/**
+	 * Read a varint, or return -1 if the buffer ends before it does.
+	 */
+	private static int getVarint(ByteBuffer buf) {
+		int value = 0;
+		for (int shift = 0; shift < 28; shift += 7) {
+			if (!buf.hasRemaining()) {
+				return -1;
+			}
+			int b = buf.get() & 0377;
+			value |= (b & 0177) << shift;
+			if ((b & 0200) == 0) {
+				return value;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * The log of the messages broadcast in one game, from which its spectators are
+ * written.  The log is a ring buffer holding the most recent bytes appended,
+ * and a position in the log is the number of bytes appended before it, so it
+ * only ever increases.  Each spectator keeps the position up to which it has
+ * been written, and is written straight from the ring, so a message costs the
+ * same to send to a hundred spectators as to one.
+ * <p>
+ * A spectator which falls more than the size of the ring behind can no longer
+ * be written, and must be disconnected.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Spectator
+ */
+public class BroadcastLog {
+
+	/** Default size of the ring, which must be a power of two */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	private final ByteBuffer ring;
+	private final int mask;
+	private long head;					// Number of bytes appended
+
+	/**
+	 * Create an empty log.
+	 *
+	 * @param capacity	the size of the ring, a power of two
+	 */
+	public BroadcastLog(int capacity) {
+		super();
+		if ((capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("Log capacity " + capacity
+				+ " is not a power of two");
+		}
+		ring = ByteBuffer.allocateDirect(capacity);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Return the size of the ring.
+	 *
+	 * @return	the number of bytes that the log holds
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Return the position of the end of the log.
+	 *
+	 * @return	the number of bytes appended
+	 */
+	public long getHead() {
+		return head;
+	}
+
+	/**
+	 * Append a message to the log.
+	 *
+	 * @param message	the message
+	 */
+	public void append(MessageBuffer message) {
+		int len = message.length();
+		for (int i = 0; i < len; ++i) {
+			ring.put((int) (head++ & mask), message.get(i));
+		}
+	}
+
+	/**
+	 * Create a pair of views of the ring, for a spectator to write from.
+	 *
+	 * @return	the views
+	 */
+	ByteBuffer[] newViews() {
+		return new ByteBuffer[] { ring.asReadOnlyBuffer(), ring.asReadOnlyBuffer() };
+	}
+
+	/**
+	 * Write the log from a given position to its end, or as much of it as a
+	 * channel will take.
+	 *
+	 * @param chan		the channel
+	 * @param cursor	the position to write from, which must still be in the
+	 * 					ring
+	 * @param views		views of the ring from <code>newViews()</code>
+	 * @return			the number of bytes written
+	 * @throws IOException	if the channel fails
+	 */
+	long write(GatheringByteChannel chan, long cursor, ByteBuffer[] views) throws IOException {
+		long available = head - cursor;
+		if (available <= 0) {
+			return 0;
+		}
+		int start = (int) (cursor & mask);
+		int first = (int) Math.min(available, mask + 1 - start);
+		views[0].limit(start + first).position(start);
+		if (first == available) {
+			return chan.write(views[0]);
+		}
+		views[1].limit((int) (available - first)).position(0);
+		return chan.write(views, 0, 2);
+	}
+}
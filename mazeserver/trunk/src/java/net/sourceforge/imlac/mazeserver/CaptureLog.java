@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class records everything that the clients of a server send to it in a
+ * memory-mapped log, so that a session can be replayed by <code>Replay</code>.
+ * There is a record when a connection is made, one for each read from a
+ * connection, with the bytes that were read, and one when a connection is
+ * closed.  Each record has the time in nanoseconds since the log was opened.
+ * <p>
+ * Any number of event loops may add records at the same time.  Each takes
+ * space for its record from the log with an atomic add, and writes the type
+ * byte of the record last, so that a reader stops at a record which is not
+ * complete.  When the log is full, later records are discarded.
+ * <p>
+ * A record is a type byte, the connection number (4 bytes), the time (8 bytes)
+ * and, for data records, the length (2 bytes) and the data.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Replay
+ */
+public class CaptureLog {
+
+	/** Record type of a new connection */
+	public static final byte CONNECT = 1;
+
+	/** Record type of data read from a connection */
+	public static final byte DATA = 2;
+
+	/** Record type of a closed connection */
+	public static final byte CLOSE = 3;
+
+	/** Default size of a log */
+	public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+	/** Magic number at the start of a log, "MazeCapt" */
+	static final long MAGIC = 0x4d617a6543617074L;
+
+	/** Size of the header, the magic number and the time the log was opened */
+	static final int HEADER_SIZE = 16;
+
+	/** Size of a record without its data */
+	static final int RECORD_SIZE = 13;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer log;
+	private final long startTime;
+	private final AtomicLong position = new AtomicLong(HEADER_SIZE);
+	private final AtomicInteger nextConnection = new AtomicInteger(1);
+	private volatile boolean full = false;
+
+	/**
+	 * Create a capture log, replacing any file of the same name.
+	 *
+	 * @param path			the log file
+	 * @throws IOException	if the file cannot be created
+	 */
+	public CaptureLog(File path) throws IOException {
+		this(path, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a capture log of a given size, replacing any file of the same name.
+	 *
+	 * @param path			the log file
+	 * @param capacity		the size of the log in bytes
+	 * @throws IOException	if the file cannot be created
+	 */
+	public CaptureLog(File path, long capacity) throws IOException {
+		super();
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		log = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		startTime = System.nanoTime();
+		log.putLong(0, MAGIC);
+		log.putLong(8, System.currentTimeMillis());
+	}
+
+	/**
+	 * Record a new connection.
+	 *
+	 * @return	the number of the connection in the log
+	 */
+	public int connected() {
+		int connection = nextConnection.getAndIncrement();
+		int offset = reserve(RECORD_SIZE);
+		if (offset > 0) {
+			putHeader(offset, CONNECT, connection);
+		}
+		return connection;
+	}
+
+	/**
+	 * Record data read from a connection.
+	 *
+	 * @param connection	the number of the connection in the log
+	 * @param src			the buffer containing the data
+	 * @param start			the index of the data in the buffer
+	 * @param len			the length of the data
+	 */
+	public void received(int connection, ByteBuffer src, int start, int len) {
+		int offset = reserve(RECORD_SIZE + 2 + len);
+		if (offset > 0) {
+			log.putShort(offset + RECORD_SIZE, (short) len);
+			int data = offset + RECORD_SIZE + 2;
+			for (int i = 0; i < len; ++i) {
+				log.put(data + i, src.get(start + i));
+			}
+			putHeader(offset, DATA, connection);
+		}
+	}
+
+	/**
+	 * Record that a connection has been closed.
+	 *
+	 * @param connection	the number of the connection in the log
+	 */
+	public void disconnected(int connection) {
+		int offset = reserve(RECORD_SIZE);
+		if (offset > 0) {
+			putHeader(offset, CLOSE, connection);
+		}
+	}
+
+	/**
+	 * Return the number of bytes of the log which have been used.
+	 *
+	 * @return	the size of the log contents
+	 */
+	public long getSize() {
+		return Math.min(position.get(), log.capacity());
+	}
+
+	/**
+	 * Return <code>true</code> if the log has filled up and records have been
+	 * discarded.
+	 *
+	 * @return	<code>true</code> if the log is full
+	 */
+	public boolean isFull() {
+		return full;
+	}
+
+	/**
+	 * Write the log to disk and close it.
+	 */
+	public void close() {
+		log.force();
+		try {
+			file.close();
+		} catch (IOException iox) {
+			System.out.println("I/O exception while closing capture log");
+		}
+	}
+
+	private int reserve(int size) {
+		if (full) {
+			return 0;
+		}
+		long offset = position.getAndAdd(size);
+		if (offset + size > log.capacity()) {
+			if (!full) {
+				full = true;
+				System.out.println("Capture log full, recording stopped");
+			}
+			return 0;
+		}
+		return (int) offset;
+	}
+
+	private void putHeader(int offset, byte type, int connection) {
+		log.putInt(offset + 1, connection);
+		log.putLong(offset + 5, System.nanoTime() - startTime);
+		// The type goes last, and marks the record as complete
+		log.put(offset, type);
+	}
+}
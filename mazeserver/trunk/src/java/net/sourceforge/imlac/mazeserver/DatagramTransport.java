@@ -0,0 +1,267 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * This class is an optional datagram side channel for location messages.  A
+ * location message which is lost on a TCP connection delays every message
+ * behind it until it is retransmitted, but a lost location datagram is simply
+ * superseded by the next one.  Kill, leave and new player messages, and all
+ * the other traffic, stay on the TCP connection.
+ * <p>
+ * A client asks for the side channel by ending its name line with " UDP".
+ * Once it has an Imlac id, the server sends it an offer message over TCP:
+ * <pre>
+ *     005 &lt;token: 4 bytes&gt; &lt;port: 2 bytes&gt;
+ * </pre>
+ * The client then sends its location messages to that UDP port, each in a
+ * datagram of the token, a 16-bit sequence number and the 5-byte location
+ * message.  The first datagram also tells the server where to send the
+ * client's datagrams.  From then on, the location messages of the other
+ * players are sent to the client in datagrams of a 16-bit sequence number and
+ * the location message.  All numbers are big-endian.  Both ends drop a
+ * location datagram whose sequence number is not newer than that of the last
+ * one accepted from the same player.
+ * <p>
+ * Each event loop has its own transport, registered on its selector, so that
+ * datagrams are handled on the thread which owns the player's game.  For
+ * testing, the transport can discard a fraction of the datagrams in each
+ * direction to simulate a lossy network.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see EventLoop
+ */
+public class DatagramTransport {
+
+	/** Type byte of the offer message */
+	public static final byte OFFER = 5;
+
+	/** Length of the offer message */
+	public static final int OFFER_LENGTH = 7;
+
+	/** Length of a datagram from a client */
+	public static final int CLIENT_DATAGRAM_LENGTH = 11;
+
+	/** Length of a datagram to a client */
+	public static final int SERVER_DATAGRAM_LENGTH = 7;
+
+	private final EventLoop loop;
+	private final DatagramChannel channel;
+	private final SelectionKey key;
+	private final HashMap<Integer, Player> playersByToken = new HashMap<Integer, Player>();
+	private final Random random = new Random();
+	private final ByteBuffer inBuf = ByteBuffer.allocateDirect(512);
+	private final ByteBuffer outBuf = ByteBuffer.allocateDirect(SERVER_DATAGRAM_LENGTH);
+	private final double lossRate;
+	private long datagramsIn;
+	private long datagramsOut;
+	private long staleCount;
+	private long lostCount;
+
+	/**
+	 * Open a transport for an event loop, on a free UDP port.
+	 *
+	 * @param loop			the <code>EventLoop</code>
+	 * @param address		the local address to bind, with any port
+	 * @param lossRate		the fraction of datagrams to discard, for testing
+	 * @throws IOException	if the channel cannot be opened
+	 */
+	public DatagramTransport(EventLoop loop, InetSocketAddress address, double lossRate)
+			throws IOException {
+		super();
+		this.loop = loop;
+		this.lossRate = lossRate;
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().bind(new InetSocketAddress(address.getAddress(), 0));
+		key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Return the UDP port of this transport.
+	 *
+	 * @return	the port number
+	 */
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	/**
+	 * Offer the side channel to a player which has asked for it.  The player
+	 * must have been assigned an Imlac id.
+	 *
+	 * @param player	the player
+	 * @return			the token which identifies the player's datagrams
+	 */
+	int offer(Player player) {
+		Integer token;
+		do {
+			token = Integer.valueOf(random.nextInt());
+		} while ((token.intValue() == 0) || playersByToken.containsKey(token));
+		playersByToken.put(token, player);
+		int t = token.intValue();
+		int port = getLocalPort();
+		byte[] msg = new byte[OFFER_LENGTH];
+		msg[0] = OFFER;
+		msg[1] = (byte) (t >> 24);
+		msg[2] = (byte) (t >> 16);
+		msg[3] = (byte) (t >> 8);
+		msg[4] = (byte) t;
+		msg[5] = (byte) (port >> 8);
+		msg[6] = (byte) port;
+		player.queueMessage(msg);
+		return t;
+	}
+
+	/**
+	 * Forget a player which is leaving.
+	 *
+	 * @param token	the player's token
+	 */
+	void remove(int token) {
+		playersByToken.remove(Integer.valueOf(token));
+	}
+
+	/**
+	 * Receive and relay all the datagrams waiting on the channel.  This is
+	 * called by the event loop when the channel is readable.
+	 */
+	void read() {
+		while (true) {
+			inBuf.clear();
+			SocketAddress from;
+			try {
+				from = channel.receive(inBuf);
+			} catch (IOException iox) {
+				System.out.println("I/O exception on datagram receive in loop "
+					+ loop.getLoopId() + ": " + iox.getMessage());
+				return;
+			}
+			if (from == null) {
+				return;
+			}
+			++datagramsIn;
+			inBuf.flip();
+			if ((inBuf.remaining() != CLIENT_DATAGRAM_LENGTH) || (inBuf.get(6) != 2)) {
+				continue;
+			}
+			Player player = playersByToken.get(Integer.valueOf(inBuf.getInt(0)));
+			if ((player == null) || !player.isOpen() || lost()) {
+				continue;
+			}
+			if (!player.datagramReceived(from, inBuf.getShort(4), inBuf, 6)) {
+				++staleCount;
+			}
+		}
+	}
+
+	/**
+	 * Send a location message to a player in a datagram.
+	 *
+	 * @param to		the address of the player's datagrams
+	 * @param seq		the sequence number of the datagram
+	 * @param message	the location message
+	 * @return			<code>true</code> if the datagram was sent, or
+	 * 					<code>false</code> if the message should go by TCP
+	 */
+	boolean send(SocketAddress to, int seq, MessageBuffer message) {
+		if (lost()) {
+			return true;
+		}
+		outBuf.clear();
+		outBuf.putShort((short) seq);
+		message.copyTo(outBuf);
+		outBuf.flip();
+		try {
+			if (channel.send(outBuf, to) == 0) {
+				return false;
+			}
+		} catch (IOException iox) {
+			return false;
+		}
+		++datagramsOut;
+		return true;
+	}
+
+	private boolean lost() {
+		if ((lossRate > 0) && (random.nextDouble() < lossRate)) {
+			++lostCount;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the number of datagrams received.
+	 *
+	 * @return	the number of datagrams
+	 */
+	public long getDatagramsIn() {
+		return datagramsIn;
+	}
+
+	/**
+	 * Return the number of datagrams sent.
+	 *
+	 * @return	the number of datagrams
+	 */
+	public long getDatagramsOut() {
+		return datagramsOut;
+	}
+
+	/**
+	 * Return the number of datagrams which were dropped because a newer one from
+	 * the same player had already been received.
+	 *
+	 * @return	the number of stale datagrams
+	 */
+	public long getStaleCount() {
+		return staleCount;
+	}
+
+	/**
+	 * Return the number of datagrams discarded to simulate loss.
+	 *
+	 * @return	the number of lost datagrams
+	 */
+	public long getLostCount() {
+		return lostCount;
+	}
+
+	/**
+	 * Close the channel.
+	 */
+	void close() {
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException iox) {
+			System.out.println("I/O exception while closing datagram channel");
+		}
+	}
+}
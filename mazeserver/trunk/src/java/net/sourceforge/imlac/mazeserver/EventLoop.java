@@ -0,0 +1,794 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is one selector loop of the server.  It reads, decodes, relays and
+ * writes the messages of all the players in the games that it hosts.  Each loop
+ * has its own <code>Selector</code>, <code>MessagePool</code> and
+ * <code>GameRouter</code>, and every member of a game belongs to the same loop,
+ * so a broadcast never crosses from one loop to another and needs no locking.
+ * <p>
+ * Only the players with output to send are written after each pass.  A player
+ * puts itself in the loop's dirty set when a message is queued for it, and
+ * when its connection, having refused part of a write, becomes writable again.
+ * So the cost of a pass depends on the number of players that are active, not
+ * on the number connected.  A game with spectators is written in the same
+ * way, when a message has been added to its log.
+ * <p>
+ * In the single-selector mode the server thread runs its only loop itself, and
+ * the listening socket is registered on the loop's selector.  In the
+ * multi-reactor mode each loop runs on a worker thread of its own, and the
+ * server thread accepts connections and hands each one to a loop with
+ * <code>assign()</code>.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Server
+ */
+public class EventLoop implements Runnable {
+
+	protected final Server server;
+	protected final int loopId;
+	protected final Selector selector;
+	protected final MessagePool messagePool;
+	protected final GameRouter router;
+	protected final LoopMetrics metrics;
+	protected final boolean shared;
+	protected DatagramTransport datagrams;
+	protected final ArrayList<Player> failedPlayers = new ArrayList<Player>();
+	protected TimingWheel idleWheel;		// Idle timers, or null if disabled
+	protected ArrayList<Player> dirtyPlayers = new ArrayList<Player>();
+	protected ArrayList<Player> flushingPlayers = new ArrayList<Player>();
+	protected final ArrayList<Game> dirtyGames = new ArrayList<Game>();
+	protected final ArrayList<Player> probedPlayers = new ArrayList<Player>();
+	protected final IdAllocator connectionIds = new IdAllocator(0);
+	protected Player[] connectionTable = new Player[64];
+	protected Federation.Outbox relayOutbox;	// Records for other nodes, or null
+
+	private final ConcurrentLinkedQueue<SocketChannel> handoff =
+		new ConcurrentLinkedQueue<SocketChannel>();
+	private final ConcurrentLinkedQueue<Spectator> spectatorHandoff =
+		new ConcurrentLinkedQueue<Spectator>();
+	private final ConcurrentLinkedQueue<Relayed> relayHandoff =
+		new ConcurrentLinkedQueue<Relayed>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicInteger creditSlots = new AtomicInteger();
+	private volatile int openSlots;			// Free slots, published each pass
+	private volatile int connectionCount;	// Connections, published each pass
+	private volatile Thread thread;
+	private volatile boolean quit = false;
+	private long wakeDeadline;				// When the next pass is due, or 0
+	private long nextStatusTime;			// When a snapshot may next be taken
+	private long nextProbeTime;				// When the players are next probed
+	private long queuedMessages;			// Messages queued after the last writes
+	private long queuedBytes;				// Bytes queued after the last writes
+	private volatile StatusSnapshot status;	// Latest snapshot, or null
+
+	/**
+	 * Create a selector loop for the server.
+	 *
+	 * @param server		the <code>Server</code> that this loop belongs to
+	 * @param loopId		the index of this loop within the server
+	 * @throws IOException	if the selector cannot be opened
+	 */
+	public EventLoop(Server server, int loopId) throws IOException {
+		this(server, loopId, false);
+	}
+
+	/**
+	 * Create a loop whose games may be used by more than one thread.  Each game of
+	 * such a loop has its own <code>MessagePool</code>, to be used only while
+	 * holding the lock on the game, and the loop counters are updated atomically.
+	 *
+	 * @param server		the <code>Server</code> that this loop belongs to
+	 * @param loopId		the index of this loop within the server
+	 * @param shared		<code>true</code> if the games are used by more than
+	 * 						one thread
+	 * @throws IOException	if the selector cannot be opened
+	 */
+	protected EventLoop(Server server, int loopId, boolean shared) throws IOException {
+		super();
+		this.server = server;
+		this.loopId = loopId;
+		this.shared = shared;
+		selector = SelectorProvider.provider().openSelector();
+		messagePool = new MessagePool();
+		router = new GameRouter(this);
+		metrics = new LoopMetrics(shared);
+		openSlots = 0;
+		connectionCount = 0;
+	}
+
+	/**
+	 * Return the server that this loop belongs to.
+	 *
+	 * @return	the <code>Server</code>
+	 */
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Return the index of this loop within the server.
+	 *
+	 * @return	the loop index
+	 */
+	public int getLoopId() {
+		return loopId;
+	}
+
+	/**
+	 * Return the <code>Selector</code> used by this loop.  This is used by a
+	 * <code>Player</code> instance to add its own connection to the <code>Selector</code>.
+	 *
+	 * @return	the loop <code>Selector</code>
+	 */
+	public Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Return the <code>MessagePool</code> used to encode messages for the games in
+	 * this loop.  It may only be used on the loop thread.
+	 *
+	 * @return	the loop <code>MessagePool</code>
+	 */
+	public MessagePool getMessagePool() {
+		return messagePool;
+	}
+
+	/**
+	 * Return the <code>MessagePool</code> for a new game.  The games of a loop
+	 * share the loop's pool, unless the games are used by more than one thread.
+	 *
+	 * @return	the <code>MessagePool</code> for the game
+	 */
+	MessagePool getGamePool() {
+		return shared ? new MessagePool() : messagePool;
+	}
+
+	/**
+	 * Return the outbox for the records that the local players of a new game
+	 * send to the other nodes of the federation.  The games of a loop share
+	 * the loop's outbox, which is flushed after each pass, unless the games
+	 * are used by more than one thread.
+	 *
+	 * @param game	the new <code>Game</code>
+	 * @return		the <code>Federation.Outbox</code> for the game
+	 */
+	Federation.Outbox getRelayOutbox(Game game) {
+		Federation federation = server.getFederation();
+		if (shared) {
+			return federation.newOutbox(Collections.singletonList(game), true);
+		}
+		if (relayOutbox == null) {
+			relayOutbox = federation.newOutbox(router.getGames(), false);
+		}
+		return relayOutbox;
+	}
+
+	/**
+	 * Notification from the federation that a relay link has opened.  The loop
+	 * is woken, so that its outbox sends the link the players of its games.
+	 */
+	void relayLinkUp() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Return the <code>GameRouter</code> which places connections in the games of
+	 * this loop.  It may only be used on the loop thread.
+	 *
+	 * @return	the loop <code>GameRouter</code>
+	 */
+	public GameRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * Return the counters of this loop.  They are updated only on the loop
+	 * thread, but may be read from any thread.
+	 *
+	 * @return	the loop <code>LoopMetrics</code>
+	 */
+	public LoopMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Open a datagram side channel for the location messages of the players in
+	 * this loop.  This must be called before the loop is started.
+	 *
+	 * @param address		the local address to bind, with any port
+	 * @param lossRate		the fraction of datagrams to discard, for testing
+	 * @throws IOException	if the channel cannot be opened
+	 */
+	void openDatagrams(InetSocketAddress address, double lossRate) throws IOException {
+		datagrams = new DatagramTransport(this, address, lossRate);
+	}
+
+	/**
+	 * Return the datagram side channel of this loop.
+	 *
+	 * @return	the <code>DatagramTransport</code>, or <code>null</code> if the
+	 * 			loop does not have one
+	 */
+	public DatagramTransport getDatagramTransport() {
+		return datagrams;
+	}
+
+	/**
+	 * Add a connection to the table of this loop's connections, and allocate its
+	 * connection number.  Unlike an Imlac id, which is unique only within a game
+	 * and limited to 1-8, a connection number is unique within the loop for as
+	 * long as the connection lasts, and there is no limit on the number of them.
+	 * This may only be called on the loop thread.
+	 *
+	 * @param player	the <code>Player</code> for the connection
+	 * @return			the connection number
+	 */
+	int addConnection(Player player) {
+		int n = connectionIds.allocate();
+		if (n >= connectionTable.length) {
+			Player[] newTable = new Player[connectionTable.length * 2];
+			System.arraycopy(connectionTable, 0, newTable, 0, connectionTable.length);
+			connectionTable = newTable;
+		}
+		connectionTable[n] = player;
+		return n;
+	}
+
+	/**
+	 * Remove a connection from the table of this loop's connections, and free its
+	 * connection number.  Removing a connection which has already been removed
+	 * has no effect.  This may only be called on the loop thread.
+	 *
+	 * @param player	the <code>Player</code> for the connection
+	 */
+	void removeConnection(Player player) {
+		int n = player.getConnectionNumber();
+		if ((n < connectionTable.length) && (connectionTable[n] == player)) {
+			connectionTable[n] = null;
+			connectionIds.free(n);
+		}
+		queuedMessages -= player.reportedDepth;
+		queuedBytes -= player.reportedBytes;
+		player.reportedDepth = 0;
+		player.reportedBytes = 0;
+	}
+
+	/**
+	 * Add a player to the set of players to be written after this pass, if it is
+	 * not already there.  This must be called on the loop thread.
+	 *
+	 * @param player	the <code>Player</code> with output to write
+	 */
+	void markDirty(Player player) {
+		if (!player.dirty) {
+			player.dirty = true;
+			dirtyPlayers.add(player);
+		}
+	}
+
+	/**
+	 * Add a game to the set of games whose spectators are to be written after
+	 * this pass, if it is not already there.  This must be called on the loop
+	 * thread.
+	 *
+	 * @param game	the <code>Game</code> with new messages in its log
+	 */
+	void markDirty(Game game) {
+		if (!game.spectatorsDirty) {
+			game.spectatorsDirty = true;
+			dirtyGames.add(game);
+		}
+	}
+
+	/**
+	 * Add a spectator to a game of this loop.  If this is called from another
+	 * thread, the spectator is queued and the loop is woken to add it.
+	 *
+	 * @param spectator	the <code>Spectator</code>, for a game of this loop
+	 */
+	void watch(Spectator spectator) {
+		if (Thread.currentThread() == thread) {
+			attach(spectator);
+		} else {
+			spectatorHandoff.add(spectator);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Pass a message received from another node of the federation to a game of
+	 * this loop, to be broadcast to its players.  The message is queued and the
+	 * loop is woken to deliver it.  It is dropped if the game has gone by then.
+	 *
+	 * @param gameId	the game id
+	 * @param fromId	the Imlac id of the sender, on the other node
+	 * @param message	the message, which is not used by the caller afterwards
+	 */
+	void relay(int gameId, int fromId, byte[] message) {
+		relayHandoff.add(new Relayed(gameId, fromId, message));
+		selector.wakeup();
+	}
+
+	/**
+	 * Find a connection of this loop by its connection number.  This may only be
+	 * called on the loop thread.
+	 *
+	 * @param n	the connection number
+	 * @return	the <code>Player</code> for the connection, or <code>null</code>
+	 */
+	public Player findConnection(int n) {
+		return ((n >= 0) && (n < connectionTable.length)) ? connectionTable[n] : null;
+	}
+
+	/**
+	 * Return an estimate of the number of connections which this loop could add
+	 * to its existing games.  This may be called from any thread, and is used by
+	 * the acceptor to fill existing games before starting new ones.
+	 *
+	 * @return	the estimated number of free slots
+	 */
+	public int getOpenSlots() {
+		return openSlots + creditSlots.get() - pendingCount.get();
+	}
+
+	/**
+	 * Return an estimate of the number of connections in this loop.  This may be
+	 * called from any thread.
+	 *
+	 * @return	the estimated number of connections
+	 */
+	public int getConnectionCount() {
+		return connectionCount + pendingCount.get();
+	}
+
+	/**
+	 * Assign a newly accepted connection to this loop, which is expected to start
+	 * a new game for it.  The slots of the new game are counted as open until the
+	 * loop next publishes its actual number of free slots.
+	 *
+	 * @param chan	the accepted connection
+	 */
+	public void assignNewGame(SocketChannel chan) {
+		creditSlots.addAndGet(server.getGameSlots());
+		assign(chan);
+	}
+
+	/**
+	 * Assign a newly accepted connection to this loop.  If this is called from
+	 * another thread, the connection is queued and the loop is woken to attach
+	 * it to a game.
+	 *
+	 * @param chan	the accepted connection
+	 */
+	public void assign(SocketChannel chan) {
+		if (Thread.currentThread() == thread) {
+			attach(chan);
+		} else {
+			pendingCount.incrementAndGet();
+			handoff.add(chan);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Start the idle timer of a new connection, if the server has an idle
+	 * timeout.  This must be called on the loop thread.
+	 *
+	 * @param timer	the timer of the connection
+	 */
+	void startIdleTimer(TimingWheel.Timer timer) {
+		if (idleWheel != null) {
+			idleWheel.add(timer);
+		}
+	}
+
+	/**
+	 * Stop the idle timer of a connection which is closing.  This must be
+	 * called on the loop thread.
+	 *
+	 * @param timer	the timer of the connection
+	 */
+	void stopIdleTimer(TimingWheel.Timer timer) {
+		if (idleWheel != null) {
+			idleWheel.remove(timer);
+		}
+	}
+
+	/**
+	 * Start sending round-trip probes to a player which has asked for them.
+	 * This must be called on the loop thread.
+	 *
+	 * @param player	the player
+	 */
+	void startProbes(Player player) {
+		if (probedPlayers.isEmpty()) {
+			nextProbeTime = System.nanoTime();
+		}
+		probedPlayers.add(player);
+	}
+
+	/**
+	 * Stop sending round-trip probes to a player which is closing.  This must
+	 * be called on the loop thread.
+	 *
+	 * @param player	the player
+	 */
+	void stopProbes(Player player) {
+		probedPlayers.remove(player);
+	}
+
+	/**
+	 * Request the loop to exit.
+	 */
+	public void shutdown() {
+		quit = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * This contains the main loop, which runs until <code>shutdown()</code> is
+	 * called or the selector fails.
+	 */
+	public void run() {
+		thread = Thread.currentThread();
+		System.out.println("Event loop " + loopId + " started.");
+		if (server.getIdleTimeout() > 0) {
+			idleWheel = new TimingWheel(server.getIdleTimeout());
+		}
+
+		while (!quit) {
+			int readyCount;
+			try {
+				if (wakeDeadline != 0) {
+					long timeout = (wakeDeadline - System.nanoTime() + 999999) / 1000000;
+					readyCount = selector.select(Math.max(timeout, 1));
+				} else {
+					readyCount = selector.select();
+				}
+			} catch (IOException iox) {
+				System.out.println("I/O exception from select() in loop " + loopId);
+				break;
+			}
+			if (quit || server.quit) {
+				break;
+			}
+			long startTime = System.nanoTime();
+			attachPending();
+			Set<SelectionKey> readyKeys = selector.selectedKeys();
+			Iterator<SelectionKey> iter = readyKeys.iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					server.acceptConnections();
+				} else if ((datagrams != null) && (key.attachment() == datagrams)) {
+					datagrams.read();
+				} else if (key.attachment() instanceof Spectator) {
+					Spectator spectator = (Spectator) key.attachment();
+					if (key.isWritable()) {
+						markDirty(spectator.getGame());
+					}
+					if (key.isReadable()) {
+						try {
+							spectator.read();
+						} catch (IOException iox) {
+							spectator.getGame().removeSpectator(spectator);
+						}
+					}
+				} else {
+					Player player = (Player) key.attachment();
+					if (key.isWritable()) {
+						markDirty(player);
+					}
+					if (!key.isReadable()) {
+						continue;
+					}
+					try {
+						player.read();
+					} catch (IOException iox) {
+						int id = player.getId();
+						Game game = player.getGame();
+						System.out.println(
+							"I/O exception on read from player id "
+								+ id + " in game " + game.getGameId());
+						game.removePlayer(player);
+						if (id > 0) {
+							game.queueMessage(id, Player.makeLeaveMessage(id));
+						}
+					}
+				}
+			}
+
+			// After all players have read everything they can,
+			// give them a chance to send.
+			wakeDeadline = 0;
+			if (idleWheel != null) {
+				expireIdle();
+			}
+			if (!probedPlayers.isEmpty()) {
+				sendProbes();
+			}
+			writeAll();
+			if (relayOutbox != null) {
+				relayOutbox.flush();
+			}
+			if (pendingCount.get() == 0) {
+				creditSlots.set(0);
+			}
+			openSlots = router.getFreeSlots();
+			connectionCount = router.getConnectionCount();
+			StatusServer statusServer = server.getStatusServer();
+			if (statusServer != null) {
+				publishStatus(statusServer.getInterval());
+			}
+			metrics.selected(readyCount, System.nanoTime() - startTime);
+		}
+
+		router.closeAll();
+		if (datagrams != null) {
+			datagrams.close();
+		}
+		try {
+			selector.close();
+		} catch (IOException iox) {
+			System.out.println("I/O exception while closing selector in loop " + loopId);
+		}
+		System.out.println("Event loop " + loopId + " exit");
+	}
+
+	/**
+	 * Ask for the loop to run another pass by a given time, even if no channel
+	 * is ready, such as to write the output of a player whose output has been
+	 * deferred.  This must be called on the loop thread, after the select.
+	 *
+	 * @param deadline	the time, as given by <code>System.nanoTime()</code>
+	 */
+	void wakeBy(long deadline) {
+		if ((wakeDeadline == 0) || (deadline - wakeDeadline < 0)) {
+			wakeDeadline = deadline;
+		}
+	}
+
+	/**
+	 * Return the latest snapshot of the games of this loop, for the status
+	 * endpoint.  This may be called from any thread.
+	 *
+	 * @return	the <code>StatusSnapshot</code>, or <code>null</code> if none has
+	 * 			been taken yet
+	 */
+	public StatusSnapshot getStatus() {
+		return status;
+	}
+
+	/**
+	 * Publish a snapshot of the games of this loop.
+	 *
+	 * @param snapshot	the <code>StatusSnapshot</code>
+	 */
+	protected void setStatus(StatusSnapshot snapshot) {
+		status = snapshot;
+	}
+
+	/**
+	 * Take a snapshot of the games at the end of a pass, unless one was taken
+	 * less than an interval ago.  In that case the loop is woken when the
+	 * interval is over, so that the changes made by this pass are published
+	 * even if nothing else happens.
+	 *
+	 * @param interval	the time in milliseconds between snapshots
+	 */
+	private void publishStatus(long interval) {
+		long now = System.nanoTime();
+		if ((status == null) || (now - nextStatusTime >= 0)) {
+			status = new StatusSnapshot(loopId, System.currentTimeMillis(), router.getGames());
+			nextStatusTime = now + interval * 1000000L;
+		} else {
+			wakeBy(nextStatusTime);
+		}
+	}
+
+	/**
+	 * Remove the players from which nothing has been received within the idle
+	 * timeout, and send leave messages for them to the other players.  If any
+	 * timers remain, the loop is woken for the next tick of the wheel.
+	 */
+	private void expireIdle() {
+		idleWheel.advance(System.nanoTime(), failedPlayers);
+		for (Player player : failedPlayers) {
+			Game game = player.getGame();
+			int id = player.getId();
+			System.out.println("Idle timeout for player id " + id
+				+ " in game " + game.getGameId());
+			metrics.idleEvicted();
+			game.removePlayer(player);
+			if (id > 0) {
+				game.queueMessage(id, Player.makeLeaveMessage(id));
+			}
+		}
+		failedPlayers.clear();
+		if (idleWheel.size() > 0) {
+			wakeBy(idleWheel.getNextTickTime());
+		}
+	}
+
+	/**
+	 * Write the pending output of the players in the dirty set.  Players whose
+	 * connections fail, or who have fallen too far behind, are removed, and the
+	 * other players in their games are sent leave messages for them.  A player
+	 * whose output is deferred puts itself back in the set for the next pass.
+	 */
+	private void writeAll() {
+		long maxDepth = 0;
+		do {
+			ArrayList<Player> players = dirtyPlayers;
+			dirtyPlayers = flushingPlayers;
+			flushingPlayers = players;
+			for (Player player : players) {
+				player.dirty = false;
+				if (!player.isOpen()) {
+					continue;
+				}
+				try {
+					player.write();
+					OutputQueue queue = player.getOutputQueue();
+					int depth = queue.size();
+					int bytes = queue.getPendingBytes();
+					queuedMessages += depth - player.reportedDepth;
+					queuedBytes += bytes - player.reportedBytes;
+					player.reportedDepth = depth;
+					player.reportedBytes = bytes;
+					if (depth > maxDepth) {
+						maxDepth = depth;
+					}
+				} catch (IOException iox) {
+					System.out.println(
+						"I/O exception on write to player id "
+							+ player.getId() + " in game " + player.getGame().getGameId()
+							+ ": " + iox.getMessage());
+					failedPlayers.add(player);
+				}
+			}
+			players.clear();
+			if (failedPlayers.isEmpty()) {
+				break;
+			}
+			for (Player player : failedPlayers) {
+				Game game = player.getGame();
+				int id = player.getId();
+				game.removePlayer(player);
+				if (id > 0) {
+					game.queueMessage(id, Player.makeLeaveMessage(id));
+				}
+			}
+			failedPlayers.clear();
+			// Go round again to send the leave messages
+		} while (true);
+		for (Game game : dirtyGames) {
+			game.spectatorsDirty = false;
+			game.writeSpectators();
+		}
+		dirtyGames.clear();
+		metrics.queues(queuedMessages, queuedBytes, maxDepth);
+	}
+
+	/**
+	 * Probe the players which have asked for probes, if the probe interval has
+	 * passed, and ask to be woken when it next passes.
+	 */
+	private void sendProbes() {
+		long now = System.nanoTime();
+		if (now - nextProbeTime >= 0) {
+			for (Player player : probedPlayers) {
+				player.probe(now);
+			}
+			nextProbeTime = now + (Player.PROBE_INTERVAL * 1000000L);
+		}
+		wakeBy(nextProbeTime);
+	}
+
+	private void attachPending() {
+		SocketChannel chan;
+		while ((chan = handoff.poll()) != null) {
+			attach(chan);
+			pendingCount.decrementAndGet();
+		}
+		Spectator spectator;
+		while ((spectator = spectatorHandoff.poll()) != null) {
+			attach(spectator);
+		}
+		Relayed relayed;
+		while ((relayed = relayHandoff.poll()) != null) {
+			Game game = router.findGame(relayed.gameId);
+			if (game != null) {
+				game.relayed(relayed.fromId, relayed.message);
+			}
+		}
+	}
+
+	private void attach(Spectator spectator) {
+		Game game = router.findGame(spectator.getGameId());
+		if (game == null) {
+			spectator.close();
+			return;
+		}
+		try {
+			spectator.register(this);
+		} catch (IOException iox) {
+			System.out.println("Failed to register spectator in loop " + loopId);
+			spectator.close();
+			return;
+		}
+		game.addSpectator(spectator);
+		System.out.println("Spectator added to game " + game.getGameId() + ".");
+	}
+
+	private void attach(SocketChannel chan) {
+		// Find a game with room for this player
+		Game game = router.selectGame();
+		if (game == null) {
+			metrics.rejected();
+			server.closeChannel(chan);
+			return;
+		}
+		try {
+			new Player(game, chan);
+			metrics.accepted();
+		} catch (IOException iox) {
+			System.out.println("Failed to register connection in loop " + loopId);
+			metrics.rejected();
+			server.closeChannel(chan);
+		}
+	}
+
+	/**
+	 * A message from another node, waiting to be delivered by the loop.
+	 */
+	static final class Relayed {
+		final int gameId;
+		final int fromId;
+		final byte[] message;
+
+		Relayed(int gameId, int fromId, byte[] message) {
+			super();
+			this.gameId = gameId;
+			this.fromId = fromId;
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,1123 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class joins several server processes into one set of games.  Every
+ * node of a federation hosts some of the players of each game, and a game is
+ * the same game on every node which has the same game id.  The eight Imlac ids
+ * of each game are shared out among the nodes: node <i>k</i> of <i>n</i> gives
+ * its players the ids <i>i</i> for which (<i>i</i> - 1) mod <i>n</i> is
+ * <i>k</i>.  So the nodes never have to agree on an id, and a message can be
+ * told to belong to the node which owns its sender's id.
+ * <p>
+ * A node in a federation gives each new game the lowest game id which none of
+ * its games has, so every node fills games 1, 2 and so on in the same order,
+ * and a player always joins the game that the other nodes call by the same
+ * id.  A game whose last local connection leaves is kept while it has players
+ * on other nodes, so that their messages still reach it and the next player
+ * here joins them.
+ * <p>
+ * Each pair of nodes is connected by a relay link, a TCP connection which
+ * the node with the lower index opens and keeps open, retrying every second.
+ * Every message that a local player sends to its game is encoded as a record
+ * with the game id and the sender's id into an <code>Outbox</code> which
+ * belongs to the thread that runs the game, without taking any lock.  An event
+ * loop has one outbox for all its games, and hands what it holds to each link
+ * as one batch after every pass.  Each link queues the batches without a lock,
+ * like the handoff queues of the event loops, and a thread for each link
+ * writes all the batches that are waiting as one frame, so that the links are
+ * batched for free under load.  Each frame has a sequence number,
+ * which the other end checks.  As the link is a single TCP connection written
+ * by one thread, the joins, leaves and kills of a node arrive everywhere in the
+ * order in which it sent them.  A record received is broadcast to the local
+ * players of its game, on the thread of the event loop which hosts it, and is
+ * never relayed further.
+ * <p>
+ * The federation keeps a roster of the players of every game on the other
+ * nodes, with their "new player" messages and locations, from the records
+ * that it receives.  A player joining a game on one node is sent the players
+ * on the other nodes from it.  When a link opens, each outbox sends it the
+ * local players of its games from their <code>WorldSnapshot</code>, on its own
+ * thread, before any more of their records.  When a link is lost, the players
+ * of the other node are removed from the rosters and the local players are
+ * sent leave messages for them.
+ * <p>
+ * A player which rejoins with its name is only recognized on the node which
+ * it left.  If the batches for a link pile up faster than they can be written,
+ * the link is dropped and opened again, like a spectator which falls behind.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Server#startFederation(int, InetSocketAddress[])
+ */
+public class Federation {
+
+	/** First word of the greeting which each end of a relay link sends */
+	public static final int MAGIC = 0x4d5a5231;
+
+	/** Largest frame sent on a relay link, including its header */
+	public static final int FRAME_SIZE = 65536;
+
+	/** Time in milliseconds between attempts to open a relay link */
+	public static final long RETRY_INTERVAL = 1000;
+
+	/** Most data waiting to be written on a relay link before it is dropped */
+	public static final int QUEUE_LIMIT = 16 * FRAME_SIZE;
+
+	private static final int HEADER_SIZE = 8;			// Frame length and sequence
+	private static final int RECORD_HEADER_SIZE = 7;	// Game id, sender id and length
+	private static final int BATCH_SIZE = FRAME_SIZE - HEADER_SIZE;	// Records in a frame
+	private static final int OUTBOX_SIZE = 256;			// Records of one game at a time
+	private static final int PLAYER_SIZE = 17;			// New player and location
+	private static final int TRACK_SIZE = 16;			// Locations kept for each player
+
+	/** Size of the messages describing the remote players of a game */
+	static final int REMOTE_SIZE = Game.MAX_PLAYERS * PLAYER_SIZE;
+
+	private final Server server;
+	private final int node;
+	private final InetSocketAddress[] nodes;
+	private final ServerSocketChannel listenChannel;
+	private final Link[] links;
+	private final HashMap<Integer, Roster> rosters = new HashMap<Integer, Roster>();
+	private final AtomicLong recordsOut = new AtomicLong();
+	private final AtomicLong recordsIn = new AtomicLong();
+	private final AtomicLong framesOut = new AtomicLong();
+	private final AtomicLong framesIn = new AtomicLong();
+	private final AtomicLong recordsRejected = new AtomicLong();
+	private volatile boolean quit = false;
+
+	/**
+	 * Create the federation of a server and listen for relay links.  The links
+	 * are not opened until <code>start()</code> is called.
+	 *
+	 * @param server		the <code>Server</code> which is this node
+	 * @param node			the index of this node in the list of nodes
+	 * @param nodes			the relay address of every node, the same list on
+	 * 						every node
+	 * @throws IOException	if the relay address of this node cannot be bound
+	 */
+	public Federation(Server server, int node, InetSocketAddress[] nodes) throws IOException {
+		super();
+		if ((nodes.length < 1) || (nodes.length > Game.MAX_PLAYERS)) {
+			throw new IllegalArgumentException("A federation has 1 to "
+				+ Game.MAX_PLAYERS + " nodes");
+		}
+		if ((node < 0) || (node >= nodes.length)) {
+			throw new IllegalArgumentException("No node " + node + " in the federation");
+		}
+		this.server = server;
+		this.node = node;
+		this.nodes = nodes.clone();
+		links = new Link[nodes.length];
+		for (int i = 0; i < nodes.length; ++i) {
+			if (i != node) {
+				links[i] = new Link(i);
+			}
+		}
+		listenChannel = ServerSocketChannel.open();
+		listenChannel.socket().setReuseAddress(true);
+		listenChannel.socket().bind(nodes[node]);
+	}
+
+	/**
+	 * Parse a list of relay addresses, separated by commas, each of the form
+	 * <i>host</i><code>:</code><i>port</i>.
+	 *
+	 * @param list	the list of addresses
+	 * @return		the addresses
+	 */
+	public static InetSocketAddress[] parseNodes(String list) {
+		String[] items = list.split(",");
+		InetSocketAddress[] result = new InetSocketAddress[items.length];
+		for (int i = 0; i < items.length; ++i) {
+			int colon = items[i].lastIndexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("No port in relay address " + items[i]);
+			}
+			result[i] = new InetSocketAddress(items[i].substring(0, colon),
+				Integer.parseInt(items[i].substring(colon + 1)));
+		}
+		return result;
+	}
+
+	/**
+	 * Start accepting relay links from the nodes with lower indexes, and opening
+	 * them to the nodes with higher indexes.
+	 */
+	public void start() {
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "Maze relay acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		for (int i = node + 1; i < links.length; ++i) {
+			final Link link = links[i];
+			Thread connector = new Thread(new Runnable() {
+				public void run() {
+					connect(link);
+				}
+			}, "Maze relay to node " + i);
+			connector.setDaemon(true);
+			connector.start();
+		}
+	}
+
+	/**
+	 * Close the relay links, and stop listening for more.
+	 */
+	public void stop() {
+		quit = true;
+		try {
+			listenChannel.close();
+		} catch (IOException iox) {
+		}
+		for (Link link : links) {
+			if (link != null) {
+				link.fail();
+			}
+		}
+	}
+
+	/**
+	 * Return the index of this node.
+	 *
+	 * @return	the node index
+	 */
+	public int getNode() {
+		return node;
+	}
+
+	/**
+	 * Return the number of nodes in the federation.
+	 *
+	 * @return	the number of nodes
+	 */
+	public int getNodeCount() {
+		return nodes.length;
+	}
+
+	/**
+	 * Return the index of the node which gives out an Imlac id.
+	 *
+	 * @param id	the Imlac id (1-8)
+	 * @return		the node index
+	 */
+	public int ownerOf(int id) {
+		return (id - 1) % nodes.length;
+	}
+
+	/**
+	 * Return <code>true</code> if this node gives out an Imlac id.
+	 *
+	 * @param id	the Imlac id
+	 * @return		<code>true</code> if the id belongs to this node
+	 */
+	public boolean owns(int id) {
+		return (id > 0) && (id <= Game.MAX_PLAYERS) && (ownerOf(id) == node);
+	}
+
+	/**
+	 * Return the number of Imlac ids of each game which this node gives out,
+	 * which is the number of slots in each of its games.
+	 *
+	 * @return	the number of ids
+	 */
+	public int getShare() {
+		return (Game.MAX_PLAYERS - node + nodes.length - 1) / nodes.length;
+	}
+
+	/**
+	 * Return the number of relay links which are open.
+	 *
+	 * @return	the number of links
+	 */
+	public int getLinkCount() {
+		int count = 0;
+		for (Link link : links) {
+			if ((link != null) && link.isUp()) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Return the number of messages relayed from local players to other nodes.
+	 * A message sent on several links is counted once, when its outbox hands
+	 * it to the links.
+	 *
+	 * @return	the number of records
+	 */
+	public long getRecordsOut() {
+		return recordsOut.get();
+	}
+
+	/**
+	 * Return the number of messages received from other nodes.
+	 *
+	 * @return	the number of records
+	 */
+	public long getRecordsIn() {
+		return recordsIn.get();
+	}
+
+	/**
+	 * Return the number of frames written on all the relay links.
+	 *
+	 * @return	the number of frames
+	 */
+	public long getFramesOut() {
+		return framesOut.get();
+	}
+
+	/**
+	 * Return the number of frames read from all the relay links.
+	 *
+	 * @return	the number of frames
+	 */
+	public long getFramesIn() {
+		return framesIn.get();
+	}
+
+	/**
+	 * Return the number of records received for an Imlac id which the sending
+	 * node does not own, which are discarded.
+	 *
+	 * @return	the number of records
+	 */
+	public long getRecordsRejected() {
+		return recordsRejected.get();
+	}
+
+	/**
+	 * Create an outbox for the records of some local games.
+	 *
+	 * @param games		the games, which must only be used by the thread which
+	 * 					uses the outbox
+	 * @param immediate	<code>true</code> to hand each record to the links as
+	 * 					soon as it is added, for a game with an outbox of its own
+	 * @return			the <code>Outbox</code>
+	 */
+	Outbox newOutbox(Collection<Game> games, boolean immediate) {
+		return new Outbox(games, immediate);
+	}
+
+	/**
+	 * Encode the players of a game which are on other nodes, as "new player"
+	 * and location messages for a player joining the game here.
+	 *
+	 * @param gameId	the game id
+	 * @param dst		the destination array, with room for
+	 * 					<code>REMOTE_SIZE</code> bytes
+	 * @return			the length of the messages, which is zero if there are
+	 * 					no such players
+	 */
+	int encodeRemote(int gameId, byte[] dst) {
+		int len = 0;
+		synchronized (this) {
+			Roster roster = rosters.get(Integer.valueOf(gameId));
+			if (roster == null) {
+				return 0;
+			}
+			for (int id = 1; id <= Game.MAX_PLAYERS; ++id) {
+				if (!owns(id)) {
+					len = roster.encode(id, dst, len);
+				}
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Return the locations a player of a game has had since a given time, and
+	 * the one it had at that time, most recent first.
+	 *
+	 * @param gameId	the game id
+	 * @param id		the Imlac id of the player
+	 * @param since		the time in milliseconds
+	 * @param dst		the array for the locations, each the direction, y and
+	 * 					x, six bits each from the top
+	 * @return			the number of locations, which is zero if the location
+	 * 					is not known, or -1 if the player has moved too often
+	 * 					for its location at that time to be known
+	 */
+	synchronized int getPositions(int gameId, int id, long since, int[] dst) {
+		Roster roster = rosters.get(Integer.valueOf(gameId));
+		return (roster != null) ? roster.getPositions(id, since, dst) : 0;
+	}
+
+	/**
+	 * Return <code>true</code> if a game has players on other nodes.
+	 *
+	 * @param gameId	the game id
+	 * @return			<code>true</code> if the game has remote players
+	 */
+	synchronized boolean hasRemotePlayers(int gameId) {
+		Roster roster = rosters.get(Integer.valueOf(gameId));
+		if (roster != null) {
+			for (int id = 1; id <= Game.MAX_PLAYERS; ++id) {
+				if (!owns(id) && roster.isPresent(id)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return the name of a player of a game.
+	 *
+	 * @param gameId	the game id
+	 * @param id		the Imlac id of the player
+	 * @return			a copy of the name, or <code>null</code> if there is no
+	 * 					such player
+	 */
+	synchronized byte[] getName(int gameId, int id) {
+		Roster roster = rosters.get(Integer.valueOf(gameId));
+		return (roster != null) ? roster.getName(id) : null;
+	}
+
+	private void apply(int gameId, byte[] buf, int off, int len) {
+		Integer key = Integer.valueOf(gameId);
+		Roster roster = rosters.get(key);
+		if (roster == null) {
+			roster = new Roster();
+			rosters.put(key, roster);
+		}
+		roster.apply(buf, off, len);
+		if (roster.isEmpty()) {
+			rosters.remove(key);
+		}
+	}
+
+	/**
+	 * Remove the players of a node from all the rosters.  This must be called
+	 * while holding the lock on the federation.
+	 *
+	 * @param peer	the node index
+	 * @return		the game id and Imlac id of each player removed
+	 */
+	private ArrayList<int[]> removeNode(int peer) {
+		ArrayList<int[]> gone = new ArrayList<int[]>();
+		Iterator<Map.Entry<Integer, Roster>> iter = rosters.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Integer, Roster> entry = iter.next();
+			Roster roster = entry.getValue();
+			for (int id = 1; id <= Game.MAX_PLAYERS; ++id) {
+				if ((ownerOf(id) == peer) && roster.remove(id)) {
+					gone.add(new int[] { entry.getKey().intValue(), id });
+				}
+			}
+			if (roster.isEmpty()) {
+				iter.remove();
+			}
+		}
+		return gone;
+	}
+
+	private void sendLeaves(ArrayList<int[]> gone) {
+		for (int[] player : gone) {
+			deliver(player[0], player[1], Player.makeLeaveMessage(player[1]));
+		}
+	}
+
+	/**
+	 * Pass a message received from another node to the event loop which hosts
+	 * its game here, if any.
+	 */
+	private void deliver(int gameId, int fromId, byte[] message) {
+		EventLoop loop = server.findGameLoop(gameId);
+		if (loop != null) {
+			loop.relay(gameId, fromId, message);
+		}
+	}
+
+	private void received(Link link, int gameId, int fromId, byte[] buf, int off, int len) {
+		if ((fromId <= 0) || (fromId > Game.MAX_PLAYERS) || (ownerOf(fromId) != link.peer)) {
+			recordsRejected.incrementAndGet();
+			return;
+		}
+		recordsIn.incrementAndGet();
+		synchronized (this) {
+			apply(gameId, buf, off, len);
+		}
+		deliver(gameId, fromId, Arrays.copyOfRange(buf, off, off + len));
+	}
+
+	/**
+	 * Begin a session on a link.  The players of the other node left over from
+	 * any earlier session are removed, and the event loops are woken, so that
+	 * each outbox sends the link the players of this node before anything else.
+	 */
+	private void linkUp(Link link, SocketChannel chan) {
+		ArrayList<int[]> gone;
+		synchronized (this) {
+			gone = removeNode(link.peer);
+			link.open(chan);
+		}
+		System.out.println("Relay link to node " + link.peer + " up");
+		sendLeaves(gone);
+		for (EventLoop loop : server.getEventLoops()) {
+			loop.relayLinkUp();
+		}
+	}
+
+	/**
+	 * End a session on a link, and remove the players of the other node, unless
+	 * a newer session has taken over the link.
+	 */
+	private void linkLost(Link link, SocketChannel chan) {
+		ArrayList<int[]> gone;
+		synchronized (this) {
+			if (!link.close(chan)) {
+				return;
+			}
+			gone = removeNode(link.peer);
+		}
+		if (!quit) {
+			System.out.println("Relay link to node " + link.peer + " lost");
+		}
+		sendLeaves(gone);
+	}
+
+	private void accept() {
+		while (!quit) {
+			final SocketChannel chan;
+			try {
+				chan = listenChannel.accept();
+			} catch (IOException iox) {
+				if (!quit) {
+					System.out.println("Accept failed on relay address of node " + node);
+				}
+				break;
+			}
+			Thread session = new Thread(new Runnable() {
+				public void run() {
+					try {
+						chan.socket().setTcpNoDelay(true);
+						int peer = handshake(chan, -1);
+						links[peer].run(chan);
+					} catch (IOException iox) {
+						System.out.println("Relay handshake failed: " + iox.getMessage());
+						closeChannel(chan);
+					}
+				}
+			}, "Maze relay session");
+			session.setDaemon(true);
+			session.start();
+		}
+	}
+
+	private void connect(Link link) {
+		while (!quit) {
+			SocketChannel chan = null;
+			try {
+				chan = SocketChannel.open(nodes[link.peer]);
+				chan.socket().setTcpNoDelay(true);
+				handshake(chan, link.peer);
+				link.run(chan);
+			} catch (IOException iox) {
+				closeChannel(chan);
+			}
+			try {
+				Thread.sleep(RETRY_INTERVAL);
+			} catch (InterruptedException iex) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Exchange greetings on a new relay link.  Each end sends the magic number,
+	 * its node index and the number of nodes.
+	 *
+	 * @param chan			the connection
+	 * @param expected		the index of the node which was connected to, or -1
+	 * 						if the connection was accepted
+	 * @return				the index of the other node
+	 * @throws IOException	if the greeting is wrong or the connection fails
+	 */
+	private int handshake(SocketChannel chan, int expected) throws IOException {
+		ByteBuffer hello = ByteBuffer.allocate(12);
+		hello.putInt(MAGIC).putInt(node).putInt(nodes.length);
+		hello.flip();
+		while (hello.hasRemaining()) {
+			chan.write(hello);
+		}
+		hello.clear();
+		readFully(chan, hello);
+		int peer = hello.getInt(4);
+		if ((hello.getInt(0) != MAGIC) || (hello.getInt(8) != nodes.length)) {
+			throw new IOException("Not a relay link of this federation");
+		}
+		if ((expected >= 0) ? (peer != expected) : ((peer < 0) || (peer >= node))) {
+			throw new IOException("Unexpected relay link from node " + peer);
+		}
+		return peer;
+	}
+
+	private static void readFully(SocketChannel chan, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (chan.read(buf) < 0) {
+				throw new IOException("Relay link closed");
+			}
+		}
+	}
+
+	private static void closeChannel(SocketChannel chan) {
+		if (chan != null) {
+			try {
+				chan.close();
+			} catch (IOException iox) {
+			}
+		}
+	}
+
+	/**
+	 * The records of the local players of some games, encoded by the one
+	 * thread at a time which may use those games, and handed to the links in
+	 * batches.  Each event loop has one outbox for all its games, which it
+	 * flushes after each pass.  In the thread-per-connection engine each game
+	 * has an outbox of its own, guarded by the lock on the game, which hands
+	 * over each record at once.
+	 * <p>
+	 * An outbox also remembers the session of each link to which it last sent
+	 * the players of its games.  When it finds a new session, it sends the
+	 * players from the snapshots of its games instead of its records, which the
+	 * snapshots already include, so the other node learns of each player before
+	 * any of its messages.  This relies on a game updating its snapshot for a
+	 * join, move, kill or leave before it queues the message.
+	 */
+	final class Outbox {
+		private final Collection<Game> games;
+		private final boolean immediate;
+		private final ByteBuffer records;
+		private final int[] synced;			// Session of each link last sent the players
+		private int recordCount;
+
+		Outbox(Collection<Game> games, boolean immediate) {
+			super();
+			this.games = games;
+			this.immediate = immediate;
+			records = ByteBuffer.allocate(immediate ? OUTBOX_SIZE : BATCH_SIZE);
+			synced = new int[nodes.length];
+		}
+
+		/**
+		 * Add a message from a local player to the records for the other nodes.
+		 *
+		 * @param gameId	the game id
+		 * @param fromId	the Imlac id of the sender, which this node owns
+		 * @param message	the encoded message
+		 */
+		void add(int gameId, int fromId, MessageBuffer message) {
+			int len = message.length();
+			if (RECORD_HEADER_SIZE + len > records.capacity()) {
+				return;
+			}
+			if (RECORD_HEADER_SIZE + len > records.remaining()) {
+				flush();
+			}
+			records.putInt(gameId);
+			records.put((byte) fromId);
+			records.putShort((short) len);
+			message.copyTo(records);
+			++recordCount;
+			if (immediate) {
+				flush();
+			}
+		}
+
+		/**
+		 * Hand the records to the links as one batch, shared by all of them, or
+		 * send the players of the games to a link which has a new session.
+		 */
+		void flush() {
+			byte[] batch = null;
+			for (Link link : links) {
+				if ((link == null) || !link.up) {
+					continue;
+				}
+				int session = link.session;
+				if (synced[link.peer] != session) {
+					synced[link.peer] = session;
+					sendPlayers(link, session);
+				} else if (records.position() > 0) {
+					if (batch == null) {
+						batch = Arrays.copyOf(records.array(), records.position());
+					}
+					link.offer(session, batch);
+				}
+			}
+			if (recordCount > 0) {
+				recordsOut.addAndGet(recordCount);
+				recordCount = 0;
+			}
+			records.clear();
+		}
+
+		private void sendPlayers(Link link, int session) {
+			ByteBuffer buf = ByteBuffer.allocate(BATCH_SIZE);
+			for (Game game : games) {
+				WorldSnapshot snapshot = game.getSnapshot();
+				for (int id = 1; id <= Game.MAX_PLAYERS; ++id) {
+					if (!snapshot.contains(id)) {
+						continue;
+					}
+					if (buf.remaining() < RECORD_HEADER_SIZE + WorldSnapshot.RECORD_LENGTH) {
+						link.offer(session, Arrays.copyOf(buf.array(), buf.position()));
+						buf.clear();
+					}
+					buf.putInt(game.getGameId());
+					buf.put((byte) id);
+					buf.putShort((short) WorldSnapshot.RECORD_LENGTH);
+					snapshot.copyTo(id, buf);
+				}
+			}
+			if (buf.position() > 0) {
+				link.offer(session, Arrays.copyOf(buf.array(), buf.position()));
+			}
+		}
+	}
+
+	/**
+	 * A batch of records waiting to be written on a link, in one session.
+	 */
+	private static final class Batch {
+		final int session;
+		final byte[] records;
+
+		Batch(int session, byte[] records) {
+			super();
+			this.session = session;
+			this.records = records;
+		}
+	}
+
+	/**
+	 * The relay link to one other node.  Batches of records are queued without
+	 * a lock, and the writer thread packs all that are waiting into a frame.
+	 * The lock on the link only guards the start and end of a session.
+	 */
+	private final class Link {
+		final int peer;
+		private volatile SocketChannel chan;	// Connection of the session, or null
+		volatile boolean up;				// Batches may be queued
+		volatile int session;				// Number of the current session
+		private volatile Thread writer;		// Writer of the session, or null
+		private final ConcurrentLinkedQueue<Batch> queue = new ConcurrentLinkedQueue<Batch>();
+		private final AtomicInteger queuedBytes = new AtomicInteger();
+		private int outSeq;					// Sequence of the last frame written
+		private int inSeq;					// Sequence of the last frame read
+
+		Link(int peer) {
+			super();
+			this.peer = peer;
+		}
+
+		boolean isUp() {
+			return up;
+		}
+
+		synchronized void open(SocketChannel chan) {
+			if (this.chan != null) {
+				closeChannel(this.chan);
+			}
+			this.chan = chan;
+			queue.clear();
+			queuedBytes.set(0);
+			outSeq = 0;
+			++session;
+			up = true;
+		}
+
+		/**
+		 * Close the connection of a session.
+		 *
+		 * @return	<code>true</code> if it was the current session
+		 */
+		synchronized boolean close(SocketChannel chan) {
+			closeChannel(chan);
+			if (this.chan != chan) {
+				return false;
+			}
+			this.chan = null;
+			up = false;
+			LockSupport.unpark(writer);
+			return true;
+		}
+
+		/**
+		 * Close the connection, so that the reader loses the session.
+		 */
+		synchronized void fail() {
+			up = false;
+			closeChannel(chan);
+			LockSupport.unpark(writer);
+		}
+
+		/**
+		 * Queue a batch of records for a session.  A batch for a session which
+		 * has ended is dropped by the writer.  This may be called from any
+		 * thread.
+		 *
+		 * @param session	the session number
+		 * @param records	the records, which are not changed afterwards
+		 */
+		void offer(int session, byte[] records) {
+			if (queuedBytes.addAndGet(records.length) > QUEUE_LIMIT) {
+				System.out.println("Relay link to node " + peer + " fell behind");
+				fail();
+				return;
+			}
+			queue.add(new Batch(session, records));
+			LockSupport.unpark(writer);
+		}
+
+		/**
+		 * Run a session on a connection which has been greeted, reading on this
+		 * thread and writing on another, until the connection fails.
+		 */
+		void run(final SocketChannel chan) {
+			linkUp(this, chan);
+			final int current = session;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					write(chan, current);
+				}
+			}, "Maze relay writer " + peer);
+			thread.setDaemon(true);
+			writer = thread;
+			thread.start();
+			try {
+				read(chan);
+			} catch (IOException iox) {
+				if (!quit) {
+					System.out.println("Relay link to node " + peer + ": " + iox.getMessage());
+				}
+			}
+			linkLost(this, chan);
+		}
+
+		private void write(SocketChannel chan, int current) {
+			ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+			Batch carried = null;
+			try {
+				while (up && (this.chan == chan)) {
+					frame.clear();
+					frame.position(HEADER_SIZE);
+					if (carried != null) {
+						frame.put(carried.records);
+						queuedBytes.addAndGet(-carried.records.length);
+						carried = null;
+					}
+					Batch batch;
+					while ((batch = queue.peek()) != null) {
+						if (batch.session > current) {
+							// A newer session has the queue
+							return;
+						}
+						queue.poll();
+						if (batch.session < current) {
+							queuedBytes.addAndGet(-batch.records.length);
+							continue;
+						}
+						if (batch.records.length > frame.remaining()) {
+							carried = batch;
+							break;
+						}
+						frame.put(batch.records);
+						queuedBytes.addAndGet(-batch.records.length);
+					}
+					if (frame.position() == HEADER_SIZE) {
+						LockSupport.park(this);
+						continue;
+					}
+					frame.putInt(0, frame.position() - 4);
+					frame.putInt(4, ++outSeq);
+					frame.flip();
+					while (frame.hasRemaining()) {
+						chan.write(frame);
+					}
+					framesOut.incrementAndGet();
+				}
+			} catch (IOException iox) {
+				fail();
+			}
+		}
+
+		private void read(SocketChannel chan) throws IOException {
+			ByteBuffer in = ByteBuffer.allocate(FRAME_SIZE);
+			byte[] data = in.array();
+			inSeq = 0;
+			while (true) {
+				in.clear();
+				in.limit(HEADER_SIZE);
+				readFully(chan, in);
+				int len = in.getInt(0);
+				int seq = in.getInt(4);
+				if ((len < 4) || (len > FRAME_SIZE - 4)) {
+					throw new IOException("bad frame length " + len);
+				}
+				if (seq != ++inSeq) {
+					throw new IOException("frame " + seq + " out of sequence, expected " + inSeq);
+				}
+				in.limit(len + 4);
+				readFully(chan, in);
+				framesIn.incrementAndGet();
+				int pos = HEADER_SIZE;
+				while (pos < len + 4) {
+					if (pos + RECORD_HEADER_SIZE > len + 4) {
+						throw new IOException("bad record in frame " + seq);
+					}
+					int gameId = in.getInt(pos);
+					int fromId = in.get(pos + 4) & 0377;
+					int n = in.getShort(pos + 5) & 0xffff;
+					pos += RECORD_HEADER_SIZE;
+					if (pos + n > len + 4) {
+						throw new IOException("bad record in frame " + seq);
+					}
+					received(this, gameId, fromId, data, pos, n);
+					pos += n;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The players of one game on the other nodes, kept from the messages that
+	 * they send: each one's "new player" message, with its score brought up to date
+	 * by the kills, and its location, moved by the relative moves, with the
+	 * locations it has had recently.
+	 */
+	static final class Roster {
+		private final byte[][] players = new byte[Game.MAX_PLAYERS + 1][];
+		private final int[] positions = new int[Game.MAX_PLAYERS + 1];
+		private final int[][] tracks = new int[Game.MAX_PLAYERS + 1][TRACK_SIZE];
+		private final long[][] trackTimes = new long[Game.MAX_PLAYERS + 1][TRACK_SIZE];
+		private final int[] trackNext = new int[Game.MAX_PLAYERS + 1];
+		private final int[] trackCount = new int[Game.MAX_PLAYERS + 1];
+		private int count;
+
+		Roster() {
+			super();
+			Arrays.fill(positions, -1);
+		}
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		/**
+		 * Take note of some messages sent by a player.
+		 *
+		 * @param buf	the array holding the messages
+		 * @param off	the offset of the first message
+		 * @param len	the length of the messages
+		 */
+		void apply(byte[] buf, int off, int len) {
+			int end = off + len;
+			while (off < end) {
+				int type = buf[off] & 0177;
+				int n = ProtocolDecoder.lengthOf(type);
+				if (off + n > end) {
+					break;
+				}
+				switch (type) {
+					case 1:
+						remove(buf[off + 1]);
+						break;
+					case 2:
+						if (isPresent(buf[off + 1])) {
+							moved(buf[off + 1], ((buf[off + 2] & 3) << 12)
+								| ((buf[off + 4] & 077) << 6) | (buf[off + 3] & 077));
+						}
+						break;
+					case 3:
+						score(buf[off + 1], 8);
+						score(buf[off + 2], 10);
+						break;
+					case 4:
+						int id = buf[off + 1];
+						if ((id > 0) && (id <= Game.MAX_PLAYERS)) {
+							if (players[id] == null) {
+								players[id] = new byte[12];
+								++count;
+							}
+							System.arraycopy(buf, off, players[id], 0, 12);
+						}
+						break;
+					default:
+						move(type);
+						break;
+				}
+				off += n;
+			}
+		}
+
+		boolean isPresent(int id) {
+			return (id > 0) && (id <= Game.MAX_PLAYERS) && (players[id] != null);
+		}
+
+		boolean remove(int id) {
+			if (!isPresent(id)) {
+				return false;
+			}
+			players[id] = null;
+			positions[id] = -1;
+			trackCount[id] = 0;
+			--count;
+			return true;
+		}
+
+		private void score(int id, int offset) {
+			if (isPresent(id)) {
+				byte[] p = players[id];
+				int value = (((p[offset] & 077) << 6) | (p[offset + 1] & 077)) + 1;
+				p[offset] = (byte) (((value >> 6) & 077) | 0100);
+				p[offset + 1] = (byte) ((value & 077) | 0100);
+			}
+		}
+
+		private void move(int b) {
+			int id = (b & 7) + 1;
+			int pos = positions[id];
+			if (!isPresent(id) || (pos < 0)) {
+				return;
+			}
+			int dir = pos >> 12;
+			int y = (pos >> 6) & 077;
+			int x = pos & 077;
+			int step = 0;
+			switch (b >> 3) {
+				case 002:
+					dir = (dir + 1) & 3;
+					break;
+				case 003:
+					dir = (dir - 1) & 3;
+					break;
+				case 014:
+					dir = (dir + 2) & 3;
+					break;
+				case 015:
+					step = 1;
+					break;
+				case 016:
+					step = -1;
+					break;
+				default:
+					return;
+			}
+			switch (dir) {
+				case 0:
+					y -= step;
+					break;
+				case 1:
+					x += step;
+					break;
+				case 2:
+					y += step;
+					break;
+				case 3:
+					x -= step;
+					break;
+			}
+			moved(id, (dir << 12) | ((y & 077) << 6) | (x & 077));
+		}
+
+		private void moved(int id, int pos) {
+			positions[id] = pos;
+			int slot = trackNext[id];
+			tracks[id][slot] = pos;
+			trackTimes[id][slot] = System.currentTimeMillis();
+			trackNext[id] = (slot + 1) & (TRACK_SIZE - 1);
+			if (trackCount[id] <= TRACK_SIZE) {
+				++trackCount[id];
+			}
+		}
+
+		int getPositions(int id, long since, int[] dst) {
+			if (!isPresent(id) || (positions[id] < 0)) {
+				return 0;
+			}
+			int[] track = tracks[id];
+			int n = 0;
+			int count = Math.min(trackCount[id], TRACK_SIZE);
+			for (int i = 1; i <= count; ++i) {
+				int slot = (trackNext[id] - i) & (TRACK_SIZE - 1);
+				dst[n++] = track[slot];
+				if (trackTimes[id][slot] < since) {
+					return n;
+				}
+			}
+			return (trackCount[id] > TRACK_SIZE) ? -1 : n;
+		}
+
+		byte[] getName(int id) {
+			return isPresent(id) ? Arrays.copyOfRange(players[id], 2, 8) : null;
+		}
+
+		/**
+		 * Encode the "new player" message of a player, and its location if it
+		 * is known.
+		 *
+		 * @param id	the Imlac id of the player
+		 * @param dst	the destination array
+		 * @param off	the offset in the array
+		 * @return		the offset after the messages, which is <code>off</code>
+		 * 				if there is no such player
+		 */
+		int encode(int id, byte[] dst, int off) {
+			if (!isPresent(id)) {
+				return off;
+			}
+			System.arraycopy(players[id], 0, dst, off, 12);
+			off += 12;
+			int pos = positions[id];
+			if (pos >= 0) {
+				dst[off] = 2;
+				dst[off + 1] = (byte) id;
+				dst[off + 2] = (byte) ((pos >> 12) | 0100);
+				dst[off + 3] = (byte) ((pos & 077) | 0100);
+				dst[off + 4] = (byte) (((pos >> 6) & 077) | 0100);
+				off += 5;
+			}
+			return off;
+		}
+	}
+}
@@ -0,0 +1,669 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * This class represents one maze game.  A game has up to eight players, each
+ * with one of the eight Imlac ids, and messages from a player are relayed only
+ * to the other players in the same game.  A <code>Server</code> hosts any number
+ * of games, and its <code>GameRouter</code> decides which game a new connection
+ * joins.
+ * <p>
+ * The players of a game are indexed by Imlac id and by name, so that finding
+ * the player for a kill message or for a name which enters the game again does
+ * not depend on the number of players.
+ * <p>
+ * The game also keeps a <code>WorldSnapshot</code> of the "new player" and
+ * location messages of its players, which is sent to each player that joins.
+ * <p>
+ * When the server has a maze model and an out-of-sight interval, location
+ * messages are only sent between players which are in view of each other
+ * along the corridors of the maze, with an occasional one to players out of
+ * sight.  Each player remembers which players' locations it has missed, and is
+ * sent the latest location of each as soon as the two come into view of each
+ * other, because either has moved.
+ * <p>
+ * A game may also be watched by any number of spectators, which are sent every
+ * message broadcast in the game from a shared <code>BroadcastLog</code>.  The
+ * log is only kept while the game has spectators.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see GameRouter
+ */
+public class Game {
+
+	/** Maximum number of players in a game, limited by the Imlac ids 1-8 */
+	public static final int MAX_PLAYERS = 8;
+
+	/** Usual time in milliseconds between locations sent to a player out of sight */
+	public static final long DEFAULT_OUT_OF_SIGHT_INTERVAL = 1000;
+
+	protected final GameRouter router;
+	protected final EventLoop loop;
+	protected final int gameId;
+	protected final MessagePool messagePool;
+	protected final Federation federation;	// Other nodes of the game, or null
+	protected final Federation.Outbox relayOutbox;	// Records for the other nodes, or null
+	protected final int slots;				// Connections this node may hold
+	protected final LatencyHistogram roundTrips = new LatencyHistogram();
+	protected final ArrayList<Player> connections = new ArrayList<Player>(MAX_PLAYERS);
+	protected final ArrayList<Player> playerList = new ArrayList<Player>(MAX_PLAYERS);
+	protected final Player[] playersById = new Player[MAX_PLAYERS + 1];
+	protected final NameIndex playersByName = new NameIndex(MAX_PLAYERS);
+	protected final IdAllocator ids = new IdAllocator(MAX_PLAYERS);
+	protected final WorldSnapshot snapshot = new WorldSnapshot(MAX_PLAYERS);
+	protected final byte[] remoteRecords;	// Players on other nodes, or null
+	protected final ArrayList<Spectator> spectators = new ArrayList<Spectator>();
+	protected BroadcastLog log;				// Log for spectators, or null
+	boolean spectatorsDirty;				// In the event loop's dirty set
+
+	/**
+	 * Create a new, empty game.  Games are created by the <code>GameRouter</code>.
+	 *
+	 * @param router	the <code>GameRouter</code> which places connections in this game
+	 * @param gameId	a number identifying this game within the server
+	 */
+	Game(GameRouter router, int gameId) {
+		super();
+		this.router = router;
+		this.loop = router.getEventLoop();
+		this.gameId = gameId;
+		this.messagePool = loop.getGamePool();
+		federation = loop.getServer().getFederation();
+		slots = loop.getServer().getGameSlots();
+		remoteRecords = (federation != null) ? new byte[Federation.REMOTE_SIZE] : null;
+		relayOutbox = (federation != null) ? loop.getRelayOutbox(this) : null;
+		if (federation != null) {
+			// Keep the ids of the other nodes from being allocated here
+			for (int i = 0; i < MAX_PLAYERS; ++i) {
+				ids.allocate();
+			}
+			for (int id = 1; id <= MAX_PLAYERS; ++id) {
+				if (federation.owns(id)) {
+					freeId(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the number identifying this game within the server.
+	 *
+	 * @return	the game id
+	 */
+	public int getGameId() {
+		return gameId;
+	}
+
+	/**
+	 * Return the event loop which hosts this game.  All the players in the game
+	 * belong to this loop.
+	 *
+	 * @return	the <code>EventLoop</code>
+	 */
+	public EventLoop getEventLoop() {
+		return loop;
+	}
+
+	/**
+	 * Return the <code>MessagePool</code> used to encode messages for the players
+	 * in this game.
+	 *
+	 * @return	the message pool
+	 */
+	public MessagePool getMessagePool() {
+		return messagePool;
+	}
+
+	/**
+	 * Return the number of connections attached to this game, including
+	 * connections which have not yet sent a name and been assigned an id.
+	 *
+	 * @return	the number of connections
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Return <code>true</code> if this game has no players, here or on the
+	 * other nodes of a federation, and so may be discarded.
+	 *
+	 * @return	<code>true</code> if the game has no players
+	 */
+	boolean isIdle() {
+		return connections.isEmpty()
+			&& ((federation == null) || !federation.hasRemotePlayers(gameId));
+	}
+
+	/**
+	 * Return <code>true</code> if another connection can be attached to this game.
+	 *
+	 * @return	<code>true</code> if the game has a free slot
+	 */
+	public boolean hasFreeSlot() {
+		return connections.size() < slots;
+	}
+
+	/**
+	 * Return the number of connections which this game may hold.  This is
+	 * <code>MAX_PLAYERS</code>, unless the game is shared with other nodes of a
+	 * federation, when it is the number of Imlac ids that this node gives out.
+	 *
+	 * @return	the number of slots
+	 */
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * Return the list of players in this game which have been assigned an
+	 * Imlac id.  The list must not be modified by the caller.
+	 *
+	 * @return	the list of active players
+	 */
+	public ArrayList<Player> getPlayers() {
+		return playerList;
+	}
+
+	/**
+	 * Attach a new connection to this game.  This reserves one of the game's
+	 * slots for the connection until it is removed.
+	 *
+	 * @param player	the <code>Player</code> instance for the connection
+	 */
+	void attach(Player player) {
+		connections.add(player);
+		router.slotTaken(this);
+	}
+
+	/**
+	 * Allocate one of the eight Imlac ids.
+	 *
+	 * @return the allocated Imlac id (1-8), or 0 if all are in use
+	 */
+	public int allocateId() {
+		return ids.allocate() + 1;
+	}
+
+	/**
+	 * Free a previously allocated Imlac id.
+	 *
+	 * @param id	the Imlac id (1-8)
+	 */
+	public void freeId(int id) {
+		if (id != 0) {
+			ids.free(id - 1);
+		}
+	}
+
+	/**
+	 * Find the <code>Player</code> instance in this game for a given user name.
+	 *
+	 * @param name	the user name, in ASCII (case-sensitive)
+	 * @return		the corresponding <code>Player</code> if any, or else <code>null</code>
+	 */
+	public Player findUser(byte[] name) {
+		return playersByName.get(name);
+	}
+
+	/**
+	 * Find the <code>Player</code> instance in this game for a given Imlac id.
+	 *
+	 * @param id	the Imlac id (1-8)
+	 * @return		the corresponding <code>Player</code> if any, or else <code>null</code>
+	 */
+	public Player findPlayer(int id) {
+		if ((id <= 0) || (id > MAX_PLAYERS)) {
+			return null;
+		}
+		return playersById[id];
+	}
+
+	/**
+	 * Queue a message from one player, identified by Imlac id, to all of the other
+	 * players in this game.
+	 *
+	 * @param fromId	the Imlac id (1-8) of the message sender
+	 * @param message	the message to be sent to the other players
+	 */
+	public void queueMessage(int fromId, byte[] message) {
+		MessageBuffer buf = messagePool.encode(message);
+		queueMessage(fromId, buf);
+		buf.release();
+		if ((message.length == 2) && (message[0] == 1) && connections.isEmpty()
+				&& router.remotePlayerLeft(this)) {
+			closeSpectators();
+		}
+	}
+
+	/**
+	 * Queue an encoded message from one player, identified by Imlac id, to all of
+	 * the other players in this game.  The message is shared by the output queues
+	 * of all the recipients, each of which takes its own reference to it.  The
+	 * caller keeps its reference and remains responsible for releasing it.
+	 * <p>
+	 * If the game is shared with other nodes, a message from a player of this
+	 * node is relayed to them.
+	 * <p>
+	 * A location message may be withheld from players which cannot see its
+	 * sender.  After a relative move, players which have missed the sender's
+	 * location and now have it in view are sent its latest location.
+	 *
+	 * @param fromId	the Imlac id (1-8) of the message sender
+	 * @param message	the encoded message to be sent to the other players
+	 */
+	public void queueMessage(int fromId, MessageBuffer message) {
+		if ((federation != null) && federation.owns(fromId)) {
+			relayOutbox.add(gameId, fromId, message);
+		}
+		if (log != null) {
+			log.append(message);
+			if (!spectatorsDirty) {
+				loop.markDirty(this);
+			}
+		}
+		MazeModel maze = getInterestMaze();
+		Player from = (maze != null) ? findPlayer(fromId) : null;
+		if ((from != null) && (message.length() == 5) && (message.get(0) == 2)) {
+			queueLocation(maze, from, message);
+			return;
+		}
+		for (Player player : playerList) {
+			int id = player.getId();
+			if ((id != fromId) && (id != 0)) {
+				player.queueMessage(message);
+			}
+		}
+		if ((from != null) && (message.length() == 1)
+				&& OutputQueue.isRelativeMove(message.get(0))) {
+			for (Player player : playerList) {
+				sendIfInView(maze, from, player);
+			}
+		}
+	}
+
+	/**
+	 * Return the maze used to decide which players need each other's locations.
+	 *
+	 * @return	the <code>MazeModel</code>, or <code>null</code> if every location
+	 * 			is sent to every player
+	 */
+	private MazeModel getInterestMaze() {
+		Server server = loop.getServer();
+		return (server.getOutOfSightInterval() >= 0) ? server.getMazeModel() : null;
+	}
+
+	/**
+	 * Queue a location message for the players which can see its sender.  A
+	 * player which cannot is sent the message only if the out-of-sight interval
+	 * has passed since it was last sent one of the sender's locations out of
+	 * sight.  Otherwise it is marked as having missed the sender's location.
+	 *
+	 * @param maze		the maze
+	 * @param from		the sender
+	 * @param message	the location message
+	 */
+	private void queueLocation(MazeModel maze, Player from, MessageBuffer message) {
+		int fromId = from.getId();
+		int bit = 1 << fromId;
+		long interval = loop.getServer().getOutOfSightInterval();
+		long now = 0;
+		for (Player player : playerList) {
+			int id = player.getId();
+			if ((id == fromId) || (id == 0)) {
+				continue;
+			}
+			if (!maze.isInView(player.dx, player.dy, from.dx, from.dy)) {
+				if ((interval > 0) && (now == 0)) {
+					now = System.currentTimeMillis();
+				}
+				if ((interval == 0) || ((now - player.outOfSightTimes[fromId]) < interval)) {
+					player.withheldIds |= bit;
+					loop.getMetrics().locationWithheld();
+					continue;
+				}
+				player.outOfSightTimes[fromId] = now;
+			}
+			player.withheldIds &= ~bit;
+			player.queueMessage(message);
+		}
+	}
+
+	/**
+	 * Send a player the latest location of another player, if it has missed it
+	 * and the two are now in view of each other.
+	 *
+	 * @param maze	the maze
+	 * @param from	the player whose location may be sent
+	 * @param to	the player which may be sent it
+	 */
+	private void sendIfInView(MazeModel maze, Player from, Player to) {
+		int bit = 1 << from.getId();
+		if (((to.withheldIds & bit) != 0) && maze.isInView(to.dx, to.dy, from.dx, from.dy)) {
+			to.withheldIds &= ~bit;
+			MessageBuffer buf = messagePool.encode(from.makeLocationMessage());
+			to.queueMessage(buf);
+			buf.release();
+		}
+	}
+
+	/**
+	 * Add a player which has just been assigned an Imlac id to the list of
+	 * active players.
+	 *
+	 * @param player	<code>Player</code> instance representing the new player
+	 */
+	public void addPlayer(Player player) {
+		playerList.add(player);
+		index(player);
+	}
+
+	private void index(Player player) {
+		playersById[player.getId()] = player;
+		playersByName.put(player.getName(), player);
+		snapshot.put(player);
+	}
+
+	private void unindex(Player player) {
+		int id = player.getId();
+		if ((id > 0) && (playersById[id] == player)) {
+			playersById[id] = null;
+			playersByName.remove(player.getName(), player);
+			snapshot.remove(id);
+			for (Player other : playerList) {
+				other.withheldIds &= ~(1 << id);
+			}
+		}
+	}
+
+	/**
+	 * Terminate a given player and remove it from this game, freeing its slot
+	 * and Imlac id.  Removing a player which has already been removed has no
+	 * effect.
+	 *
+	 * @param player	<code>Player</code> instance to be terminated
+	 */
+	public void removePlayer(Player player) {
+		player.close();
+		if (connections.remove(player)) {
+			unindex(player);
+			freeId(player.getId());
+			playerList.remove(player);
+			if (router.slotFreed(this)) {
+				closeSpectators();
+			}
+		}
+	}
+
+	/**
+	 * Remove a connection which has not been assigned an Imlac id from this
+	 * game, freeing its slot but leaving the connection open.  This is used
+	 * when a connection turns out to be a spectator.
+	 *
+	 * @param player	the <code>Player</code> instance for the connection
+	 */
+	void detach(Player player) {
+		if (connections.remove(player)) {
+			if (router.slotFreed(this)) {
+				closeSpectators();
+			}
+		}
+	}
+
+	/**
+	 * Add a spectator to this game.  It is sent the current players and their
+	 * locations, and then every message broadcast from now on.
+	 *
+	 * @param spectator	the <code>Spectator</code>
+	 */
+	void addSpectator(Spectator spectator) {
+		if (log == null) {
+			log = new BroadcastLog(BroadcastLog.DEFAULT_CAPACITY);
+		}
+		ByteBuffer initial = null;
+		int remoteLength = (federation != null)
+			? federation.encodeRemote(gameId, remoteRecords) : 0;
+		int len = snapshot.length() + remoteLength;
+		if (len > 0) {
+			initial = ByteBuffer.allocate(len);
+			snapshot.copyTo(initial);
+			initial.put(remoteRecords, 0, remoteLength);
+			initial.flip();
+		}
+		spectator.start(this, log, initial);
+		spectators.add(spectator);
+		if (!spectatorsDirty) {
+			loop.markDirty(this);
+		}
+	}
+
+	/**
+	 * Remove a spectator from this game and close its connection.
+	 *
+	 * @param spectator	the <code>Spectator</code>
+	 */
+	void removeSpectator(Spectator spectator) {
+		spectator.close();
+		if (spectators.remove(spectator) && spectators.isEmpty()) {
+			log = null;
+		}
+	}
+
+	/**
+	 * Return the number of spectators watching this game.
+	 *
+	 * @return	the number of spectators
+	 */
+	public int getSpectatorCount() {
+		return spectators.size();
+	}
+
+	/**
+	 * Write the spectators of this game from its log.  Spectators whose
+	 * connections fail, or which have fallen too far behind, are removed.
+	 */
+	void writeSpectators() {
+		for (int i = spectators.size() - 1; i >= 0; --i) {
+			Spectator spectator = spectators.get(i);
+			try {
+				loop.getMetrics().bytesOut(spectator.write());
+			} catch (IOException iox) {
+				System.out.println("I/O exception on write to spectator of game "
+					+ gameId + ": " + iox.getMessage());
+				removeSpectator(spectator);
+			}
+		}
+	}
+
+	private void closeSpectators() {
+		for (Spectator spectator : spectators) {
+			spectator.close();
+		}
+		spectators.clear();
+		log = null;
+	}
+
+	/**
+	 * Replace a player, identified by Imlac id, with a new player.  The new player
+	 * has the same Imlac id.  This is used when a client stops or crashes and the
+	 * server does not detect it until the client tries to enter the game again.
+	 *
+	 * @param id			the Imlac id (1-8) of the player to be replaced
+	 * @param newPlayer		the <code>Player</code> instance for the new player
+	 */
+	public void replacePlayer(int id, Player newPlayer) {
+		Player oldPlayer = findPlayer(id);
+		oldPlayer.close();
+		connections.remove(oldPlayer);
+		unindex(oldPlayer);
+		playerList.remove(oldPlayer);
+		playerList.add(newPlayer);
+		index(newPlayer);
+		router.slotFreed(this);
+	}
+
+	/**
+	 * Notification from a player that its location or direction has changed.
+	 * If the player has missed the locations of other players which it can now
+	 * see, it is sent them.
+	 *
+	 * @param player	the <code>Player</code> which moved
+	 */
+	void playerMoved(Player player) {
+		snapshot.moved(player);
+		if (player.withheldIds != 0) {
+			MazeModel maze = getInterestMaze();
+			if (maze != null) {
+				for (Player other : playerList) {
+					sendIfInView(maze, other, player);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Notification from a player that its hits or deaths have changed.
+	 *
+	 * @param player	the <code>Player</code> which scored or was killed
+	 */
+	void playerScored(Player player) {
+		snapshot.scored(player);
+	}
+
+	/**
+	 * Record the round trip of a probe answered by a player of this game.
+	 *
+	 * @param nanos	the round-trip time in nanoseconds
+	 */
+	void roundTrip(long nanos) {
+		roundTrips.record(nanos);
+	}
+
+	/**
+	 * Return the round-trip times of the probes answered by the players of this
+	 * game, while it has lasted.  The histogram must not be modified.
+	 *
+	 * @return	the <code>LatencyHistogram</code>
+	 */
+	public LatencyHistogram getRoundTrips() {
+		return roundTrips;
+	}
+
+	/**
+	 * Return the snapshot of the players in this game.
+	 *
+	 * @return	the <code>WorldSnapshot</code>
+	 */
+	public WorldSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Broadcast a message from a player on another node of the federation to
+	 * the players of this game.  If it reports a kill of a player here, that
+	 * player's death is counted.  If it is the leave of the last player of a
+	 * game with no connections here, the game is discarded.
+	 *
+	 * @param fromId	the Imlac id of the sender
+	 * @param message	the message
+	 */
+	void relayed(int fromId, byte[] message) {
+		if ((message.length == 3) && (message[0] == 3)) {
+			Player victim = findPlayer(message[2]);
+			if (victim != null) {
+				victim.killed();
+				playerScored(victim);
+			}
+		}
+		MessageBuffer buf = messagePool.encode(message);
+		queueMessage(fromId, buf);
+		buf.release();
+		if ((message.length == 2) && (message[0] == 1) && connections.isEmpty()
+				&& router.remotePlayerLeft(this)) {
+			closeSpectators();
+		}
+	}
+
+	/**
+	 * Return the locations a player on another node has had since a given time,
+	 * and the one it had at that time, most recent first.
+	 *
+	 * @param id	the Imlac id of the player
+	 * @param since	the time in milliseconds
+	 * @param dst	the array for the locations, each the direction, y and x,
+	 * 				six bits each from the top
+	 * @return		the number of locations, which is zero if there is no such
+	 * 				player or its location is not known, or -1 if it has moved
+	 * 				too often for its location at that time to be known
+	 */
+	int getRemotePositions(int id, long since, int[] dst) {
+		return ((federation != null) && !federation.owns(id))
+			? federation.getPositions(gameId, id, since, dst) : 0;
+	}
+
+	/**
+	 * Return the name of a player on another node.
+	 *
+	 * @param id	the Imlac id of the player
+	 * @return		the name, or <code>null</code> if there is no such player
+	 */
+	byte[] getRemoteName(int id) {
+		return ((federation != null) && !federation.owns(id))
+			? federation.getName(gameId, id) : null;
+	}
+
+	/**
+	 * Send initial messages to a newly joined player.  The new player gets a
+	 * "new player" and a "location" message for each of the other players, each
+	 * copied from the snapshot into its own pooled buffer.  The players on
+	 * other nodes follow.
+	 *
+	 * @param player	the <code>Player</code> instance for the new player
+	 */
+	public void sendPlayerLocations(Player player) {
+		snapshot.send(player, messagePool);
+		if (federation != null) {
+			int len = federation.encodeRemote(gameId, remoteRecords);
+			int off = 0;
+			while (off < len) {
+				int n = ProtocolDecoder.lengthOf(remoteRecords[off]);
+				MessageBuffer buf = messagePool.encode(remoteRecords, off, n);
+				player.queueMessage(buf);
+				buf.release();
+				off += n;
+			}
+		}
+	}
+
+	/**
+	 * Close all the connections attached to this game.  This is used when the
+	 * server shuts down.
+	 */
+	void closeAll() {
+		for (Player player : connections) {
+			player.close();
+		}
+		closeSpectators();
+	}
+}
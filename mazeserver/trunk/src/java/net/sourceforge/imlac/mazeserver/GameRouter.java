@@ -0,0 +1,208 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * This class decides which <code>Game</code> a new connection joins.  Each
+ * <code>EventLoop</code> has a router for the games that it hosts, and asks the
+ * router for a game when a connection is assigned to the loop.  The router
+ * keeps the games which have a free slot in the order in which they became
+ * available, and places the connection in the first of them, so that games
+ * fill up before new ones are started.  If no game has a free slot, a new game
+ * is created.  A game is discarded when its last connection is removed, unless
+ * it is a federated game which still has players on other nodes, in which case
+ * it is kept, with all its slots free, until the last of those leaves.
+ * <p>
+ * Placing a connection and freeing a slot both take constant time, so the
+ * number of games hosted by one server is limited only by the number of
+ * connections it can handle.
+ * <p>
+ * The router is synchronized, because in the thread-per-connection engine
+ * slots are freed by the threads of the players which leave.  A thread which
+ * holds the lock on a game may take the lock on the router, but not the other
+ * way round.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Game
+ */
+public class GameRouter {
+
+	private final EventLoop loop;
+	private final LinkedHashMap<Integer, Game> games = new LinkedHashMap<Integer, Game>();
+	private final LinkedHashSet<Game> openGames = new LinkedHashSet<Game>();
+	private int freeSlots = 0;
+	private int connectionCount = 0;
+
+	/**
+	 * Create a router for the games of an event loop.
+	 *
+	 * @param loop	the <code>EventLoop</code> which hosts the games
+	 */
+	public GameRouter(EventLoop loop) {
+		super();
+		this.loop = loop;
+	}
+
+	/**
+	 * Return the event loop which hosts the games of this router.
+	 *
+	 * @return	the <code>EventLoop</code>
+	 */
+	public EventLoop getEventLoop() {
+		return loop;
+	}
+
+	/**
+	 * Select the game that a new connection should join, creating a new game if
+	 * necessary.  The caller must attach the connection to the game.
+	 *
+	 * @return	the selected game, or <code>null</code> if every game is full and
+	 * 			no more games may be created
+	 */
+	public synchronized Game selectGame() {
+		Iterator<Game> iter = openGames.iterator();
+		if (iter.hasNext()) {
+			return iter.next();
+		}
+		Server server = loop.getServer();
+		if (!server.reserveGame()) {
+			return null;
+		}
+		Game game = new Game(this, server.nextGameId());
+		games.put(Integer.valueOf(game.getGameId()), game);
+		openGames.add(game);
+		freeSlots += game.getSlots();
+		return game;
+	}
+
+	/**
+	 * Find a game by its game id.
+	 *
+	 * @param gameId	the game id
+	 * @return			the game, or <code>null</code> if there is no such game
+	 */
+	public synchronized Game findGame(int gameId) {
+		return games.get(Integer.valueOf(gameId));
+	}
+
+	/**
+	 * Return all of the current games.  The collection must not be modified by
+	 * the caller.
+	 *
+	 * @return	the current games
+	 */
+	public Collection<Game> getGames() {
+		return games.values();
+	}
+
+	/**
+	 * Return the number of current games.
+	 *
+	 * @return	the number of games
+	 */
+	public synchronized int getGameCount() {
+		return games.size();
+	}
+
+	/**
+	 * Return the number of free slots in all the games of this router.
+	 *
+	 * @return	the number of free slots
+	 */
+	public synchronized int getFreeSlots() {
+		return freeSlots;
+	}
+
+	/**
+	 * Return the number of connections in all the games of this router.
+	 *
+	 * @return	the number of connections
+	 */
+	public synchronized int getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Notification from a game that a slot has been taken.
+	 *
+	 * @param game	the game
+	 */
+	synchronized void slotTaken(Game game) {
+		--freeSlots;
+		++connectionCount;
+		if (!game.hasFreeSlot()) {
+			openGames.remove(game);
+		}
+	}
+
+	/**
+	 * Notification from a game that a slot has been freed.  A game which no
+	 * longer has any players is discarded.
+	 *
+	 * @param game	the game
+	 * @return		<code>true</code> if the game was discarded
+	 */
+	synchronized boolean slotFreed(Game game) {
+		++freeSlots;
+		--connectionCount;
+		if (game.isIdle()) {
+			discard(game);
+			return true;
+		}
+		openGames.add(game);
+		return false;
+	}
+
+	/**
+	 * Notification from a federated game that a player on another node has
+	 * left.  The game is discarded if it no longer has any players.
+	 *
+	 * @param game	the game
+	 * @return		<code>true</code> if the game was discarded
+	 */
+	synchronized boolean remotePlayerLeft(Game game) {
+		if ((games.get(Integer.valueOf(game.getGameId())) != game) || !game.isIdle()) {
+			return false;
+		}
+		discard(game);
+		return true;
+	}
+
+	private void discard(Game game) {
+		openGames.remove(game);
+		games.remove(Integer.valueOf(game.getGameId()));
+		freeSlots -= game.getSlots();
+		loop.getServer().releaseGame(game.getGameId());
+	}
+
+	/**
+	 * Close all the connections in all the games.  This is used when the server
+	 * shuts down.
+	 */
+	void closeAll() {
+		for (Game game : games.values()) {
+			game.closeAll();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+/**
+ * This class allocates small non-negative numbers from a bitmap, always
+ * returning the lowest free number.  The bitmap grows as needed, up to an
+ * optional limit, so the same allocator serves for the eight Imlac ids of a
+ * game and for the server-side connection numbers of an event loop, of which
+ * there may be any number.
+ * <p>
+ * Allocation starts its search at the first word of the bitmap which may have
+ * a free bit, so it takes constant time unless numbers are freed and
+ * reallocated in a pattern which leaves many full words below the first free
+ * bit.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+public class IdAllocator {
+
+	private final int limit;
+	private long[] words;
+	private int firstFree;					// No free bit in words below this
+	private int count;
+
+	/**
+	 * Create an allocator.
+	 *
+	 * @param limit	the number of numbers which may be allocated, or 0 for no limit
+	 */
+	public IdAllocator(int limit) {
+		super();
+		this.limit = limit;
+		words = new long[(limit > 0) ? ((limit + 63) >> 6) : 1];
+		firstFree = 0;
+		count = 0;
+	}
+
+	/**
+	 * Allocate the lowest free number.
+	 *
+	 * @return	the number, or -1 if the limit has been reached
+	 */
+	public int allocate() {
+		if ((limit > 0) && (count >= limit)) {
+			return -1;
+		}
+		int w = firstFree;
+		while ((w < words.length) && (words[w] == -1L)) {
+			++w;
+		}
+		if (w == words.length) {
+			long[] newWords = new long[words.length * 2];
+			System.arraycopy(words, 0, newWords, 0, words.length);
+			words = newWords;
+		}
+		int bit = Long.numberOfTrailingZeros(~words[w]);
+		words[w] |= 1L << bit;
+		firstFree = w;
+		++count;
+		return (w << 6) + bit;
+	}
+
+	/**
+	 * Free a number, so that it can be allocated again.  Freeing a number which
+	 * is not allocated has no effect.
+	 *
+	 * @param n	the number
+	 */
+	public void free(int n) {
+		if (isAllocated(n)) {
+			int w = n >> 6;
+			words[w] &= ~(1L << (n & 63));
+			if (w < firstFree) {
+				firstFree = w;
+			}
+			--count;
+		}
+	}
+
+	/**
+	 * Return <code>true</code> if a number is allocated.
+	 *
+	 * @param n	the number
+	 * @return	<code>true</code> if it is allocated
+	 */
+	public boolean isAllocated(int n) {
+		int w = n >> 6;
+		return (n >= 0) && (w < words.length) && ((words[w] & (1L << (n & 63))) != 0);
+	}
+
+	/**
+	 * Return the number of allocated numbers.
+	 *
+	 * @return	the count
+	 */
+	public int size() {
+		return count;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+/**
+ * A distribution of latencies, in buckets of a quarter of a power of two
+ * microseconds.  Recording a latency costs a few shifts and one increment, and
+ * the buckets take a fixed 1280 bytes, so a histogram may be kept for every
+ * connection.  A percentile is given as the upper bound of the bucket which
+ * holds it, so it is at most a quarter too high.
+ * <p>
+ * A histogram is not thread-safe.  It should be recorded by one thread, or
+ * under one lock, and reading it from another thread, as the JMX agent does,
+ * may give values which are a little out of date.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see LoadGenerator
+ * @see PlayerMetrics
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 4;
+	private final long[] counts = new long[40 * SUB_BUCKETS];
+	private long total;
+	private long max;
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos	the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(nanos / 1000, 1);
+		int log = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (log < 2) ? 0 : (int) ((micros >> (log - 2)) & (SUB_BUCKETS - 1));
+		++counts[Math.min(log * SUB_BUCKETS + sub, counts.length - 1)];
+		++total;
+		if (micros > max) {
+			max = micros;
+		}
+	}
+
+	/**
+	 * Add the latencies recorded in another histogram to this one.
+	 *
+	 * @param other	the other histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; ++i) {
+			counts[i] += other.counts[i];
+		}
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Forget all the latencies recorded.
+	 */
+	public void clear() {
+		for (int i = 0; i < counts.length; ++i) {
+			counts[i] = 0;
+		}
+		total = 0;
+		max = 0;
+	}
+
+	/**
+	 * Return the number of latencies recorded.
+	 *
+	 * @return	the count
+	 */
+	public long getCount() {
+		return total;
+	}
+
+	/**
+	 * Return the largest latency recorded.
+	 *
+	 * @return	the latency in microseconds
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Return the upper bound of the bucket holding a percentile, in
+	 * microseconds.
+	 *
+	 * @param p	the percentile, from 0 to 100
+	 * @return	the latency in microseconds, or 0 if none has been recorded
+	 */
+	public long percentile(double p) {
+		long rank = (long) Math.ceil(total * p / 100.0);
+		long seen = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+			if ((seen >= rank) && (seen > 0)) {
+				int log = i / SUB_BUCKETS;
+				int sub = i % SUB_BUCKETS;
+				long base = 1L << log;
+				return Math.min(base + (((sub + 1) * base) / SUB_BUCKETS), max);
+			}
+		}
+		return 0;
+	}
+}
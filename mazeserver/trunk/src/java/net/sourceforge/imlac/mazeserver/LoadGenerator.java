@@ -0,0 +1,723 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A headless load generator for the maze server.  It opens any number of
+ * non-blocking connections to a server, sends each a name line, and then sends
+ * location, relative move, echo and kill messages from each simulated player at
+ * configurable average rates, with exponentially distributed intervals.
+ * <p>
+ * Each location message carries a 14-bit sequence number in its direction and
+ * coordinate fields.  The sender records the time at which it sent each
+ * sequence number, and every player which receives the message looks the time
+ * up, so the generator measures the end-to-end latency of each broadcast as
+ * well as the throughput of each simulated player.  Location messages which the
+ * server coalesces are never received, and are not counted.
+ * <p>
+ * Usage: <code>LoadGenerator [option...]</code>, where the options are
+ * <dl>
+ * <dt><code>-host</code> <i>name</i></dt><dd>server host (localhost)</dd>
+ * <dt><code>-port</code> <i>n</i></dt><dd>server port (8082)</dd>
+ * <dt><code>-server</code> <i>workers</i></dt><dd>start a server in this process,
+ * 		with the given number of worker threads, or "threaded" for the
+ * 		thread-per-connection mode, on a free port, which accepts every kill
+ * 		and sends every location</dd>
+ * <dt><code>-players</code> <i>n</i></dt><dd>number of simulated players (64)</dd>
+ * <dt><code>-threads</code> <i>n</i></dt><dd>number of client threads (2)</dd>
+ * <dt><code>-ramp</code> <i>n</i></dt><dd>connections opened per second (500)</dd>
+ * <dt><code>-warmup</code> <i>s</i></dt><dd>seconds before measuring, after all
+ * 		players have joined (5)</dd>
+ * <dt><code>-duration</code> <i>s</i></dt><dd>seconds of measurement (30)</dd>
+ * <dt><code>-location</code>, <code>-move</code>, <code>-echo</code>,
+ * 		<code>-kill</code> <i>rate</i></dt><dd>messages of each kind sent per
+ * 		second by each player (10, 5, 0.5, 0.1)</dd>
+ * <dt><code>-udp</code></dt><dd>ask for the datagram side channel, and send
+ * 		and receive location messages by UDP</dd>
+ * <dt><code>-loss</code> <i>rate</i></dt><dd>fraction of datagrams discarded by
+ * 		the server in each direction, with <code>-server</code> (0)</dd>
+ * <dt><code>-batch</code></dt><dd>ask for the batched frame protocol, and
+ * 		decode the frames</dd>
+ * <dt><code>-probe</code></dt><dd>ask for round-trip probes, and answer them,
+ * 		so that the server measures the round trip of each player</dd>
+ * <dt><code>-verbose</code></dt><dd>report every player</dd>
+ * </dl>
+ * To find the saturation point of a server, run the generator with increasing
+ * numbers of players or message rates, and watch for the point at which the
+ * delivered rate stops growing and the latency climbs.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+public class LoadGenerator {
+
+	/** Number of location sequence numbers, which fit in 14 bits */
+	private static final int SEQ_COUNT = 1 << 14;
+
+	/** Relative move bases, weighted towards steps forward */
+	private static final int[] MOVES = { 0150, 0150, 0150, 0150, 0020, 0030, 0140, 0160 };
+
+	private InetSocketAddress address;
+	private int playerCount = 64;
+	private int threadCount = 2;
+	private int rampRate = 500;
+	private int warmup = 5;
+	private int duration = 30;
+	private double locationRate = 10;
+	private double moveRate = 5;
+	private double echoRate = 0.5;
+	private double killRate = 0.1;
+	private boolean verbose = false;
+	private boolean udp = false;
+	private boolean batch = false;
+	private boolean probe = false;
+
+	private final HashMap<String, SimPlayer> playersByName = new HashMap<String, SimPlayer>();
+	private SimPlayer[] players;
+	private volatile int phase;				// 0 = warmup, 1 = measuring, 2 = stopped
+
+	/**
+	 * Create a load generator for a server.
+	 *
+	 * @param address	the address of the server
+	 */
+	public LoadGenerator(InetSocketAddress address) {
+		super();
+		this.address = address;
+	}
+
+	/**
+	 * One simulated player.  Its connection and counters belong to one client
+	 * thread, except for the send times of its location messages, which are read
+	 * by the threads of the players that receive them.
+	 */
+	class SimPlayer {
+
+		final int index;
+		final String name;
+		final AtomicLongArray sendTimes = new AtomicLongArray(SEQ_COUNT);
+		final SimPlayer[] peers = new SimPlayer[Game.MAX_PLAYERS + 1];
+		final ByteBuffer out = ByteBuffer.allocate(512);
+		final byte[] msg = new byte[12];
+		final LatencyHistogram latency = new LatencyHistogram();
+		final short[] peerSeq = new short[Game.MAX_PLAYERS + 1];
+		final boolean[] peerSeqValid = new boolean[Game.MAX_PLAYERS + 1];
+		SocketChannel chan;
+		DatagramChannel udpChan;
+		BatchCodec batch;
+		ByteBuffer frames;
+		int udpToken;
+		short udpSeq;
+		int id;
+		int seq;
+		int msgLen;
+		int msgNeed;
+		long nextLocation;
+		long nextMove;
+		long nextEcho;
+		long nextKill;
+		long sent;
+		long received;
+		long bytesSent;
+		long bytesReceived;
+		long reads;
+		long stalls;
+		long stale;
+
+		SimPlayer(int index) {
+			super();
+			this.index = index;
+			char[] c = new char[6];
+			int n = index;
+			c[0] = 'L';
+			for (int i = 5; i > 0; --i) {
+				c[i] = (char) ('A' + (n % 26));
+				n /= 26;
+			}
+			name = new String(c);
+		}
+
+		void clearCounters() {
+			sent = 0;
+			received = 0;
+			bytesSent = 0;
+			bytesReceived = 0;
+			reads = 0;
+			stalls = 0;
+			stale = 0;
+			latency.clear();
+		}
+	}
+
+	/**
+	 * A client thread, which drives a share of the simulated players with its own
+	 * selector.
+	 */
+	class ClientThread extends Thread {
+
+		private final Selector selector;
+		private final ArrayList<SimPlayer> mine = new ArrayList<SimPlayer>();
+		private final ByteBuffer readBuf = ByteBuffer.allocateDirect(65536);
+		private final ByteBuffer decoded = ByteBuffer.allocate(BatchCodec.FRAME_SIZE * BatchCodec.MAX_EXPANSION);
+		private final ByteBuffer datagram = ByteBuffer.allocate(DatagramTransport.CLIENT_DATAGRAM_LENGTH);
+		private final Random random;
+		private int connectIndex = 0;
+		private int lastPhase = 0;
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		ClientThread(int n) throws IOException {
+			super("Load client " + n);
+			setDaemon(true);
+			selector = Selector.open();
+			random = new Random(n);
+		}
+
+		void add(SimPlayer player) {
+			mine.add(player);
+		}
+
+		public void run() {
+			long start = System.nanoTime();
+			long connectInterval = (1000000000L * threadCount) / rampRate;
+			try {
+				while (phase < 2) {
+					long now = System.nanoTime();
+					// Open connections at the ramp rate
+					while ((connectIndex < mine.size())
+							&& (now - start >= connectIndex * connectInterval)) {
+						connect(mine.get(connectIndex++), now);
+					}
+					if (phase != lastPhase) {
+						lastPhase = phase;
+						for (SimPlayer player : mine) {
+							player.clearCounters();
+						}
+					}
+					selector.select(1);
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						SimPlayer player = (SimPlayer) key.attachment();
+						if (key.channel() == player.udpChan) {
+							readDatagrams(player);
+						} else if (key.isValid() && key.isConnectable()) {
+							finishConnect(key, player);
+						} else if (key.isValid() && key.isReadable()) {
+							read(key, player);
+						}
+					}
+					now = System.nanoTime();
+					for (SimPlayer player : mine) {
+						if ((player.chan != null) && player.chan.isConnected()) {
+							generate(player, now);
+							flush(player);
+						}
+					}
+				}
+				for (SimPlayer player : mine) {
+					latency.add(player.latency);
+					if (player.chan != null) {
+						player.chan.close();
+					}
+					if (player.udpChan != null) {
+						player.udpChan.close();
+					}
+				}
+				selector.close();
+			} catch (IOException iox) {
+				System.out.println(getName() + ": " + iox);
+			}
+		}
+
+		private void connect(SimPlayer player, long now) throws IOException {
+			player.chan = SocketChannel.open();
+			player.chan.configureBlocking(false);
+			player.chan.socket().setTcpNoDelay(true);
+			player.chan.connect(address);
+			player.chan.register(selector, SelectionKey.OP_CONNECT, player);
+			player.out.put(player.name.getBytes("US-ASCII"));
+			if (udp) {
+				player.out.put(" UDP".getBytes("US-ASCII"));
+			}
+			if (batch) {
+				player.out.put(" BATCH".getBytes("US-ASCII"));
+				player.batch = new BatchCodec();
+				player.frames = ByteBuffer.allocate(2 * readBuf.capacity());
+			}
+			if (probe) {
+				player.out.put(" PROBE".getBytes("US-ASCII"));
+			}
+			player.out.put((byte) 012);
+			player.nextLocation = now + interval(locationRate);
+			player.nextMove = now + interval(moveRate);
+			player.nextEcho = now + interval(echoRate);
+			player.nextKill = now + interval(killRate);
+		}
+
+		private void finishConnect(SelectionKey key, SimPlayer player) {
+			try {
+				player.chan.finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException iox) {
+				System.out.println("Connect failed for " + player.name + ": " + iox);
+				key.cancel();
+				player.chan = null;
+			}
+		}
+
+		private long interval(double rate) {
+			if (rate <= 0) {
+				return Long.MAX_VALUE / 2;
+			}
+			return (long) (-Math.log(1.0 - random.nextDouble()) * 1e9 / rate);
+		}
+
+		private void generate(SimPlayer player, long now) {
+			if (player.id == 0) {
+				return;
+			}
+			int code = player.id - 1;
+			while ((now >= player.nextLocation)
+					&& ((player.udpChan != null) || room(player, 5))) {
+				int seq = player.seq++ & (SEQ_COUNT - 1);
+				player.sendTimes.lazySet(seq, System.nanoTime());
+				ByteBuffer buf = player.out;
+				if (player.udpChan != null) {
+					buf = datagram;
+					buf.clear();
+					buf.putInt(player.udpToken);
+					buf.putShort(++player.udpSeq);
+				}
+				buf.put((byte) 2);
+				buf.put((byte) player.id);
+				buf.put((byte) (0100 | (seq & 3)));
+				buf.put((byte) (0100 | ((seq >> 2) & 077)));
+				buf.put((byte) (0100 | ((seq >> 8) & 077)));
+				if (player.udpChan != null) {
+					buf.flip();
+					try {
+						player.udpChan.write(buf);
+					} catch (IOException iox) {
+						// A lost datagram
+					}
+				}
+				sent(player, 5);
+				player.nextLocation += interval(locationRate);
+			}
+			while ((now >= player.nextMove) && room(player, 1)) {
+				player.out.put((byte) (MOVES[random.nextInt(MOVES.length)] | code));
+				sent(player, 1);
+				player.nextMove += interval(moveRate);
+			}
+			while ((now >= player.nextEcho) && room(player, 1)) {
+				player.out.put((byte) (040 + random.nextInt(060)));
+				sent(player, 1);
+				player.nextEcho += interval(echoRate);
+			}
+			while ((now >= player.nextKill) && room(player, 3)) {
+				int victim = 0;
+				for (int i = 0, j = random.nextInt(Game.MAX_PLAYERS);
+						(i < Game.MAX_PLAYERS) && (victim == 0); ++i) {
+					int peer = 1 + ((i + j) % Game.MAX_PLAYERS);
+					if ((peer != player.id) && (player.peers[peer] != null)) {
+						victim = peer;
+					}
+				}
+				if (victim != 0) {
+					player.out.put((byte) 3);
+					player.out.put((byte) player.id);
+					player.out.put((byte) victim);
+					sent(player, 3);
+				}
+				player.nextKill += interval(killRate);
+			}
+		}
+
+		private void openDatagrams(SimPlayer player) {
+			byte[] msg = player.msg;
+			player.udpToken = ((msg[1] & 0xff) << 24) | ((msg[2] & 0xff) << 16)
+				| ((msg[3] & 0xff) << 8) | (msg[4] & 0xff);
+			int port = ((msg[5] & 0xff) << 8) | (msg[6] & 0xff);
+			try {
+				player.udpChan = DatagramChannel.open();
+				player.udpChan.configureBlocking(false);
+				player.udpChan.connect(new InetSocketAddress(address.getAddress(), port));
+				player.udpChan.register(selector, SelectionKey.OP_READ, player);
+			} catch (IOException iox) {
+				System.out.println("Datagram channel failed for " + player.name + ": " + iox);
+				player.udpChan = null;
+			}
+		}
+
+		private void readDatagrams(SimPlayer player) throws IOException {
+			while (true) {
+				readBuf.clear();
+				int len;
+				try {
+					len = player.udpChan.read(readBuf);
+				} catch (IOException iox) {
+					return;
+				}
+				if (len <= 0) {
+					return;
+				}
+				if (len != DatagramTransport.SERVER_DATAGRAM_LENGTH) {
+					continue;
+				}
+				player.bytesReceived += len;
+				short seq = readBuf.getShort(0);
+				int id = readBuf.get(3) & 017;
+				if (id > Game.MAX_PLAYERS) {
+					continue;
+				}
+				if (player.peerSeqValid[id] && ((short) (seq - player.peerSeq[id]) <= 0)) {
+					++player.stale;
+					continue;
+				}
+				player.peerSeq[id] = seq;
+				player.peerSeqValid[id] = true;
+				for (int i = 0; i < 5; ++i) {
+					player.msg[i] = readBuf.get(2 + i);
+				}
+				++player.received;
+				received(player);
+			}
+		}
+
+		private boolean room(SimPlayer player, int len) {
+			if (player.out.remaining() < len) {
+				++player.stalls;
+				return false;
+			}
+			return true;
+		}
+
+		private void sent(SimPlayer player, int len) {
+			++player.sent;
+			player.bytesSent += len;
+		}
+
+		private void flush(SimPlayer player) throws IOException {
+			if (player.out.position() > 0) {
+				player.out.flip();
+				try {
+					player.chan.write(player.out);
+				} catch (IOException iox) {
+					System.out.println("Write failed for " + player.name + ": " + iox);
+					player.chan.close();
+					player.chan = null;
+				}
+				player.out.compact();
+			}
+		}
+
+		private void read(SelectionKey key, SimPlayer player) throws IOException {
+			readBuf.clear();
+			int len;
+			try {
+				len = player.chan.read(readBuf);
+			} catch (IOException iox) {
+				len = -1;
+			}
+			if (len < 0) {
+				System.out.println("Server closed connection for " + player.name);
+				key.cancel();
+				player.chan.close();
+				player.chan = null;
+				return;
+			}
+			player.bytesReceived += len;
+			++player.reads;
+			readBuf.flip();
+			if (player.batch == null) {
+				parse(player, readBuf);
+				return;
+			}
+			player.frames.put(readBuf);
+			player.frames.flip();
+			try {
+				int count;
+				do {
+					decoded.clear();
+					count = player.batch.decode(player.frames, decoded);
+					decoded.flip();
+					parse(player, decoded);
+				} while (count > 0);
+			} catch (IllegalArgumentException iax) {
+				System.out.println("Bad frame for " + player.name + ": " + iax.getMessage());
+				key.cancel();
+				player.chan.close();
+				player.chan = null;
+				return;
+			}
+			player.frames.compact();
+		}
+
+		private void parse(SimPlayer player, ByteBuffer buf) {
+			while (buf.hasRemaining()) {
+				byte b = buf.get();
+				if (player.msgNeed == 0) {
+					player.msgLen = 0;
+					switch (b & 0177) {
+						case 1: player.msgNeed = 2; break;
+						case 2: player.msgNeed = 5; break;
+						case 3: player.msgNeed = 3; break;
+						case 4: player.msgNeed = 12; break;
+						case DatagramTransport.OFFER:
+							player.msgNeed = DatagramTransport.OFFER_LENGTH;
+							break;
+						default: player.msgNeed = 1; break;
+					}
+				}
+				player.msg[player.msgLen++] = b;
+				if (player.msgLen == player.msgNeed) {
+					player.msgNeed = 0;
+					++player.received;
+					received(player);
+				}
+			}
+		}
+
+		private void received(SimPlayer player) {
+			byte[] msg = player.msg;
+			int id = msg[1] & 017;
+			switch (msg[0] & 0177) {
+				case 1:
+					if (id <= Game.MAX_PLAYERS) {
+						player.peers[id] = null;
+					}
+					break;
+				case 2:
+					SimPlayer sender = (id <= Game.MAX_PLAYERS) ? player.peers[id] : null;
+					if ((sender != null) && (lastPhase == 1)) {
+						int seq = (msg[2] & 3) | ((msg[3] & 077) << 2) | ((msg[4] & 077) << 8);
+						long sendTime = sender.sendTimes.get(seq);
+						if (sendTime != 0) {
+							player.latency.record(System.nanoTime() - sendTime);
+						}
+					}
+					break;
+				case DatagramTransport.OFFER:
+					openDatagrams(player);
+					break;
+				case Player.PROBE:
+					if (room(player, 1)) {
+						player.out.put(Player.PROBE);
+					}
+					break;
+				case 4:
+					String name = new String(msg, 2, 6);
+					SimPlayer other = playersByName.get(name);
+					if (other == player) {
+						player.id = id;
+					} else if ((other != null) && (id <= Game.MAX_PLAYERS)) {
+						player.peers[id] = other;
+					}
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Run the simulation and print the results.
+	 *
+	 * @throws IOException			if the client threads cannot be started
+	 * @throws InterruptedException	if interrupted while waiting
+	 */
+	public void run() throws IOException, InterruptedException {
+		players = new SimPlayer[playerCount];
+		ClientThread[] threads = new ClientThread[threadCount];
+		for (int i = 0; i < threadCount; ++i) {
+			threads[i] = new ClientThread(i);
+		}
+		for (int i = 0; i < playerCount; ++i) {
+			players[i] = new SimPlayer(i);
+			playersByName.put(players[i].name, players[i]);
+			threads[i % threadCount].add(players[i]);
+		}
+		System.out.println("Connecting " + playerCount + " players to " + address
+			+ " with " + threadCount + " threads");
+		phase = 0;
+		for (ClientThread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep((1000L * playerCount) / rampRate + 1000L * warmup);
+		phase = 1;
+		long t0 = System.nanoTime();
+		Thread.sleep(1000L * duration);
+		phase = 2;
+		long t1 = System.nanoTime();
+		LatencyHistogram latency = new LatencyHistogram();
+		for (ClientThread thread : threads) {
+			thread.join();
+			latency.add(thread.latency);
+		}
+		report(latency, (t1 - t0) / 1e9);
+	}
+
+	private void report(LatencyHistogram latency, double seconds) {
+		long sent = 0;
+		long received = 0;
+		long bytesSent = 0;
+		long bytesReceived = 0;
+		long reads = 0;
+		long stalls = 0;
+		long stale = 0;
+		int joined = 0;
+		double[] rates = new double[playerCount];
+		long[] p99 = new long[playerCount];
+		for (int i = 0; i < playerCount; ++i) {
+			SimPlayer player = players[i];
+			sent += player.sent;
+			received += player.received;
+			bytesSent += player.bytesSent;
+			bytesReceived += player.bytesReceived;
+			reads += player.reads;
+			stalls += player.stalls;
+			stale += player.stale;
+			if (player.id != 0) {
+				++joined;
+			}
+			rates[i] = player.received / seconds;
+			p99[i] = player.latency.percentile(99);
+			if (verbose) {
+				System.out.println(player.name + " id " + player.id
+					+ ": sent " + Math.round(player.sent / seconds)
+					+ "/s, received " + Math.round(rates[i])
+					+ "/s, latency p50 " + player.latency.percentile(50)
+					+ "us p99 " + p99[i] + "us, stalls " + player.stalls);
+			}
+		}
+		Arrays.sort(rates);
+		Arrays.sort(p99);
+		System.out.println(joined + " of " + playerCount + " players joined");
+		System.out.println("Sent " + Math.round(sent / seconds) + " messages/s ("
+			+ Math.round(bytesSent / seconds) + " bytes/s), received "
+			+ Math.round(received / seconds) + " messages/s ("
+			+ Math.round(bytesReceived / seconds) + " bytes/s, "
+			+ Math.round(reads / seconds) + " reads/s), " + stalls + " send stalls");
+		if (udp) {
+			System.out.println("Stale datagrams dropped: " + stale);
+		}
+		System.out.println("Received per player: min " + Math.round(rates[0])
+			+ "/s, median " + Math.round(rates[playerCount / 2])
+			+ "/s, max " + Math.round(rates[playerCount - 1]) + "/s");
+		System.out.println("Broadcast latency over " + latency.getCount() + " messages: p50 "
+			+ latency.percentile(50) + "us, p90 " + latency.percentile(90)
+			+ "us, p99 " + latency.percentile(99) + "us, p99.9 " + latency.percentile(99.9)
+			+ "us, max " + latency.getMax() + "us");
+		System.out.println("Per-player p99 latency: median " + p99[playerCount / 2]
+			+ "us, worst " + p99[playerCount - 1] + "us");
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = "localhost";
+		int port = 8082;
+		int serverWorkers = -1;
+		boolean serverThreaded = false;
+		double loss = 0;
+		LoadGenerator gen = new LoadGenerator(null);
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-verbose")) {
+				gen.verbose = true;
+				continue;
+			}
+			if (arg.equals("-udp")) {
+				gen.udp = true;
+				continue;
+			}
+			if (arg.equals("-batch")) {
+				gen.batch = true;
+				continue;
+			}
+			if (arg.equals("-probe")) {
+				gen.probe = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			if (arg.equals("-host")) {
+				host = value;
+			} else if (arg.equals("-port")) {
+				port = Integer.parseInt(value);
+			} else if (arg.equals("-server")) {
+				serverThreaded = value.equals("threaded");
+				serverWorkers = serverThreaded ? 0 : Integer.parseInt(value);
+			} else if (arg.equals("-players")) {
+				gen.playerCount = Integer.parseInt(value);
+			} else if (arg.equals("-threads")) {
+				gen.threadCount = Integer.parseInt(value);
+			} else if (arg.equals("-ramp")) {
+				gen.rampRate = Integer.parseInt(value);
+			} else if (arg.equals("-warmup")) {
+				gen.warmup = Integer.parseInt(value);
+			} else if (arg.equals("-duration")) {
+				gen.duration = Integer.parseInt(value);
+			} else if (arg.equals("-location")) {
+				gen.locationRate = Double.parseDouble(value);
+			} else if (arg.equals("-move")) {
+				gen.moveRate = Double.parseDouble(value);
+			} else if (arg.equals("-echo")) {
+				gen.echoRate = Double.parseDouble(value);
+			} else if (arg.equals("-kill")) {
+				gen.killRate = Double.parseDouble(value);
+			} else if (arg.equals("-loss")) {
+				loss = Double.parseDouble(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		Server server = null;
+		if (serverWorkers >= 0) {
+			server = new Server(new InetSocketAddress("localhost", 0), 0, serverWorkers,
+				serverThreaded);
+			// Simulated locations are sequence numbers, not places in the
+			// maze, so every kill would be rejected and most locations withheld
+			server.setMazeModel(null);
+			if (gen.udp) {
+				server.enableDatagrams(loss);
+			}
+			server.start();
+			port = server.getLocalPort();
+		}
+		gen.address = new InetSocketAddress(host, port);
+		gen.run();
+		if (server != null) {
+			server.shutdown();
+			server.join();
+		}
+	}
+}
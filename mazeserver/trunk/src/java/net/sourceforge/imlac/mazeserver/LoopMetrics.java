@@ -0,0 +1,261 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class holds the counters of one <code>EventLoop</code>.  The counters of
+ * a loop are only changed by the loop thread, so each loop is one stripe of the
+ * server's metrics, and an update is an ordinary read and a lazy store, with
+ * no locking or compare-and-set.  Other threads, such as the JMX agent, may read
+ * the counters at any time, and <code>ServerMetrics</code> adds up the stripes
+ * of all the loops.
+ * <p>
+ * The counters of the thread-per-connection engine are updated by many
+ * threads, and use an atomic add instead.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see ServerMetrics
+ */
+public class LoopMetrics {
+
+	/** Names of the message classes, indexed by byte class */
+	public static final String[] CLASS_NAMES = {
+		"IGNORE", "LEAVE", "MOVE", "KILL", "NEW", "ECHO",
+		"NEWRIGHT", "NEWLEFT", "NEWAROUND", "NEWFWD", "NEWBACK"
+	};
+
+	/** Number of message classes */
+	public static final int CLASS_COUNT = CLASS_NAMES.length;
+
+	/**
+	 * Number of buckets in the select time histogram.  Bucket 0 counts
+	 * iterations of under 1 microsecond, and bucket <i>n</i> counts iterations
+	 * of 2<sup><i>n</i>-1</sup> to 2<sup><i>n</i></sup> microseconds.  The last
+	 * bucket also counts everything longer.
+	 */
+	public static final int HISTOGRAM_BUCKETS = 24;
+
+	static final int ACCEPTED = 0;
+	static final int REJECTED = 1;
+	static final int SELECTS = 2;
+	static final int WAKEUPS = 3;
+	static final int BYTES_IN = 4;
+	static final int BYTES_OUT = 5;
+	static final int QUEUED_MESSAGES = 6;
+	static final int QUEUED_BYTES = 7;
+	static final int MAX_QUEUE_DEPTH = 8;
+	static final int INVALID_KILLS = 9;
+	static final int WITHHELD_LOCATIONS = 10;
+	static final int IDLE_EVICTIONS = 11;
+	private static final int COUNTERS = 12;
+
+	private final boolean concurrent;
+	private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+	private final AtomicLongArray messagesIn = new AtomicLongArray(CLASS_COUNT);
+	private final AtomicLongArray messagesOut = new AtomicLongArray(CLASS_COUNT);
+	private final AtomicLongArray selectTimes = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+	/**
+	 * Create the counters for one event loop.
+	 */
+	public LoopMetrics() {
+		this(false);
+	}
+
+	/**
+	 * Create a set of counters.
+	 *
+	 * @param concurrent	<code>true</code> if the counters may be updated by more
+	 * 						than one thread
+	 */
+	public LoopMetrics(boolean concurrent) {
+		super();
+		this.concurrent = concurrent;
+	}
+
+	private void add(AtomicLongArray array, int index, long n) {
+		if (concurrent) {
+			array.getAndAdd(index, n);
+		} else {
+			// Only the loop thread writes, so a lazy store cannot lose an update
+			array.lazySet(index, array.get(index) + n);
+		}
+	}
+
+	/**
+	 * Count a connection which has been attached to a game.
+	 */
+	public void accepted() {
+		add(counters, ACCEPTED, 1);
+	}
+
+	/**
+	 * Count a connection which has been closed because there was no room for it.
+	 */
+	public void rejected() {
+		add(counters, REJECTED, 1);
+	}
+
+	/**
+	 * Count a kill message which was discarded because the maze model showed
+	 * that the kill was not possible.
+	 */
+	public void invalidKill() {
+		add(counters, INVALID_KILLS, 1);
+	}
+
+	/**
+	 * Count a location message which was not sent to a player because its
+	 * sender was out of the player's sight.
+	 */
+	public void locationWithheld() {
+		add(counters, WITHHELD_LOCATIONS, 1);
+	}
+
+	/**
+	 * Count a connection which was closed because nothing had been received
+	 * from it for too long.
+	 */
+	public void idleEvicted() {
+		add(counters, IDLE_EVICTIONS, 1);
+	}
+
+	/**
+	 * Count one iteration of the loop.
+	 *
+	 * @param readyKeys	the number of keys selected, 0 for a wakeup
+	 * @param nanos		the time spent handling the iteration, in nanoseconds
+	 */
+	public void selected(int readyKeys, long nanos) {
+		add(counters, SELECTS, 1);
+		if (readyKeys == 0) {
+			add(counters, WAKEUPS, 1);
+		}
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		if (bucket >= HISTOGRAM_BUCKETS) {
+			bucket = HISTOGRAM_BUCKETS - 1;
+		}
+		add(selectTimes, bucket, 1);
+	}
+
+	/**
+	 * Count a message received from a client.
+	 *
+	 * @param byteClass	the class of the message type byte
+	 */
+	public void messageIn(int byteClass) {
+		add(messagesIn, byteClass, 1);
+	}
+
+	/**
+	 * Count a message queued for a client.
+	 *
+	 * @param byteClass	the class of the message type byte
+	 */
+	public void messageOut(int byteClass) {
+		add(messagesOut, byteClass, 1);
+	}
+
+	/**
+	 * Count bytes read from clients.
+	 *
+	 * @param n	the number of bytes
+	 */
+	public void bytesIn(long n) {
+		add(counters, BYTES_IN, n);
+	}
+
+	/**
+	 * Count bytes written to clients.
+	 *
+	 * @param n	the number of bytes
+	 */
+	public void bytesOut(long n) {
+		add(counters, BYTES_OUT, n);
+	}
+
+	/**
+	 * Publish the state of the output queues after a write pass.
+	 *
+	 * @param messages	the number of messages queued for all players
+	 * @param bytes		the number of bytes queued for all players
+	 * @param maxDepth	the largest number of messages queued for one player
+	 */
+	public void queues(long messages, long bytes, long maxDepth) {
+		counters.lazySet(QUEUED_MESSAGES, messages);
+		counters.lazySet(QUEUED_BYTES, bytes);
+		maxQueueDepth(maxDepth);
+	}
+
+	/**
+	 * Record the depth of an output queue, if it is the largest yet.
+	 *
+	 * @param depth	the number of messages in the queue
+	 */
+	public void maxQueueDepth(long depth) {
+		long max;
+		while (depth > (max = counters.get(MAX_QUEUE_DEPTH))) {
+			if (!concurrent) {
+				counters.lazySet(MAX_QUEUE_DEPTH, depth);
+				break;
+			}
+			if (counters.compareAndSet(MAX_QUEUE_DEPTH, max, depth)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Return one of the counters.
+	 *
+	 * @param index	the counter index
+	 * @return		the counter value
+	 */
+	long get(int index) {
+		return counters.get(index);
+	}
+
+	/**
+	 * Add the message counts by class to an array.
+	 *
+	 * @param in	<code>true</code> for messages received, <code>false</code>
+	 * 				for messages queued for clients
+	 * @param sums	the array of totals
+	 */
+	void addMessages(boolean in, long[] sums) {
+		AtomicLongArray array = in ? messagesIn : messagesOut;
+		for (int i = 0; i < CLASS_COUNT; ++i) {
+			sums[i] += array.get(i);
+		}
+	}
+
+	/**
+	 * Add the select time histogram to an array.
+	 *
+	 * @param sums	the array of totals
+	 */
+	void addSelectTimes(long[] sums) {
+		for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+			sums[i] += selectTimes.get(i);
+		}
+	}
+}
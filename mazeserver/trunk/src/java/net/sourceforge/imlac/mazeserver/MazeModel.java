@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.StringTokenizer;
+
+/**
+ * The server's copy of the maze, used to check that a player who claims a kill
+ * could actually see its victim.  The maze is the bitmap from the <code>MAZE:</code>
+ * table of <code>mazewar.asm</code>: 32 rows of one 16-bit word each, with the
+ * most significant bit of a word for the west edge of the row, and a bit set
+ * for each wall.  Y increases to the south and X to the east, and the
+ * directions are numbered north, east, south and west from 0, as in the
+ * location messages.
+ * <p>
+ * When the model is created, it works out for every cell and direction how
+ * many open cells can be seen before the first wall, so that a line of sight
+ * is checked with a lookup and a comparison.  The same table gives the cells
+ * in view of each cell along its corridors, whichever way a player in it is
+ * facing, which the games use to decide which players need each other's
+ * locations.  A model is never changed after it is created, and one instance
+ * is shared by all the games of a server.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Player
+ */
+public final class MazeModel {
+
+	/** Width of the maze in cells */
+	public static final int WIDTH = 16;
+
+	/** Height of the maze in cells */
+	public static final int HEIGHT = 32;
+
+	private static final int[] STEP_X = { 0, 1, 0, -1 };
+	private static final int[] STEP_Y = { -1, 0, 1, 0 };
+
+	/** The default maze, as assembled into the Imlac program */
+	private static final int[] DEFAULT_ROWS = {
+		0177777, 0106401, 0124675, 0121205, 0132055, 0122741, 0106415, 0124161,
+		0121405, 0135775, 0101005, 0135365, 0121205, 0127261, 0120205, 0106765,
+		0124405, 0166575, 0122005, 0107735, 0120001, 0135575, 0105005, 0125365,
+		0125225, 0121265, 0105005, 0135375, 0100201, 0135675, 0110041, 0177777
+	};
+
+	/** The model of the default maze */
+	public static final MazeModel DEFAULT = new MazeModel(DEFAULT_ROWS);
+
+	private final int[] rows;
+	private final byte[] sight;		// Open cells visible, by cell and direction
+
+	/**
+	 * Create the model of a maze.
+	 *
+	 * @param rows	the 32 rows of the maze, north to south
+	 * @throws IllegalArgumentException	if the number of rows is wrong
+	 */
+	public MazeModel(int[] rows) {
+		super();
+		if (rows.length != HEIGHT) {
+			throw new IllegalArgumentException("A maze has " + HEIGHT + " rows, not "
+				+ rows.length);
+		}
+		this.rows = new int[HEIGHT];
+		for (int y = 0; y < HEIGHT; ++y) {
+			this.rows[y] = rows[y] & 0177777;
+		}
+		sight = new byte[WIDTH * HEIGHT * 4];
+		for (int y = 0; y < HEIGHT; ++y) {
+			for (int x = 0; x < WIDTH; ++x) {
+				for (int dir = 0; dir < 4; ++dir) {
+					int n = 0;
+					while (!isWallAt(x + (n + 1) * STEP_X[dir], y + (n + 1) * STEP_Y[dir])) {
+						++n;
+					}
+					sight[index(x, y, dir)] = (byte) n;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a maze from the <code>MAZE:</code> table of an Imlac assembler source
+	 * file.  The table is a list of octal words, separated by spaces or
+	 * "<code>?</code>", which starts on the line with the label.
+	 *
+	 * @param file	the assembler source file
+	 * @return		the maze
+	 * @throws IOException	if the file cannot be read or has no maze table
+	 */
+	public static MazeModel load(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			int[] rows = new int[HEIGHT];
+			int count = -1;
+			String line;
+			while ((count < HEIGHT) && ((line = in.readLine()) != null)) {
+				int semi = line.indexOf(';');
+				if (semi >= 0) {
+					line = line.substring(0, semi);
+				}
+				if (count < 0) {
+					if (!line.startsWith("MAZE:")) {
+						continue;
+					}
+					line = line.substring(5);
+					count = 0;
+				}
+				StringTokenizer words = new StringTokenizer(line, " \t?");
+				while ((count < HEIGHT) && words.hasMoreTokens()) {
+					try {
+						rows[count++] = Integer.parseInt(words.nextToken(), 8);
+					} catch (NumberFormatException nfx) {
+						throw new IOException("Bad maze word in " + file + ": " + nfx.getMessage());
+					}
+				}
+			}
+			if (count < HEIGHT) {
+				throw new IOException("No complete MAZE: table in " + file);
+			}
+			return new MazeModel(rows);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int index(int x, int y, int dir) {
+		return (((y * WIDTH) + x) << 2) | dir;
+	}
+
+	/**
+	 * Return <code>true</code> if a cell is a wall.  Everything outside the maze
+	 * counts as wall.
+	 *
+	 * @param x	the X coordinate
+	 * @param y	the Y coordinate
+	 * @return	<code>true</code> if the cell is a wall
+	 */
+	public boolean isWallAt(int x, int y) {
+		if ((x < 0) || (x >= WIDTH) || (y < 0) || (y >= HEIGHT)) {
+			return true;
+		}
+		return ((rows[y] >> (15 - x)) & 1) != 0;
+	}
+
+	/**
+	 * Return the number of open cells which can be seen from a cell, looking in
+	 * a given direction, before the view is blocked by a wall.
+	 *
+	 * @param x		the X coordinate
+	 * @param y		the Y coordinate
+	 * @param dir	the direction, 0 to 3
+	 * @return		the number of cells, or 0 if the cell is a wall or outside
+	 * 				the maze
+	 */
+	public int getSightRange(int x, int y, int dir) {
+		if (isWallAt(x, y)) {
+			return 0;
+		}
+		return sight[index(x, y, dir & 3)];
+	}
+
+	/**
+	 * Return <code>true</code> if a player in one cell, facing in a given
+	 * direction, can see a player in another cell.  The players must be in open
+	 * cells, in the same row or column, with the target ahead of the viewer
+	 * and no wall between them.  Players in the same cell can see each other.
+	 *
+	 * @param fromX	the X coordinate of the viewer
+	 * @param fromY	the Y coordinate of the viewer
+	 * @param dir	the direction the viewer is facing, 0 to 3
+	 * @param toX	the X coordinate of the target
+	 * @param toY	the Y coordinate of the target
+	 * @return		<code>true</code> if the target is in sight
+	 */
+	public boolean canSee(int fromX, int fromY, int dir, int toX, int toY) {
+		if (isWallAt(fromX, fromY) || isWallAt(toX, toY)) {
+			return false;
+		}
+		dir &= 3;
+		int distance;
+		if (STEP_X[dir] == 0) {
+			if (toX != fromX) {
+				return false;
+			}
+			distance = (toY - fromY) * STEP_Y[dir];
+		} else {
+			if (toY != fromY) {
+				return false;
+			}
+			distance = (toX - fromX) * STEP_X[dir];
+		}
+		return (distance >= 0) && (distance <= sight[index(fromX, fromY, dir)]);
+	}
+
+	/**
+	 * Return <code>true</code> if two cells are in view of each other along a
+	 * corridor, so that a player in either cell could see a player in the other
+	 * by turning to face it.
+	 *
+	 * @param x1	the X coordinate of one cell
+	 * @param y1	the Y coordinate of one cell
+	 * @param x2	the X coordinate of the other cell
+	 * @param y2	the Y coordinate of the other cell
+	 * @return		<code>true</code> if the cells are in view of each other
+	 */
+	public boolean isInView(int x1, int y1, int x2, int y2) {
+		int dir;
+		if (x1 == x2) {
+			dir = (y2 < y1) ? 0 : 2;
+		} else if (y1 == y2) {
+			dir = (x2 > x1) ? 1 : 3;
+		} else {
+			return false;
+		}
+		return canSee(x1, y1, dir, x2, y2);
+	}
+}
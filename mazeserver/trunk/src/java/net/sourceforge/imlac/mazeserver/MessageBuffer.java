@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class holds one encoded message which may be queued for output to any
+ * number of players.  The message bytes live in a slot taken from a
+ * <code>MessagePool</code>, and the slot is returned to the pool when the last
+ * reference to the message is released.
+ * <p>
+ * Each player output queue that holds the message owns one reference.  The
+ * creator of the message owns the initial reference, and must release it after
+ * the message has been queued.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see MessagePool
+ */
+public final class MessageBuffer {
+
+	private final MessagePool pool;			// Owning pool, or null if not pooled
+	private final ByteBuffer data;			// Writable slot
+	private final ByteBuffer view;			// Read-only view of the slot
+	private int length;						// Length of the message in the slot
+	private int refCount;					// Number of outstanding references
+	int gatherMark;							// Used by OutputQueue.write()
+
+	/**
+	 * Create a message buffer over a given slot.  This is invoked by a
+	 * <code>MessagePool</code> when it carves up a new chunk of memory, or to
+	 * hold a message that is too large for a pooled slot.
+	 *
+	 * @param pool		the owning <code>MessagePool</code>, or <code>null</code>
+	 * @param data		the slot in which the message is stored
+	 */
+	MessageBuffer(MessagePool pool, ByteBuffer data) {
+		super();
+		this.pool = pool;
+		this.data = data;
+		this.view = data.asReadOnlyBuffer();
+		length = 0;
+		refCount = 0;
+	}
+
+	/**
+	 * Begin a new message in this buffer.  The caller owns the only reference.
+	 */
+	void reset() {
+		data.clear();
+		length = 0;
+		refCount = 1;
+	}
+
+	/**
+	 * Append a byte to the message being encoded in this buffer.
+	 *
+	 * @param b		the byte to append
+	 */
+	void put(byte b) {
+		data.put(length++, b);
+	}
+
+	/**
+	 * Append bytes to the message being encoded in this buffer.
+	 *
+	 * @param src		the source array
+	 * @param offset	the offset of the first byte in <code>src</code>
+	 * @param len		the number of bytes to append
+	 */
+	void put(byte[] src, int offset, int len) {
+		for (int i = 0; i < len; ++i) {
+			data.put(length++, src[offset + i]);
+		}
+	}
+
+	/**
+	 * Append bytes from the current position of a source buffer to the
+	 * message being encoded in this buffer.  The position of <code>src</code>
+	 * is advanced past the bytes.
+	 *
+	 * @param src		the source buffer
+	 * @param len		the number of bytes to append
+	 */
+	void put(ByteBuffer src, int len) {
+		for (int i = 0; i < len; ++i) {
+			data.put(length++, src.get());
+		}
+	}
+
+	/**
+	 * Return the length of the message.
+	 *
+	 * @return	the message length in bytes
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Return a byte of the message.
+	 *
+	 * @param index		the index of the byte within the message
+	 * @return			the message byte
+	 */
+	public byte get(int index) {
+		if ((index < 0) || (index >= length)) {
+			throw new IndexOutOfBoundsException("message index " + index);
+		}
+		return data.get(index);
+	}
+
+	/**
+	 * Copy the message, starting at a given offset, to a destination buffer.
+	 * The destination position is advanced, but this buffer is not changed.
+	 *
+	 * @param offset	the offset of the first byte to copy
+	 * @param dst		the destination buffer, which must have enough room
+	 */
+	public void copyTo(int offset, ByteBuffer dst) {
+		for (int i = offset; i < length; ++i) {
+			dst.put(data.get(i));
+		}
+	}
+
+	/**
+	 * Copy the message to a destination buffer.
+	 *
+	 * @param dst		the destination buffer, which must have enough room
+	 */
+	public void copyTo(ByteBuffer dst) {
+		copyTo(0, dst);
+	}
+
+	/**
+	 * Return a read-only view of the message, positioned at a given offset and
+	 * limited to the end of the message.  The view is shared by all holders of the
+	 * message, so it may only be used by the thread which owns the pool, and only
+	 * until the next call to this method.
+	 *
+	 * @param offset	the offset of the first byte in the view
+	 * @return			the read-only view
+	 */
+	public ByteBuffer view(int offset) {
+		view.limit(length);
+		view.position(offset);
+		return view;
+	}
+
+	/**
+	 * Add a reference to this message.  Each output queue which holds the message
+	 * owns a reference to it.
+	 *
+	 * @return	this message buffer
+	 */
+	public MessageBuffer retain() {
+		if (refCount <= 0) {
+			throw new IllegalStateException("retain of a free message buffer");
+		}
+		++refCount;
+		return this;
+	}
+
+	/**
+	 * Drop a reference to this message.  When the last reference is dropped,
+	 * the message slot returns to its pool.
+	 */
+	public void release() {
+		if (refCount <= 0) {
+			throw new IllegalStateException("release of a free message buffer");
+		}
+		if (--refCount == 0) {
+			if (pool != null) {
+				pool.recycle(this);
+			}
+		}
+	}
+
+	/**
+	 * Return the number of outstanding references to this message.
+	 *
+	 * @return	the reference count
+	 */
+	public int getRefCount() {
+		return refCount;
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is a pool of <code>MessageBuffer</code> slots.  The slots are
+ * carved out of large direct buffers, so that encoding a message for broadcast
+ * does not allocate anything once the pool has warmed up.  A message which is
+ * too large for a slot gets a buffer of its own, which is not pooled.
+ * <p>
+ * A pool is not thread-safe.  It belongs to the thread running the selector
+ * loop, and all of its messages must be retained and released on that thread.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see MessageBuffer
+ */
+public class MessagePool {
+
+	/** Size of a pooled slot.  The largest Maze message is 12 bytes. */
+	public static final int SLOT_SIZE = 16;
+
+	private static final int SLOTS_PER_CHUNK = 1024;
+
+	private MessageBuffer[] freeList;
+	private int freeCount;
+	private int chunkCount;
+	private int inUse;
+
+	/**
+	 * Create an empty message pool.  Memory is added to the pool as needed.
+	 */
+	public MessagePool() {
+		super();
+		freeList = new MessageBuffer[SLOTS_PER_CHUNK];
+		freeCount = 0;
+		chunkCount = 0;
+		inUse = 0;
+	}
+
+	/**
+	 * Allocate an empty message buffer.  The caller owns the only reference.
+	 *
+	 * @param size	the number of bytes that will be put in the message
+	 * @return		the message buffer
+	 */
+	public MessageBuffer allocate(int size) {
+		MessageBuffer buf;
+		if (size > SLOT_SIZE) {
+			buf = new MessageBuffer(null, ByteBuffer.allocate(size));
+		} else {
+			if (freeCount == 0) {
+				grow();
+			}
+			buf = freeList[--freeCount];
+			freeList[freeCount] = null;
+			++inUse;
+		}
+		buf.reset();
+		return buf;
+	}
+
+	/**
+	 * Encode a message into a buffer from this pool.
+	 *
+	 * @param message	the message
+	 * @return			the message buffer, with one reference owned by the caller
+	 */
+	public MessageBuffer encode(byte[] message) {
+		MessageBuffer buf = allocate(message.length);
+		buf.put(message, 0, message.length);
+		return buf;
+	}
+
+	/**
+	 * Encode the start of an array as a message in a buffer from this pool.
+	 *
+	 * @param message	the array holding the message
+	 * @param len		the length of the message
+	 * @return			the message buffer, with one reference owned by the caller
+	 */
+	public MessageBuffer encode(byte[] message, int len) {
+		MessageBuffer buf = allocate(len);
+		buf.put(message, 0, len);
+		return buf;
+	}
+
+	/**
+	 * Encode part of an array as a message in a buffer from this pool.
+	 *
+	 * @param message	the array holding the message
+	 * @param off		the offset of the message in the array
+	 * @param len		the length of the message
+	 * @return			the message buffer, with one reference owned by the caller
+	 */
+	public MessageBuffer encode(byte[] message, int off, int len) {
+		MessageBuffer buf = allocate(len);
+		buf.put(message, off, len);
+		return buf;
+	}
+
+	/**
+	 * Encode a one-byte message into a buffer from this pool.
+	 *
+	 * @param b		the message byte
+	 * @return		the message buffer, with one reference owned by the caller
+	 */
+	public MessageBuffer encode(byte b) {
+		MessageBuffer buf = allocate(1);
+		buf.put(b);
+		return buf;
+	}
+
+	/**
+	 * Encode a message from a type byte followed by bytes taken from a source
+	 * buffer.  This is used to encode a message straight from a player's input
+	 * buffer.
+	 *
+	 * @param type		the message type byte
+	 * @param src		the source buffer, positioned at the message body
+	 * @param len		the length of the message body
+	 * @return			the message buffer, with one reference owned by the caller
+	 */
+	public MessageBuffer encode(byte type, ByteBuffer src, int len) {
+		MessageBuffer buf = allocate(len + 1);
+		buf.put(type);
+		buf.put(src, len);
+		return buf;
+	}
+
+	/**
+	 * Return a message buffer to the free list.  This is invoked when the last
+	 * reference to the buffer is released.
+	 *
+	 * @param buf	the message buffer
+	 */
+	void recycle(MessageBuffer buf) {
+		freeList[freeCount++] = buf;
+		--inUse;
+	}
+
+	/**
+	 * Return the number of pooled message buffers which are currently allocated.
+	 *
+	 * @return	the number of buffers in use
+	 */
+	public int getInUseCount() {
+		return inUse;
+	}
+
+	/**
+	 * Return the number of chunks of memory which have been added to the pool.
+	 *
+	 * @return	the number of chunks
+	 */
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	private void grow() {
+		ByteBuffer chunk = ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * SLOT_SIZE);
+		++chunkCount;
+		if (freeList.length < chunkCount * SLOTS_PER_CHUNK) {
+			MessageBuffer[] newList = new MessageBuffer[chunkCount * SLOTS_PER_CHUNK];
+			System.arraycopy(freeList, 0, newList, 0, freeCount);
+			freeList = newList;
+		}
+		for (int i = SLOTS_PER_CHUNK - 1; i >= 0; --i) {
+			chunk.limit((i + 1) * SLOT_SIZE);
+			chunk.position(i * SLOT_SIZE);
+			freeList[freeCount++] = new MessageBuffer(this, chunk.slice());
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+/**
+ * This class maps player names to players.  A name is six ASCII characters,
+ * so it is packed into a <code>long</code>, and the index is an
+ * open-addressing hash table of packed names with linear probing.  Removal
+ * shifts the following entries of the probe sequence back, so the table has no
+ * deleted markers, and a lookup stops at the first empty slot.  The table
+ * doubles when it becomes half full.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ */
+public class NameIndex {
+
+	private long[] keys;
+	private Player[] values;
+	private int size;
+
+	/**
+	 * Create an index with room for a given number of names before it grows.
+	 *
+	 * @param expected	the expected number of names
+	 */
+	public NameIndex(int expected) {
+		super();
+		int capacity = 4;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new Player[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Pack a name into a <code>long</code>.  Only the first six bytes are used.
+	 *
+	 * @param name	the name
+	 * @return		the packed name
+	 */
+	public static long pack(byte[] name) {
+		long key = 0;
+		for (int i = 0; i < 6; ++i) {
+			key = (key << 8) | (name[i] & 0xff);
+		}
+		return key;
+	}
+
+	private int slot(long key) {
+		// Spread the characters over the low bits before masking
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 40) & (keys.length - 1);
+	}
+
+	/**
+	 * Find the player with a given name.
+	 *
+	 * @param name	the name
+	 * @return		the player, or <code>null</code> if there is none
+	 */
+	public Player get(byte[] name) {
+		long key = pack(name);
+		int mask = keys.length - 1;
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add a player under a given name, replacing any player already there.
+	 *
+	 * @param name		the name
+	 * @param player	the player
+	 */
+	public void put(byte[] name, Player player) {
+		if ((size + 1) * 2 > keys.length) {
+			grow();
+		}
+		insert(pack(name), player);
+	}
+
+	private void insert(long key, Player player) {
+		int mask = keys.length - 1;
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				values[i] = player;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = player;
+		++size;
+	}
+
+	/**
+	 * Remove a player from the index, if it is there under a given name.
+	 *
+	 * @param name		the name
+	 * @param player	the player
+	 */
+	public void remove(byte[] name, Player player) {
+		long key = pack(name);
+		int mask = keys.length - 1;
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				if (values[i] == player) {
+					delete(i);
+				}
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private void delete(int hole) {
+		int mask = keys.length - 1;
+		values[hole] = null;
+		--size;
+		// Move back any following entry whose probe sequence passes the hole
+		for (int i = (hole + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			int home = slot(keys[i]);
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				keys[hole] = keys[i];
+				values[hole] = values[i];
+				values[i] = null;
+				hole = i;
+			}
+		}
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Player[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new Player[oldKeys.length * 2];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldValues[i] != null) {
+				insert(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * Return the number of names in the index.
+	 *
+	 * @return	the number of names
+	 */
+	public int size() {
+		return size;
+	}
+}
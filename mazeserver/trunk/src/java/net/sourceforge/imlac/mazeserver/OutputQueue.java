@@ -0,0 +1,582 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * This class is the output queue for one client connection.  It holds a
+ * reference to each queued <code>MessageBuffer</code>, and writes the queued
+ * messages to the connection with a single gathering write, straight from the
+ * shared message buffers.  There is no staging buffer, so a backlog of any
+ * size is written in as many writes as the connection will take.
+ * <p>
+ * When the connection takes only part of the queued data, the queue keeps a
+ * cursor into the first unwritten message, and the next write resumes from
+ * there.
+ * <p>
+ * Location messages are coalesced.  A location message for a player replaces
+ * a queued location message for the same player which has not started to be
+ * written, so a recipient that falls behind gets only the latest position of
+ * each player, and its queue of location messages never holds more than one
+ * per player.  A location message never moves past a leave, kill or new player
+ * message, or past a relative move by the same player.  Those messages, and the
+ * order in which they are queued, are unchanged.
+ * <p>
+ * The queue is bounded.  When a message is added to a queue which already
+ * holds its limit of messages, the queue's <code>OverflowPolicy</code> decides
+ * whether the message is queued, and may discard older messages to make room.
+ * Critical messages are always queued, so a queue may exceed its limit, but a
+ * queue which reaches <code>HARD_LIMIT_FACTOR</code> times its limit, or which
+ * the policy considers to have been full for too long, is reported as expired,
+ * and its client should be disconnected.  The queue records the largest number
+ * of messages and bytes that it has held.
+ * <p>
+ * A queue for a client which uses the batched frame protocol encodes the
+ * queued messages into a frame with its <code>BatchCodec</code> when it is
+ * written, and writes the frame from a buffer of its own.  The messages are
+ * released as they are encoded, and a frame which the connection takes only
+ * part of is finished before the next one is started.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see MessageBuffer
+ */
+public class OutputQueue {
+
+	/** Maximum number of messages submitted in one gathering write */
+	private static final int MAX_GATHER = 64;
+
+	/** Largest Imlac id that appears in a message */
+	private static final int MAX_ID = Game.MAX_PLAYERS;
+
+	/** Default limit on the number of queued messages */
+	public static final int DEFAULT_LIMIT = 256;
+
+	/** Multiple of the limit at which a queue expires whatever its policy */
+	public static final int HARD_LIMIT_FACTOR = 4;
+
+	private MessageBuffer[] ring;			// Queued messages
+	private int head;						// Index of first message in ring
+	private int count;						// Number of messages in ring
+	private int headOffset;					// Bytes of first message already written
+	private int pendingBytes;				// Bytes not yet written
+	private final ByteBuffer[] gather;		// Views submitted to the channel
+	private int gatherMark;					// Identifies the current gather
+	private long headSeq;					// Sequence number of first message
+	private long barrierSeq;				// Last message no location may pass
+	private final long[] locationSeq;		// Last location message, by id
+	private final long[] relativeSeq;		// Last relative move, by id
+	private long coalescedCount;			// Location messages replaced
+	private int limit;						// Messages queued before overflow
+	private OverflowPolicy policy;			// What to do on overflow
+	private long overLimitSince;			// Time the queue became full, or 0
+	private long droppedCount;				// Messages discarded on overflow
+	private int highWaterCount;				// Most messages queued
+	private int highWaterBytes;				// Most bytes queued
+	private BatchCodec batch;				// Frame encoder, or null
+	private ByteBuffer frame;				// Frame being written
+
+	/**
+	 * Create an empty output queue.
+	 */
+	public OutputQueue() {
+		this(DEFAULT_LIMIT, OverflowPolicy.COALESCE);
+	}
+
+	/**
+	 * Create an empty output queue with a given limit and overflow policy.
+	 *
+	 * @param limit		the number of messages which may be queued before the
+	 * 					overflow policy is applied
+	 * @param policy	the overflow policy
+	 */
+	public OutputQueue(int limit, OverflowPolicy policy) {
+		super();
+		if (limit < 1) {
+			throw new IllegalArgumentException("Output queue limit must be positive");
+		}
+		ring = new MessageBuffer[16];
+		head = 0;
+		count = 0;
+		headOffset = 0;
+		pendingBytes = 0;
+		gather = new ByteBuffer[MAX_GATHER];
+		gatherMark = 0;
+		headSeq = 0;
+		barrierSeq = -1;
+		locationSeq = new long[MAX_ID + 1];
+		relativeSeq = new long[MAX_ID + 1];
+		for (int i = 0; i <= MAX_ID; ++i) {
+			locationSeq[i] = -1;
+			relativeSeq[i] = -1;
+		}
+		coalescedCount = 0;
+		this.limit = limit;
+		this.policy = policy;
+		overLimitSince = 0;
+		droppedCount = 0;
+		highWaterCount = 0;
+		highWaterBytes = 0;
+	}
+
+	/**
+	 * Return <code>true</code> if a message is an echoed byte.  Echoed bytes are
+	 * single bytes which are not relative moves.
+	 *
+	 * @param message	the message
+	 * @return			<code>true</code> if the message is an echoed byte
+	 */
+	public static boolean isEcho(MessageBuffer message) {
+		return (message.length() == 1) && !isRelativeMove(message.get(0));
+	}
+
+	/**
+	 * Return <code>true</code> if a message must not be discarded.  Everything
+	 * except location messages and echoed bytes is critical.
+	 *
+	 * @param message	the message
+	 * @return			<code>true</code> if the message is critical
+	 */
+	public static boolean isCritical(MessageBuffer message) {
+		int len = message.length();
+		if (len == 1) {
+			return isRelativeMove(message.get(0));
+		}
+		return !((len == 5) && (message.get(0) == 2));
+	}
+
+	static boolean isRelativeMove(byte type) {
+		return ((type >= 020) && (type <= 037)) || ((type >= 0140) && (type <= 0167));
+	}
+
+	/**
+	 * Add a message to the queue.  The queue takes its own reference to the
+	 * message.  A location message may replace an earlier location message for
+	 * the same player instead of being added to the end of the queue.
+	 *
+	 * @param message	the message to be queued
+	 */
+	public void add(MessageBuffer message) {
+		int len = message.length();
+		byte type = message.get(0);
+		int id = 0;
+		if ((type == 2) && (len == 5)) {
+			id = message.get(1);
+			if ((id > 0) && (id <= MAX_ID) && replaceLocation(id, message)) {
+				return;
+			}
+		}
+		if (count >= limit) {
+			if (overLimitSince == 0) {
+				overLimitSince = System.currentTimeMillis();
+			}
+			if (!policy.admit(this, message)) {
+				++droppedCount;
+				return;
+			}
+		}
+		if ((type == 2) && (len == 5)) {
+			if ((id > 0) && (id <= MAX_ID)) {
+				locationSeq[id] = headSeq + count;
+			}
+		} else if (len == 1) {
+			if (isRelativeMove(type)) {
+				// A relative move by player (type & 7) + 1
+				relativeSeq[(type & 7) + 1] = headSeq + count;
+			}
+		} else {
+			barrierSeq = headSeq + count;
+		}
+		append(message);
+	}
+
+	/**
+	 * Discard the oldest non-critical message which has not started to be
+	 * written.  This is used by an <code>OverflowPolicy</code> to make room in a
+	 * full queue.
+	 *
+	 * @return	<code>true</code> if a message was discarded
+	 */
+	public boolean dropOldest() {
+		int mask = ring.length - 1;
+		for (int index = (headOffset > 0) ? 1 : 0; index < count; ++index) {
+			MessageBuffer msg = ring[(head + index) & mask];
+			if (!isCritical(msg)) {
+				// Close the gap, and renumber the messages after it
+				for (int i = index; i < count - 1; ++i) {
+					ring[(head + i) & mask] = ring[(head + i + 1) & mask];
+				}
+				--count;
+				ring[(head + count) & mask] = null;
+				long seq = headSeq + index;
+				barrierSeq = renumber(barrierSeq, seq);
+				for (int i = 1; i <= MAX_ID; ++i) {
+					locationSeq[i] = renumber(locationSeq[i], seq);
+					relativeSeq[i] = renumber(relativeSeq[i], seq);
+				}
+				pendingBytes -= msg.length();
+				msg.release();
+				++droppedCount;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long renumber(long seq, long removedSeq) {
+		if (seq > removedSeq) {
+			return seq - 1;
+		}
+		return (seq == removedSeq) ? -1 : seq;
+	}
+
+	private boolean replaceLocation(int id, MessageBuffer message) {
+		long seq = locationSeq[id];
+		// The queued message must not have been written at all, and no
+		// message which it must precede may have been queued since.
+		long firstSeq = (headOffset > 0) ? headSeq + 1 : headSeq;
+		if ((seq < firstSeq) || (seq <= barrierSeq) || (seq <= relativeSeq[id])) {
+			return false;
+		}
+		int index = (int) (seq - headSeq);
+		if (index >= count) {
+			return false;
+		}
+		int slot = (head + index) & (ring.length - 1);
+		MessageBuffer old = ring[slot];
+		ring[slot] = message.retain();
+		old.release();
+		++coalescedCount;
+		return true;
+	}
+
+	private void append(MessageBuffer message) {
+		if (count == ring.length) {
+			MessageBuffer[] newRing = new MessageBuffer[ring.length * 2];
+			for (int i = 0; i < count; ++i) {
+				newRing[i] = ring[(head + i) & (ring.length - 1)];
+			}
+			ring = newRing;
+			head = 0;
+		}
+		ring[(head + count) & (ring.length - 1)] = message.retain();
+		++count;
+		pendingBytes += message.length();
+		if (count > highWaterCount) {
+			highWaterCount = count;
+		}
+		if (pendingBytes > highWaterBytes) {
+			highWaterBytes = pendingBytes;
+		}
+	}
+
+	/**
+	 * Write the queued messages in frames of the batched frame protocol from now
+	 * on.
+	 *
+	 * @param codec	the encoder for the frames
+	 * @param size	the size of the frame buffer
+	 */
+	public void setBatchCodec(BatchCodec codec, int size) {
+		batch = codec;
+		frame = ByteBuffer.allocateDirect(size);
+		frame.limit(0);
+	}
+
+	/**
+	 * Return <code>true</code> if the messages are written in batched frames.
+	 *
+	 * @return	<code>true</code> if the queue has a <code>BatchCodec</code>
+	 */
+	public boolean isBatched() {
+		return batch != null;
+	}
+
+	/**
+	 * Return the encoder for the batched frames.
+	 *
+	 * @return	the <code>BatchCodec</code>, or <code>null</code> if the messages
+	 * 			are written as they are
+	 */
+	public BatchCodec getBatchCodec() {
+		return batch;
+	}
+
+	/**
+	 * Return <code>true</code> if part of a batched frame remains to be written.
+	 *
+	 * @return	<code>true</code> if a frame is being written
+	 */
+	public boolean isWritingFrame() {
+		return (frame != null) && frame.hasRemaining();
+	}
+
+	/**
+	 * Return <code>true</code> if there is nothing waiting to be written.
+	 *
+	 * @return	<code>true</code> if the queue is empty
+	 */
+	public boolean isEmpty() {
+		return (count == 0) && !isWritingFrame();
+	}
+
+	/**
+	 * Return the number of messages in the queue, including one that has been
+	 * partially written.
+	 *
+	 * @return	the number of queued messages
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Return the number of location messages which have been replaced by later
+	 * location messages before being written.
+	 *
+	 * @return	the number of coalesced messages
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount;
+	}
+
+	/**
+	 * Return the number of messages which have been discarded because the queue
+	 * was full.
+	 *
+	 * @return	the number of dropped messages
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Return the largest number of messages that the queue has held.
+	 *
+	 * @return	the high-water mark in messages
+	 */
+	public int getHighWaterCount() {
+		return highWaterCount;
+	}
+
+	/**
+	 * Return the largest number of unwritten bytes that the queue has held.
+	 *
+	 * @return	the high-water mark in bytes
+	 */
+	public int getHighWaterBytes() {
+		return highWaterBytes;
+	}
+
+	/**
+	 * Return the number of messages which may be queued before the overflow
+	 * policy is applied.
+	 *
+	 * @return	the queue limit
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Return the overflow policy of this queue.
+	 *
+	 * @return	the overflow policy
+	 */
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Change the limit and overflow policy of this queue.
+	 *
+	 * @param limit		the number of messages which may be queued before the
+	 * 					overflow policy is applied
+	 * @param policy	the overflow policy
+	 */
+	public void setPolicy(int limit, OverflowPolicy policy) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Output queue limit must be positive");
+		}
+		this.limit = limit;
+		this.policy = policy;
+		checkLimit();
+	}
+
+	/**
+	 * Return the time at which the queue last reached its limit, if it has not
+	 * since dropped below it.
+	 *
+	 * @return	the time in milliseconds, or 0 if the queue is below its limit
+	 */
+	public long getOverLimitSince() {
+		return overLimitSince;
+	}
+
+	/**
+	 * Return <code>true</code> if the client of this queue has fallen so far
+	 * behind that it should be disconnected.
+	 *
+	 * @param now	the current time in milliseconds
+	 * @return		<code>true</code> if the queue has expired
+	 */
+	public boolean isExpired(long now) {
+		if (overLimitSince == 0) {
+			return false;
+		}
+		return (count >= limit * HARD_LIMIT_FACTOR) || policy.isExpired(this, now);
+	}
+
+	/**
+	 * Return the number of queued bytes which have not yet been written.
+	 *
+	 * @return	the number of pending bytes
+	 */
+	public int getPendingBytes() {
+		return isWritingFrame() ? pendingBytes + frame.remaining() : pendingBytes;
+	}
+
+	/**
+	 * Write as much of the queued data as the channel will take.  The messages
+	 * are submitted in gathering writes of up to <code>MAX_GATHER</code> messages,
+	 * and writing stops as soon as the channel takes less than it was offered.
+	 * Messages which have been completely written are released.
+	 *
+	 * @param chan			the channel to write to
+	 * @return				the number of bytes written
+	 * @throws IOException	if an I/O error occurs
+	 */
+	public long write(GatheringByteChannel chan) throws IOException {
+		if (batch != null) {
+			return writeFrames(chan);
+		}
+		long total = 0;
+		while (count > 0) {
+			int n = 0;
+			long offered = 0;
+			++gatherMark;
+			while ((n < count) && (n < MAX_GATHER)) {
+				MessageBuffer msg = ring[(head + n) & (ring.length - 1)];
+				// The same message may be queued more than once, but it has
+				// only one view, so it can appear only once in a gather.
+				if (msg.gatherMark == gatherMark) {
+					break;
+				}
+				msg.gatherMark = gatherMark;
+				gather[n] = msg.view((n == 0) ? headOffset : 0);
+				offered += gather[n].remaining();
+				++n;
+			}
+			long len = chan.write(gather, 0, n);
+			for (int i = 0; i < n; ++i) {
+				gather[i] = null;
+			}
+			if (len > 0) {
+				consume(len);
+				total += len;
+			}
+			if (len < offered) {
+				break;
+			}
+		}
+		checkLimit();
+		return total;
+	}
+
+	/**
+	 * Write as much of the queued data as the channel will take, in batched
+	 * frames.  Each frame holds as many of the queued messages as fit in the
+	 * frame buffer.
+	 */
+	private long writeFrames(GatheringByteChannel chan) throws IOException {
+		long total = 0;
+		while (true) {
+			if (!frame.hasRemaining()) {
+				if (count == 0) {
+					break;
+				}
+				frame.clear();
+				batch.beginFrame(frame);
+				while ((count > 0) && batch.hasRoom(ring[head], frame)) {
+					batch.encode(ring[head], frame);
+					pendingBytes -= ring[head].length();
+					removeHead();
+				}
+				batch.endFrame(frame);
+			}
+			int len = chan.write(frame);
+			total += len;
+			if (frame.hasRemaining()) {
+				break;
+			}
+		}
+		checkLimit();
+		return total;
+	}
+
+	/**
+	 * Release all the queued messages without writing them.
+	 */
+	public void clear() {
+		while (count > 0) {
+			removeHead();
+		}
+		headOffset = 0;
+		pendingBytes = 0;
+		overLimitSince = 0;
+		if (frame != null) {
+			frame.limit(0);
+		}
+	}
+
+	private void checkLimit() {
+		if (count < limit) {
+			overLimitSince = 0;
+		} else if (overLimitSince == 0) {
+			overLimitSince = System.currentTimeMillis();
+		}
+	}
+
+	private void consume(long len) {
+		pendingBytes -= (int) len;
+		while (len > 0) {
+			MessageBuffer msg = ring[head];
+			int left = msg.length() - headOffset;
+			if (len >= left) {
+				len -= left;
+				headOffset = 0;
+				removeHead();
+			} else {
+				headOffset += (int) len;
+				len = 0;
+			}
+		}
+	}
+
+	private void removeHead() {
+		MessageBuffer msg = ring[head];
+		ring[head] = null;
+		head = (head + 1) & (ring.length - 1);
+		--count;
+		++headSeq;
+		msg.release();
+	}
+}
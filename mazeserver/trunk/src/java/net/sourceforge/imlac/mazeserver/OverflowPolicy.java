@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+/**
+ * This class decides what happens to a message which is added to a full
+ * <code>OutputQueue</code>, and when a client which cannot keep up with its
+ * output should be disconnected.  Each output queue has its own policy, so
+ * that it can be chosen for each connection.
+ * <p>
+ * Messages are either critical or non-critical.  Leave, kill, new player and
+ * relative move messages change the state of the game on the client, and are
+ * critical.  Location messages, which are superseded by the next location
+ * message for the same player, and echoed bytes are non-critical.  A policy
+ * may discard non-critical messages, but never critical ones.  Whatever the
+ * policy, a connection is disconnected if its queue grows to
+ * <code>OutputQueue.HARD_LIMIT_FACTOR</code> times its limit.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see OutputQueue
+ */
+public abstract class OverflowPolicy {
+
+	/**
+	 * Keep every critical message and the latest location of each player, and
+	 * discard echoed bytes while the queue is full.  Location messages are still
+	 * coalesced.
+	 */
+	public static final OverflowPolicy COALESCE = new OverflowPolicy("coalesce") {
+		public boolean admit(OutputQueue queue, MessageBuffer message) {
+			return !OutputQueue.isEcho(message);
+		}
+	};
+
+	/**
+	 * Make room for a new message by discarding the oldest non-critical message
+	 * which has not started to be written.  If there is none, the new message is
+	 * queued anyway.
+	 */
+	public static final OverflowPolicy DROP_OLDEST = new OverflowPolicy("drop-oldest") {
+		public boolean admit(OutputQueue queue, MessageBuffer message) {
+			if (!queue.dropOldest()) {
+				// Nothing to drop, so if the new message is not critical,
+				// it is the one to go
+				return OutputQueue.isCritical(message);
+			}
+			return true;
+		}
+	};
+
+	private final String name;
+
+	/**
+	 * Create a policy.
+	 *
+	 * @param name	the name of the policy, as used by <code>forName()</code>
+	 */
+	protected OverflowPolicy(String name) {
+		super();
+		this.name = name;
+	}
+
+	/**
+	 * Return a policy which queues every message, but disconnects the client
+	 * once its queue has stayed over its limit for a given time.
+	 *
+	 * @param timeout	the time in milliseconds that the queue may stay full
+	 * @return			the policy
+	 */
+	public static OverflowPolicy disconnectAfter(final long timeout) {
+		return new OverflowPolicy("disconnect:" + timeout) {
+			public boolean admit(OutputQueue queue, MessageBuffer message) {
+				return true;
+			}
+
+			public boolean isExpired(OutputQueue queue, long now) {
+				long since = queue.getOverLimitSince();
+				return (since != 0) && ((now - since) >= timeout);
+			}
+		};
+	}
+
+	/**
+	 * Return the policy with a given name.  The names are "coalesce",
+	 * "drop-oldest" and "disconnect:<i>milliseconds</i>".
+	 *
+	 * @param name	the policy name
+	 * @return		the policy
+	 * @throws IllegalArgumentException	if the name is not recognized
+	 */
+	public static OverflowPolicy forName(String name) {
+		if (name.equals(COALESCE.name)) {
+			return COALESCE;
+		}
+		if (name.equals(DROP_OLDEST.name)) {
+			return DROP_OLDEST;
+		}
+		if (name.startsWith("disconnect:")) {
+			try {
+				return disconnectAfter(Long.parseLong(name.substring(11)));
+			} catch (NumberFormatException nfx) {
+				// Fall through
+			}
+		}
+		throw new IllegalArgumentException("Unknown overflow policy: " + name);
+	}
+
+	/**
+	 * Decide whether a message should be added to a queue which is at its limit.
+	 * The policy may remove other messages from the queue to make room.
+	 *
+	 * @param queue		the full queue
+	 * @param message	the message being added
+	 * @return			<code>true</code> if the message should be queued, or
+	 * 					<code>false</code> if it should be discarded
+	 */
+	public abstract boolean admit(OutputQueue queue, MessageBuffer message);
+
+	/**
+	 * Decide whether the client of a queue should be disconnected because it has
+	 * not kept up with its output.  The default is to wait for the hard limit.
+	 *
+	 * @param queue	the queue
+	 * @param now	the current time in milliseconds
+	 * @return		<code>true</code> if the client should be disconnected
+	 */
+	public boolean isExpired(OutputQueue queue, long now) {
+		return false;
+	}
+
+	public String toString() {
+		return name;
+	}
+}
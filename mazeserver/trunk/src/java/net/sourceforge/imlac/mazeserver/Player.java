@@ -17,12 +17,11 @@
  */
 package net.sourceforge.imlac.mazeserver;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
 
 /**
  * This class represents a player in the maze server.  Each player has a
@@ -32,7 +31,7 @@ import java.util.LinkedList;
  * @author Howard Palmer
  * @version $Id$
  */
-public class Player {
+public class Player implements ProtocolDecoder.Sink {
 
 	private static final byte BC_IGNORE = 0;
 	private static final byte BC_LEAVE = 1;
@@ -46,6 +45,33 @@ public class Player {
 	private static final byte BC_NEWFWD = 9;
 	private static final byte BC_NEWBACK = 10;
 	
+	/** Ending of a name line which asks for the datagram side channel */
+	private static final byte[] UDP_OPTION = { ' ', 'U', 'D', 'P' };
+	
+	/** Ending of a name line which asks for the batched frame protocol */
+	private static final byte[] BATCH_OPTION = { ' ', 'B', 'A', 'T', 'C', 'H' };
+
+	/** Ending of a name line which asks for round-trip probes */
+	private static final byte[] PROBE_OPTION = { ' ', 'P', 'R', 'O', 'B', 'E' };
+
+	/** Suffix of a command line which asks to watch the game named before it */
+	private static final byte[] WATCH_OPTION = { ' ', 'W', 'A', 'T', 'C', 'H' };
+	
+	/** Time in milliseconds a shot may take to land, with some allowance for lag */
+	private static final long SHOT_TIME = 2500;
+	
+	/** Probe which a client that asks for probes sends straight back */
+	public static final byte PROBE = 6;
+	
+	/** Time in milliseconds between round-trip probes of a player */
+	public static final long PROBE_INTERVAL = 1000;
+	
+	/** Time in milliseconds after which a probe with no answer is counted lost */
+	public static final long PROBE_TIMEOUT = 10000;
+	
+	/** Number of recent positions kept for checking kills, a power of two */
+	private static final int TRACK_SIZE = 32;
+
 	private static byte[] byteClass = {
 		BC_IGNORE, BC_LEAVE, BC_MOVE, BC_KILL,									// 000-003
 		BC_NEW, BC_IGNORE, BC_IGNORE, BC_IGNORE,								// 004-007
@@ -73,16 +99,31 @@ public class Player {
 	};
 	
 	protected final Server server;			// Reference to the server
+	protected final Game game;				// The game this player is in
 	protected final SocketChannel schan;	// Connection to player
 	protected final SelectionKey key;
 	protected final byte[] name;					// Player's name or handle (max. 6 chars)
 	protected final ByteBuffer inBuf;				// Input buffer
-	protected final LinkedList<byte[]> outList;		// Output message list
-	protected final ByteBuffer outBuf;				// Output buffer
-	protected boolean outputBusy;
-	protected boolean partialMessage;
-	protected boolean readingCmdLine;		// Reading initial command line
-	protected final ByteArrayOutputStream cmdLine;
+	protected final OutputQueue outQueue;			// Output message queue
+	protected final PlayerMetrics metrics;			// Counters for this player
+	protected final int connectionNumber;	// Number of connection in event loop
+	protected final TimingWheel.Timer idleTimer;	// Time of last input
+	boolean dirty;							// In the event loop's dirty set
+	int reportedDepth;						// Queue depth counted by the event loop
+	int reportedBytes;						// Queued bytes counted by the event loop
+	protected final CaptureLog capture;		// Log of input, or null
+	protected final int captureNumber;		// Number of connection in capture log
+	protected boolean wantsDatagrams;		// Asked for the datagram side channel
+	protected boolean probing;				// Asked for round-trip probes
+	protected long probeTime;				// When the unanswered probe was queued, or 0
+	protected long nextFrameTime;			// Earliest time for the next batched frame
+	protected DatagramTransport udp;		// Datagram side channel, or null
+	protected int udpToken;					// Token of this player's datagrams
+	protected SocketAddress udpAddress;		// Where to send datagrams, or null
+	protected short udpInSeq;				// Sequence of last datagram received
+	protected short udpOutSeq;				// Sequence of last datagram sent
+	protected boolean registered;			// Player MBean is registered
+	protected final ProtocolDecoder decoder;	// Decoder of the input stream
 	protected int nameLen;
 	protected int id;						// The assigned id (1-8)
 	protected int dir;						// Direction
@@ -90,6 +131,14 @@ public class Player {
 	protected int dy;						// Y position
 	protected int hits;						// Number of hits on other players
 	protected int deaths;					// How many times this one died
+	protected final int[] track;			// Recent positions, for checking kills
+	protected final long[] trackTimes;		// When each recent position was reached
+	protected int trackNext;				// Slot for the next position
+	protected int trackCount;				// Positions recorded, up to one more than kept
+	protected final int[] shotFrom;			// Shooter positions, while checking a kill
+	protected final int[] shotTo;			// Victim positions, while checking a kill
+	protected int withheldIds;				// Players whose latest location was withheld, by id bit
+	protected final long[] outOfSightTimes;	// When each player's location was last sent out of sight
 	
 	/**
 	 * Create a new player instance.  The server invokes this when it has accepted
@@ -97,35 +146,84 @@ public class Player {
 	 * for read/write events on the server's selector.  The server subsequently calls
 	 * methods in the <code>Player</code> to service those events.
 	 * 
-	 * @param server		the <code>Server</code> instance that is creating this
-	 * 						<code>Player</code>
+	 * @param game			the <code>Game</code> which this player joins
+	 * @param schan			the <code>SocketChannel</code> representing this player's
+	 * 						connection to its client
+	 * @throws IOException	if an error occurs in registering with the server's selector
+	 */
+	public Player(Game game, SocketChannel schan) throws IOException {
+		this(game, schan, true);
+	}
+	
+	/**
+	 * Create a new player instance, which may or may not be driven by the selector
+	 * of its event loop.  A player which is not registered with a selector is
+	 * driven by threads of its own, which use blocking I/O on the connection.
+	 * 
+	 * @param game			the <code>Game</code> which this player joins
 	 * @param schan			the <code>SocketChannel</code> representing this player's
 	 * 						connection to its client
+	 * @param selectable	<code>true</code> to register the connection with the
+	 * 						selector of the game's event loop
 	 * @throws IOException	if an error occurs in registering with the server's selector
 	 */
-	public Player(Server server, SocketChannel schan) throws IOException {
+	protected Player(Game game, SocketChannel schan, boolean selectable) throws IOException {
 		super();
-		this.server = server;
+		this.server = game.getEventLoop().getServer();
+		this.game = game;
 		this.schan = schan;
 		
-		// Initially we only want to read
-		schan.configureBlocking(false);
 		schan.socket().setTcpNoDelay(true);
-		key = schan.register(server.getSelector(), SelectionKey.OP_READ);
-		key.attach(this);
+		if (selectable) {
+			// Initially we only want to read
+			schan.configureBlocking(false);
+			key = schan.register(game.getEventLoop().getSelector(), SelectionKey.OP_READ);
+			key.attach(this);
+		} else {
+			schan.configureBlocking(true);
+			key = null;
+		}
 		name = new byte[6];
-		outList = new LinkedList<byte[]>();
-		outBuf = ByteBuffer.allocateDirect(256);
+		outQueue = new OutputQueue(server.getOutputLimit(), server.getOverflowPolicy());
+		metrics = new PlayerMetrics(this, game.getEventLoop().getMetrics());
+		registered = false;
 		inBuf = ByteBuffer.allocateDirect(256);
 		nameLen = 0;
 		id = 0;
-		outputBusy = false;
-		partialMessage = false;
-		readingCmdLine = true;
-		cmdLine = new ByteArrayOutputStream(128);
-		System.out.println("Player created.");
+		decoder = new ProtocolDecoder();
+		track = new int[TRACK_SIZE];
+		trackTimes = new long[TRACK_SIZE];
+		shotFrom = new int[TRACK_SIZE + 1];
+		shotTo = new int[TRACK_SIZE + 1];
+		outOfSightTimes = new long[Game.MAX_PLAYERS + 1];
+		capture = server.getCaptureLog();
+		captureNumber = (capture != null) ? capture.connected() : 0;
+		connectionNumber = game.getEventLoop().addConnection(this);
+		idleTimer = new TimingWheel.Timer(this);
+		game.getEventLoop().startIdleTimer(idleTimer);
+		game.attach(this);
+		System.out.println("Player created in game " + game.getGameId() + ".");
 	}
 
+	/**
+	 * Return the game that this player is in.
+	 * 
+	 * @return	the <code>Game</code>
+	 */
+	public Game getGame() {
+		return game;
+	}
+	
+	/**
+	 * Return the number of this player's connection within its event loop.  This
+	 * identifies the player on the server side, whatever its Imlac id.
+	 * 
+	 * @return	the connection number
+	 */
+	public int getConnectionNumber() {
+		return connectionNumber;
+	}
+	
 	/**
 	 * Return the Imlac id associated with this player.
 	 * 
@@ -199,189 +297,477 @@ public class Player {
 //			System.out.println("Key is readable");
 			if (inBuf.hasRemaining()) {
 				int len = schan.read(inBuf);
+				if (len > 0) {
+					idleTimer.touch();
+					metrics.bytesIn(len);
+					captured(len);
+				}
 				if (len < 0) {
-					byte[] msg = makeLeaveMessage(id);
-					server.queueMessage(id, msg);
-					server.removePlayer(this);
+					game.removePlayer(this);
+					if (id > 0) {
+						game.queueMessage(id, makeLeaveMessage(id));
+					}
 					return;
 				}
 //				System.out.println("Read from socket: position=" + inBuf.position()
 //				+ ", limit=" + inBuf.limit());
 			}
-			if (inBuf.position() > 0) {
-				inBuf.flip();
-				while (!partialMessage && inBuf.hasRemaining()) {
-					byte b = inBuf.get();
-					b &= (byte)0177;
-//					System.out.println("Read byte: " + Integer.toOctalString(b));
-					if (readingCmdLine) {
-						if (b == 012) {
-							readingCmdLine = false;
-							byte[] cmd = cmdLine.toByteArray();
-							nameLen = (name.length < cmd.length) ? name.length : cmd.length;
-							for (int n = 0; n < nameLen; ++n) {
-								name[n] = cmd[n];
-							}
-							while (nameLen < name.length) {
-								name[nameLen++] = 040;
-							}
-							System.out.println(
-								"Server command line: \""
-									+ cmdLine.toString()
-									+ "\"");
-						} else {
-							cmdLine.write(b);
-							continue;
-						}
-					}
-					if (id == 0) {
-						// If the user name is the same as an existing player,
-						// then make that player leave, and reenter with the
-						// same id here.
-						Player me = server.findUser(name);
-						if (me != null) {
-							id = me.getId();
-							hits = me.getHits();
-							deaths = me.getDeaths();
-							byte[] leave = makeLeaveMessage(id);
-							server.queueMessage(id, leave);
-							server.replacePlayer(id, this);
-						} else {
-							id = server.allocateId();
-							if (id == 0) {
-								// Could not get an id
-								close();
-								return;
-							}
-							server.addPlayer(this);
-						}
-						// Send the new player message to everyone
-						byte[] msg = makeNewPlayerMessage();
-						System.out.println("Queuing new player message of " + msg.length
-						+ " bytes");
-						queueMessage(msg);
-						server.queueMessage(id, msg);
-						// TODO:
-						// Need to send type 4 messages for the other players
-						// to this new player
-						server.sendPlayerLocations(this);
-						inBuf.clear();
-						return;
-					}
-					
-					byte bc = byteClass[b];
-					byte[] msg = null;
-					switch (bc) {
-						case BC_IGNORE:
-							break;
-						case BC_LEAVE:
-							msg = extractLeaveMessage();
-							if (msg != null) {
-								server.queueMessage(id, msg);
-								server.removePlayer(this);
-							}
-							break;
-						case BC_MOVE:
-							msg = extractLocationMessage();
-							if (msg != null) {
-								dir = msg[2] & 3;
-								dx = msg[3] & 077;
-								dy = msg[4] & 077;
-//								System.out.println("Player " + id + ": move id="
-//								+ msg[1] + ", dir=" + dir + ", dx=" + dx + ", dy" + dy);
-								server.queueMessage(id, msg);
-							}
-							break;
-						case BC_KILL:
-							msg = extractKillMessage();
-							if (msg != null) {
-								++hits;
-								Player otherPlayer = server.findPlayer(msg[2]);
-								if (otherPlayer != null) {
-									otherPlayer.killed();
-								}
-								server.queueMessage(msg[1], msg);
-							}
-							break;
-						case BC_NEW:
-							msg = extractNewPlayerMessage();
-							if (msg != null) {
-								System.out.println("Server received new player message");
-							}
-							break;
-						case BC_ECHO:
-							msg = new byte[1];
-							msg[0] = b;
-							queueMessage(msg);
-							server.queueMessage(id, msg);
-							break;
-						case BC_NEWRIGHT:
-							dir = (dir + 1) & 3;
-							break;
-						case BC_NEWLEFT:
-							dir = (dir - 1) & 3;
-							break;
-						case BC_NEWAROUND:
-							dir = (dir + 2) & 3;
-							break;
-						case BC_NEWFWD:
-//							System.out.println("Player " + id + ": newfwd");
-							switch (dir & 3) {
-								case 0:
-									dy -= 1;
-									break;
-								case 1:
-									dx += 1;
-									break;
-								case 2:
-									dy += 1;
-									break;
-								case 3:
-									dx -= 1;
-									break;
-							}
-							break;
-						case BC_NEWBACK:
-							switch (dir & 3) {
-								case 0:
-									dy += 1;
-									break;
-								case 1:
-									dx -= 1;
-									break;
-								case 2:
-									dy -= 1;
-									break;
-								case 3:
-									dx += 1;
-									break;
-							}
-							break;
-					}
-					if (bc > BC_ECHO) {
-						msg = new byte[1];
-						msg[0] = b;
-						server.queueMessage(id, msg);
-					}
+			processInput();
+		}
+	}
+	
+	/**
+	 * Record input which has just been read into the input buffer in the capture
+	 * log, if there is one.
+	 * 
+	 * @param len	the number of bytes read
+	 */
+	protected void captured(int len) {
+		if (capture != null) {
+			capture.received(captureNumber, inBuf, inBuf.position() - len, len);
+		}
+	}
+	
+	/**
+	 * Process the input which has been read into the input buffer.  The whole
+	 * buffer is passed to the decoder, which keeps any unfinished message until
+	 * the rest of it is read, and the buffer is then empty for the next read.
+	 * This is separate from <code>read()</code> so that the decoder can be driven
+	 * without a connection.
+	 */
+	void processInput() {
+		if (inBuf.position() > 0) {
+			inBuf.flip();
+			if (isOpen()) {
+				decoder.decode(inBuf, this);
+			}
+			inBuf.clear();
+		}
+	}
+	
+	/**
+	 * Accept the command line from the decoder.  It holds the player's name,
+	 * possibly followed by options, or asks to watch a game.  The player joins
+	 * the game at once.
+	 * 
+	 * @param cmd		the command line
+	 * @param cmdLen	the length of the command line
+	 * @return			<code>true</code> if the player has joined and its
+	 * 					messages should be decoded
+	 */
+	public boolean commandLine(byte[] cmd, int cmdLen) {
+		System.out.println("Server command line: \""
+			+ new String(cmd, 0, cmdLen) + "\"");
+		if (endsWith(cmd, cmdLen, WATCH_OPTION)) {
+			watch(parseGameId(cmd, cmdLen - WATCH_OPTION.length));
+			return false;
+		}
+		while (true) {
+			if (endsWith(cmd, cmdLen, UDP_OPTION)) {
+				wantsDatagrams = true;
+				cmdLen -= UDP_OPTION.length;
+			} else if (endsWith(cmd, cmdLen, BATCH_OPTION)) {
+				if (!outQueue.isBatched()) {
+					outQueue.setBatchCodec(new BatchCodec(), BatchCodec.FRAME_SIZE);
 				}
-				
-				if (partialMessage) {
-					System.out.println("Partial message");
-					// A partial message remains at the end of the input
-					// buffer.  Copy it to the beginning and prepare the
-					// buffer for more input.
-					int pos = inBuf.position();
-					int lim = inBuf.limit();
-					inBuf.clear();
-					for (int i = pos; i < lim; ++i) {
-						inBuf.put(inBuf.get(i));
-					}
-					partialMessage = false;
-				} else {
-					inBuf.clear();
+				cmdLen -= BATCH_OPTION.length;
+			} else if (endsWith(cmd, cmdLen, PROBE_OPTION)) {
+				probing = true;
+				cmdLen -= PROBE_OPTION.length;
+			} else {
+				break;
+			}
+		}
+		nameLen = (name.length < cmdLen) ? name.length : cmdLen;
+		for (int n = 0; n < nameLen; ++n) {
+			name[n] = cmd[n];
+		}
+		while (nameLen < name.length) {
+			name[nameLen++] = 040;
+		}
+		
+		// If the user name is the same as an existing player,
+		// then make that player leave, and reenter with the
+		// same id here.
+		Player me = game.findUser(name);
+		if (me != null) {
+			id = me.getId();
+			hits = me.getHits();
+			deaths = me.getDeaths();
+			byte[] leave = makeLeaveMessage(id);
+			game.queueMessage(id, leave);
+			game.replacePlayer(id, this);
+		} else {
+			id = game.allocateId();
+			if (id == 0) {
+				// Could not get an id
+				game.getEventLoop().getMetrics().rejected();
+				game.removePlayer(this);
+				return false;
+			}
+			ScoreJournal journal = server.getScoreJournal();
+			if (journal != null) {
+				hits = journal.getHits(name);
+				deaths = journal.getDeaths(name);
+			}
+			game.addPlayer(this);
+		}
+		server.getMetrics().registerPlayer(this);
+		registered = true;
+		// Send the new player message to everyone
+		byte[] msg = makeNewPlayerMessage();
+		System.out.println("Queuing new player message of " + msg.length
+		+ " bytes");
+		queueMessage(msg);
+		game.queueMessage(id, msg);
+		// TODO:
+		// Need to send type 4 messages for the other players
+		// to this new player
+		game.sendPlayerLocations(this);
+		if (wantsDatagrams) {
+			udp = game.getEventLoop().getDatagramTransport();
+			if (udp != null) {
+				udpToken = udp.offer(this);
+			}
+		}
+		if (probing) {
+			game.getEventLoop().startProbes(this);
+		}
+		return isOpen();
+	}
+	
+	/**
+	 * Accept a message from the decoder, and act on it.
+	 * 
+	 * @param message	the message, starting with its type byte
+	 * @param len		the length of the message
+	 * @return			<code>true</code> if the player is still in the game
+	 */
+	public boolean message(byte[] message, int len) {
+		byte b = message[0];
+		byte bc = byteClass[b];
+		MessageBuffer msg = null;
+		switch (bc) {
+			case BC_IGNORE:
+				if ((b == PROBE) && (probeTime != 0)) {
+					long rtt = System.nanoTime() - probeTime;
+					probeTime = 0;
+					metrics.roundTrip(rtt);
+					game.roundTrip(rtt);
+				}
+				break;
+			case BC_LEAVE:
+				msg = game.getMessagePool().encode(message, len);
+				game.removePlayer(this);
+				game.queueMessage(id, msg);
+				msg.release();
+				break;
+			case BC_MOVE:
+				msg = game.getMessagePool().encode(message, len);
+				locationReceived(msg);
+				msg.release();
+				break;
+			case BC_KILL:
+				msg = game.getMessagePool().encode(message, len);
+				Player otherPlayer = game.findPlayer(msg.get(2));
+				if (!isPossibleKill(otherPlayer, msg.get(2))) {
+					game.getEventLoop().getMetrics().invalidKill();
+					msg.release();
+					break;
+				}
+				++hits;
+				game.playerScored(this);
+				if (otherPlayer != null) {
+					otherPlayer.killed();
+					game.playerScored(otherPlayer);
+				}
+				ScoreJournal journal = server.getScoreJournal();
+				if (journal != null) {
+					journal.recordKill(name, (otherPlayer != null)
+						? otherPlayer.getName() : game.getRemoteName(msg.get(2)));
+				}
+				game.queueMessage(msg.get(1), msg);
+				msg.release();
+				break;
+			case BC_NEW:
+				System.out.println("Server received new player message");
+				break;
+			case BC_ECHO:
+				// Echo to everyone, including the sender
+				msg = game.getMessagePool().encode(b);
+				queueMessage(msg);
+				game.queueMessage(id, msg);
+				msg.release();
+				break;
+			case BC_NEWRIGHT:
+				dir = (dir + 1) & 3;
+				break;
+			case BC_NEWLEFT:
+				dir = (dir - 1) & 3;
+				break;
+			case BC_NEWAROUND:
+				dir = (dir + 2) & 3;
+				break;
+			case BC_NEWFWD:
+//				System.out.println("Player " + id + ": newfwd");
+				switch (dir & 3) {
+					case 0:
+						dy -= 1;
+						break;
+					case 1:
+						dx += 1;
+						break;
+					case 2:
+						dy += 1;
+						break;
+					case 3:
+						dx -= 1;
+						break;
+				}
+				break;
+			case BC_NEWBACK:
+				switch (dir & 3) {
+					case 0:
+						dy += 1;
+						break;
+					case 1:
+						dx -= 1;
+						break;
+					case 2:
+						dy -= 1;
+						break;
+					case 3:
+						dx += 1;
+						break;
+				}
+				break;
+		}
+		metrics.messageIn(bc);
+		if (bc > BC_ECHO) {
+			moved();
+			msg = game.getMessagePool().encode(b);
+			game.queueMessage(id, msg);
+			msg.release();
+		}
+		return isOpen();
+	}
+	
+	/**
+	 * Parse the game id at the start of a command line.
+	 * 
+	 * @param cmd	the command line
+	 * @param len	the length of the game id
+	 * @return		the game id, or 0 if it is not a number
+	 */
+	private static int parseGameId(byte[] cmd, int len) {
+		int gameId = 0;
+		for (int i = 0; i < len; ++i) {
+			if ((cmd[i] < '0') || (cmd[i] > '9') || (gameId > 9999999)) {
+				return 0;
+			}
+			gameId = (gameId * 10) + (cmd[i] - '0');
+		}
+		return gameId;
+	}
+	
+	/**
+	 * Turn this connection into a spectator of a game, and hand it to the event
+	 * loop which hosts the game.  The connection gives up its slot in this
+	 * game, and this <code>Player</code> instance is discarded.  If there is no
+	 * such game, or the server is in the thread-per-connection mode, which
+	 * does not support spectators, the connection is closed.
+	 * 
+	 * @param gameId	the id of the game to watch
+	 */
+	private void watch(int gameId) {
+		EventLoop target = (key != null) ? server.findGameLoop(gameId) : null;
+		if (target == null) {
+			System.out.println("Cannot watch game " + gameId);
+			game.removePlayer(this);
+			return;
+		}
+		EventLoop loop = game.getEventLoop();
+		loop.removeConnection(this);
+		loop.stopIdleTimer(idleTimer);
+		if (capture != null) {
+			capture.disconnected(captureNumber);
+		}
+		game.detach(this);
+		if (target == loop) {
+			target.watch(new Spectator(schan, key, gameId));
+		} else {
+			key.cancel();
+			target.watch(new Spectator(schan, null, gameId));
+		}
+	}
+	
+	private static boolean endsWith(byte[] cmd, int len, byte[] suffix) {
+		int offset = len - suffix.length;
+		if (offset < 0) {
+			return false;
+		}
+		for (int i = 0; i < suffix.length; ++i) {
+			if (cmd[offset + i] != suffix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Track and relay a location message from this player's client.
+	 * 
+	 * @param msg	the location message
+	 */
+	private void locationReceived(MessageBuffer msg) {
+		dir = msg.get(2) & 3;
+		dx = msg.get(3) & 077;
+		dy = msg.get(4) & 077;
+		moved();
+//		System.out.println("Player " + id + ": move id="
+//		+ msg.get(1) + ", dir=" + dir + ", dx=" + dx + ", dy" + dy);
+		game.queueMessage(id, msg);
+	}
+	
+	/**
+	 * Send a round-trip probe to the client, unless one is still unanswered.  A
+	 * probe which has had no answer for <code>PROBE_TIMEOUT</code> is counted
+	 * lost, and another is sent.  The round trip is timed from when the probe is
+	 * queued, so it includes any time that the probe waits in the output queue,
+	 * as the player's other messages do.
+	 * 
+	 * @param now	the time, from <code>System.nanoTime()</code>
+	 */
+	void probe(long now) {
+		if (probeTime != 0) {
+			if (now - probeTime < PROBE_TIMEOUT * 1000000L) {
+				return;
+			}
+			metrics.probeLost();
+		}
+		probeTime = now;
+		MessageBuffer msg = game.getMessagePool().encode(PROBE);
+		queueMessage(msg);
+		msg.release();
+	}
+	
+	/**
+	 * Record a change of this player's location or direction.
+	 */
+	private void moved() {
+		track[trackNext] = (dir << 12) | (dy << 6) | dx;
+		trackTimes[trackNext] = System.currentTimeMillis();
+		trackNext = (trackNext + 1) & (TRACK_SIZE - 1);
+		if (trackCount <= TRACK_SIZE) {
+			++trackCount;
+		}
+		game.playerMoved(this);
+	}
+	
+	/**
+	 * Return the positions this player has had since a given time, and the
+	 * one it had at that time, most recent first.  Each position is the
+	 * direction, y and x, six bits each from the top.
+	 * 
+	 * @param since	the time in milliseconds
+	 * @param dst	the array for the positions, with room for one more than
+	 * 				the number kept
+	 * @return		the number of positions, or -1 if the player has moved too
+	 * 				often for its position at that time to be known
+	 */
+	int getRecentPositions(long since, int[] dst) {
+		dst[0] = (dir << 12) | (dy << 6) | dx;
+		int n = 1;
+		int count = Math.min(trackCount, TRACK_SIZE);
+		for (int i = 1; i <= count; ++i) {
+			int slot = (trackNext - i) & (TRACK_SIZE - 1);
+			dst[n++] = track[slot];
+			if (trackTimes[slot] < since) {
+				return n;
+			}
+		}
+		return (trackCount > TRACK_SIZE) ? -1 : n;
+	}
+	
+	/**
+	 * Decide whether this player could have killed another, according to the
+	 * server's maze model.  A shot lands up to two seconds after it is fired,
+	 * and the kill reaches the server a round trip later, so each location the
+	 * shooter has had during that time is checked against each location the
+	 * victim has had, including the ones they had when the time began.  If
+	 * either player has moved too often for its earliest location in that time
+	 * to be known, the kill is allowed.
+	 * 
+	 * <p>
+	 * A victim on another node of a federation is checked at the locations
+	 * relayed from there during that time.
+	 * 
+	 * @param victim	the player reported killed, or <code>null</code>
+	 * @param victimId	the Imlac id of the player reported killed
+	 * @return			<code>true</code> if the kill is possible, or if the
+	 * 					server has no maze model
+	 */
+	private boolean isPossibleKill(Player victim, int victimId) {
+		MazeModel maze = server.getMazeModel();
+		if (maze == null) {
+			return true;
+		}
+		if (victim == this) {
+			return false;
+		}
+		long since = System.currentTimeMillis() - SHOT_TIME;
+		int from = getRecentPositions(since, shotFrom);
+		int to = (victim != null) ? victim.getRecentPositions(since, shotTo)
+			: game.getRemotePositions(victimId, since, shotTo);
+		if ((from < 0) || (to < 0)) {
+			return true;
+		}
+		for (int i = 0; i < from; ++i) {
+			int pos = shotFrom[i];
+			for (int j = 0; j < to; ++j) {
+				int target = shotTo[j];
+				if (maze.canSee(pos & 077, (pos >> 6) & 077, pos >> 12,
+						target & 077, (target >> 6) & 077)) {
+					return true;
 				}
 			}
 		}
+		return false;
+	}
+	
+	/**
+	 * Handle a location message which has arrived in a datagram on the side
+	 * channel.  A datagram which is not newer than the last one is dropped.
+	 * 
+	 * @param from		the address that the datagram came from
+	 * @param seq		the sequence number of the datagram
+	 * @param src		the buffer containing the datagram
+	 * @param offset	the index of the location message in the buffer
+	 * @return			<code>true</code> if the message was relayed, or
+	 * 					<code>false</code> if it was stale
+	 */
+	boolean datagramReceived(SocketAddress from, short seq, ByteBuffer src, int offset) {
+		if ((udpAddress != null) && ((short) (seq - udpInSeq) <= 0)) {
+			return false;
+		}
+		udpAddress = from;
+		udpInSeq = seq;
+		idleTimer.touch();
+		src.position(offset + 1);
+		MessageBuffer msg = game.getMessagePool().encode((byte) 2, src, 4);
+		metrics.messageIn(BC_MOVE);
+		locationReceived(msg);
+		msg.release();
+		return true;
+	}
+	
+	/**
+	 * Return <code>true</code> until this player has been closed.
+	 * 
+	 * @return	<code>true</code> if the player is open
+	 */
+	public boolean isOpen() {
+		return (key != null) ? key.isValid() : schan.isOpen();
 	}
 	
 	/**
@@ -390,73 +776,130 @@ public class Player {
 	 * @param message	the message to be sent
 	 */
 	public void queueMessage(byte[] message) {
-		outList.add(message);
-		key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		MessageBuffer buf = game.getMessagePool().encode(message);
+		queueMessage(buf);
+		buf.release();
 	}
 	
 	/**
-	 * Dequeue pending output data and write to the client connection associated with
-	 * this player.  This method is called by the server to service the <code>OP_WRITE</code>
-	 * event on this connection.
+	 * Queue an encoded message for output on the client connection associated with
+	 * this player.  The output queue takes its own reference to the message, which
+	 * it releases once the message has been written.
 	 * 
-	 * @throws IOException	if an I/O error occurs
+	 * @param message	the encoded message to be sent
+	 */
+	public void queueMessage(MessageBuffer message) {
+		metrics.messageOut(classOf(message));
+		if ((udpAddress != null) && (message.length() == 5) && (message.get(0) == 2)
+				&& udp.send(udpAddress, ++udpOutSeq, message)) {
+			return;
+		}
+		outQueue.add(message);
+		if (!dirty) {
+			game.getEventLoop().markDirty(this);
+		}
+	}
+	
+	/**
+	 * Return the class of an encoded message, as counted by the metrics.
+	 * 
+	 * @param message	the encoded message
+	 * @return			the byte class of its first byte
+	 */
+	static int classOf(MessageBuffer message) {
+		return byteClass[message.get(0) & 0177];
+	}
+	
+	/**
+	 * Write pending output data to the client connection associated with this player.
+	 * The event loop calls this after a pass in which messages were queued for this
+	 * player, or its connection became writable.  All the queued messages are
+	 * offered to the connection in gathering writes, and whatever the
+	 * connection does not take remains queued.  <code>OP_WRITE</code> interest is
+	 * registered only while output remains queued, so that the server is woken when
+	 * the connection can take more.
+	 * <p>
+	 * A client which has fallen so far behind that its output queue has expired
+	 * under the queue's <code>OverflowPolicy</code> is treated as having failed.
+	 * <p>
+	 * A client which uses the batched frame protocol is sent at most one frame
+	 * in each batch interval.  Until the interval has passed, its output is left
+	 * queued, and the event loop is asked to write again when it has.
+	 * 
+	 * @throws IOException	if an I/O error occurs, or the output queue has expired
 	 */
 	public void write() throws IOException {
-//		System.out.println("Entered Player " + id + " write()");
-		if (key.isWritable()) {
-//			System.out.println("Key is writable");
-			if (outputBusy) {
-//				System.out.println("Output is busy.");
-				// Potentially only some of the data in outBuf may have written
-				if (outBuf.hasRemaining()) {
-					// Keep pushing those bytes out
-					schan.write(outBuf);
-				} else {
-					// Otherwise get ready to fill outBuf again
-					outBuf.clear();
-					outputBusy = false;
+		if (!outQueue.isEmpty()) {
+			if (outQueue.isBatched() && !outQueue.isWritingFrame()) {
+				long now = System.nanoTime();
+				if (now - nextFrameTime < 0) {
+					game.getEventLoop().markDirty(this);
+					game.getEventLoop().wakeBy(nextFrameTime);
+					return;
 				}
+				nextFrameTime = now + server.getBatchInterval() * 1000000L;
 			}
-			if (!outputBusy) {
-//				System.out.println("Output is not busy");
-				// While there are messages on the output queue...
-				while (!outList.isEmpty()) {
-					byte[] msg = outList.getFirst();
-//					if (msg.length == 1)
-//						System.out.println(
-//							"Dequeuing message of " + msg.length + " bytes");
-					// If there is enough space in outBuf for the next message
-					// dequeue it and append it to outBuf
-					if (msg.length <= outBuf.remaining()) {
-						outList.removeFirst();
-						outBuf.put(msg);
-					}
-				}
-				// If there is any data in outBuf now, start a new write
-				if (outBuf.position() > 0) {
-					outBuf.flip();
-//					if (outBuf.limit() == 1)
-//						System.out.println(
-//							"Starting output: position="
-//								+ outBuf.position()
-//								+ ", limit="
-//								+ outBuf.limit());
-					schan.write(outBuf);
-					outputBusy = true;
-				} else {
-					// Otherwise there is nothing to send right now
-					key.interestOps(SelectionKey.OP_READ);
+			long len = outQueue.write(schan);
+			if (len > 0) {
+				metrics.bytesOut(len);
+			}
+			if (outQueue.isEmpty()) {
+				key.interestOps(SelectionKey.OP_READ);
+			} else {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				if (outQueue.isExpired(System.currentTimeMillis())) {
+					throw new IOException("output queue expired with "
+						+ outQueue.size() + " messages, policy " + outQueue.getPolicy());
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Return the output queue of this player.  Its limit and overflow policy
+	 * may be changed for this connection with <code>setPolicy()</code>.
+	 * 
+	 * @return	the player's <code>OutputQueue</code>
+	 */
+	public OutputQueue getOutputQueue() {
+		return outQueue;
+	}
+	
+	/**
+	 * Return the counters of this player.
+	 * 
+	 * @return	the player's <code>PlayerMetrics</code>
+	 */
+	public PlayerMetrics getMetrics() {
+		return metrics;
+	}
+	
 	/**
 	 * Terminate the client connection associated with this player.
 	 *
 	 */
 	public void close() {
-		key.cancel();
+		if (registered) {
+			server.getMetrics().unregisterPlayer(this);
+			registered = false;
+		}
+		game.getEventLoop().removeConnection(this);
+		game.getEventLoop().stopIdleTimer(idleTimer);
+		if (probing) {
+			game.getEventLoop().stopProbes(this);
+		}
+		if (udpToken != 0) {
+			udp.remove(udpToken);
+			udpToken = 0;
+			udpAddress = null;
+		}
+		if ((capture != null) && schan.isOpen()) {
+			capture.disconnected(captureNumber);
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		outQueue.clear();
 		try {
 			schan.socket().close();
 			schan.close();
@@ -483,21 +926,6 @@ public class Player {
 		return id != 0;
 	}
 	
-	private byte[] extractLocationMessage() {
-		byte[] msg = null;
-		if (inBuf.remaining() >= 4) {
-			msg = new byte[5];
-			msg[0] = 2;
-			msg[1] = inBuf.get();
-			msg[2] = inBuf.get();
-			msg[3] = inBuf.get();
-			msg[4] = inBuf.get();
-		} else {
-			partialMessage = true;
-		}
-		return msg;
-	}
-	
 	/**
 	 * Construct a location message containing location information for this player.
 	 * 
@@ -505,26 +933,22 @@ public class Player {
 	 */
 	public byte[] makeLocationMessage() {
 		byte[] msg = new byte[5];
-		msg[0] = 2;
-		msg[1] = (byte) id;
-		msg[2] = (byte) ((dir & 3) | 0100);
-		msg[3] = (byte) (dx | 0100);
-		msg[4] = (byte) (dy | 0100);
+		putLocationMessage(msg, 0);
 		return msg;
 	}
 	
-	private byte[] extractNewPlayerMessage() {
-		byte[] msg = null;
-		if (inBuf.remaining() >= 11) {
-			msg = new byte[12];
-			msg[0] = 4;
-			for (int i = 1; i < 12; ++i) {
-				msg[i] = inBuf.get();
-			}
-		} else {
-			partialMessage = true;
-		}
-		return msg;
+	/**
+	 * Encode a location message for this player into an array.
+	 * 
+	 * @param dst		the destination array
+	 * @param offset	the offset of the message in the array
+	 */
+	void putLocationMessage(byte[] dst, int offset) {
+		dst[offset] = 2;
+		dst[offset + 1] = (byte) id;
+		dst[offset + 2] = (byte) ((dir & 3) | 0100);
+		dst[offset + 3] = (byte) (dx | 0100);
+		dst[offset + 4] = (byte) (dy | 0100);
 	}
 	
 	/**
@@ -536,44 +960,24 @@ public class Player {
 	 */
 	public byte[] makeNewPlayerMessage() {
 		byte[] msg = new byte[12];
-		msg[0] = 4;
-		msg[1] = (byte) id;
-		msg[2] = name[0];
-		msg[3] = name[1];
-		msg[4] = name[2];
-		msg[5] = name[3];
-		msg[6] = name[4];
-		msg[7] = name[5];
-		msg[8] = (byte) (((hits >> 6) & 077) | 0100);
-		msg[9] = (byte) ((hits & 077) | 0100);
-		msg[10] = (byte) (((deaths >> 6) & 077) | 0100);
-		msg[11] = (byte) ((deaths & 077) | 0100);
-		return msg;
-	}
-	
-	private byte[] extractKillMessage() {
-		byte[] msg = null;
-		if (inBuf.remaining() >= 2) {
-			msg = new byte[3];
-			msg[0] = 3;
-			msg[1] = inBuf.get();
-			msg[2] = inBuf.get();
-		} else {
-			partialMessage = true;
-		}
+		putNewPlayerMessage(msg, 0);
 		return msg;
 	}
 	
-	private byte[] extractLeaveMessage() {
-		byte[] msg = null;
-		if (inBuf.remaining() > 0) {
-			msg = new byte[2];
-			msg[0] = 1;
-			msg[1] = inBuf.get();
-		} else {
-			partialMessage = true;
-		}
-		return msg;
+	/**
+	 * Encode a "new player" message for this player into an array.
+	 * 
+	 * @param dst		the destination array
+	 * @param offset	the offset of the message in the array
+	 */
+	void putNewPlayerMessage(byte[] dst, int offset) {
+		dst[offset] = 4;
+		dst[offset + 1] = (byte) id;
+		System.arraycopy(name, 0, dst, offset + 2, 6);
+		dst[offset + 8] = (byte) (((hits >> 6) & 077) | 0100);
+		dst[offset + 9] = (byte) ((hits & 077) | 0100);
+		dst[offset + 10] = (byte) (((deaths >> 6) & 077) | 0100);
+		dst[offset + 11] = (byte) ((deaths & 077) | 0100);
 	}
 	
 	/**
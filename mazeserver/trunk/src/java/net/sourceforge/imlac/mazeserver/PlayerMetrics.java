@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+/**
+ * This class holds the counters of one <code>Player</code>.  The counters are
+ * only changed by the thread of the player's event loop, and are plain fields,
+ * so reading them from another thread, as the JMX agent does, may give values
+ * which are a little out of date.  Each update is also added to the counters of
+ * the event loop.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Player
+ * @see LoopMetrics
+ */
+public class PlayerMetrics implements PlayerMetricsMBean {
+
+	private final Player player;
+	private final LoopMetrics loopMetrics;
+	private final long[] messagesIn = new long[LoopMetrics.CLASS_COUNT];
+	private final long[] messagesOut = new long[LoopMetrics.CLASS_COUNT];
+	private long bytesIn;
+	private long bytesOut;
+	private long probesLost;
+	private final LatencyHistogram roundTrips = new LatencyHistogram();
+
+	/**
+	 * Create the counters for a player.
+	 *
+	 * @param player		the player
+	 * @param loopMetrics	the counters of the player's event loop
+	 */
+	public PlayerMetrics(Player player, LoopMetrics loopMetrics) {
+		super();
+		this.player = player;
+		this.loopMetrics = loopMetrics;
+		bytesIn = 0;
+		bytesOut = 0;
+	}
+
+	/**
+	 * Count a message received from the client.
+	 *
+	 * @param byteClass	the class of the message type byte
+	 */
+	public void messageIn(int byteClass) {
+		++messagesIn[byteClass];
+		loopMetrics.messageIn(byteClass);
+	}
+
+	/**
+	 * Count a message queued for the client.
+	 *
+	 * @param byteClass	the class of the message type byte
+	 */
+	public void messageOut(int byteClass) {
+		++messagesOut[byteClass];
+		loopMetrics.messageOut(byteClass);
+	}
+
+	/**
+	 * Count bytes read from the client.
+	 *
+	 * @param n	the number of bytes
+	 */
+	public void bytesIn(long n) {
+		bytesIn += n;
+		loopMetrics.bytesIn(n);
+	}
+
+	/**
+	 * Count bytes written to the client.
+	 *
+	 * @param n	the number of bytes
+	 */
+	public void bytesOut(long n) {
+		bytesOut += n;
+		loopMetrics.bytesOut(n);
+	}
+
+	/**
+	 * Record the round trip of a probe which the client answered.
+	 *
+	 * @param nanos	the round-trip time in nanoseconds
+	 */
+	public void roundTrip(long nanos) {
+		roundTrips.record(nanos);
+	}
+
+	/**
+	 * Count a probe which the client did not answer in time.
+	 */
+	public void probeLost() {
+		++probesLost;
+	}
+
+	/**
+	 * Return the round-trip times of the probes which the client answered.
+	 * The histogram must not be modified.
+	 *
+	 * @return	the <code>LatencyHistogram</code>
+	 */
+	public LatencyHistogram getRoundTrips() {
+		return roundTrips;
+	}
+
+	public int getGameId() {
+		return player.getGame().getGameId();
+	}
+
+	public int getId() {
+		return player.getId();
+	}
+
+	public String getName() {
+		byte[] name = player.getName();
+		return (name == null) ? "" : new String(name, 0, name.length).trim();
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public long getMessagesIn() {
+		return sum(messagesIn);
+	}
+
+	public long getMessagesOut() {
+		return sum(messagesOut);
+	}
+
+	public long[] getMessagesInByClass() {
+		return messagesIn.clone();
+	}
+
+	public long[] getMessagesOutByClass() {
+		return messagesOut.clone();
+	}
+
+	public int getQueueDepth() {
+		return player.getOutputQueue().size();
+	}
+
+	public int getQueuedBytes() {
+		return player.getOutputQueue().getPendingBytes();
+	}
+
+	public int getHighWaterCount() {
+		return player.getOutputQueue().getHighWaterCount();
+	}
+
+	public int getHighWaterBytes() {
+		return player.getOutputQueue().getHighWaterBytes();
+	}
+
+	public long getCoalescedCount() {
+		return player.getOutputQueue().getCoalescedCount();
+	}
+
+	public long getDroppedCount() {
+		return player.getOutputQueue().getDroppedCount();
+	}
+
+	public long getRoundTripCount() {
+		return roundTrips.getCount();
+	}
+
+	public long getRoundTripMedian() {
+		return roundTrips.percentile(50);
+	}
+
+	public long getRoundTrip99th() {
+		return roundTrips.percentile(99);
+	}
+
+	public long getRoundTripMax() {
+		return roundTrips.getMax();
+	}
+
+	public long getProbesLost() {
+		return probesLost;
+	}
+
+	static long sum(long[] counts) {
+		long total = 0;
+		for (long n : counts) {
+			total += n;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+/**
+ * The JMX management interface of <code>PlayerMetrics</code>.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see PlayerMetrics
+ */
+public interface PlayerMetricsMBean {
+
+	/** @return the id of the player's game */
+	public int getGameId();
+
+	/** @return the player's Imlac id */
+	public int getId();
+
+	/** @return the player's name */
+	public String getName();
+
+	/** @return the number of bytes read from the client */
+	public long getBytesIn();
+
+	/** @return the number of bytes written to the client */
+	public long getBytesOut();
+
+	/** @return the number of messages received from the client */
+	public long getMessagesIn();
+
+	/** @return the number of messages queued for the client */
+	public long getMessagesOut();
+
+	/** @return the number of messages received, by message class */
+	public long[] getMessagesInByClass();
+
+	/** @return the number of messages queued for the client, by message class */
+	public long[] getMessagesOutByClass();
+
+	/** @return the number of messages in the output queue */
+	public int getQueueDepth();
+
+	/** @return the number of bytes in the output queue */
+	public int getQueuedBytes();
+
+	/** @return the largest number of messages in the output queue */
+	public int getHighWaterCount();
+
+	/** @return the largest number of bytes in the output queue */
+	public int getHighWaterBytes();
+
+	/** @return the number of location messages coalesced in the output queue */
+	public long getCoalescedCount();
+
+	/** @return the number of messages dropped from the output queue */
+	public long getDroppedCount();
+
+	/** @return the number of round-trip probes answered by the client */
+	public long getRoundTripCount();
+
+	/** @return the median round-trip time of the probes, in microseconds */
+	public long getRoundTripMedian();
+
+	/** @return the 99th percentile round-trip time of the probes, in microseconds */
+	public long getRoundTrip99th();
+
+	/** @return the longest round-trip time of the probes, in microseconds */
+	public long getRoundTripMax();
+
+	/** @return the number of round-trip probes which the client did not answer */
+	public long getProbesLost();
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A decoder for the stream which a client sends to the server.  The stream
+ * starts with a command line, ended by a linefeed, and continues with
+ * messages, each a type byte and a body whose length is fixed by the type.
+ * <p>
+ * The decoder is a state machine which keeps its place between calls, so
+ * input may be passed to it in pieces split anywhere, even inside the command
+ * line or a message.  Every byte given to <code>decode()</code> is consumed;
+ * the bytes of an unfinished line or message are kept in the decoder until
+ * the rest arrives, so the caller never has to keep or move them.  Each
+ * complete line or message is passed to a <code>Sink</code> in an array
+ * belonging to the decoder, so decoding allocates nothing.
+ * <p>
+ * The decoder is not thread-safe.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Player
+ */
+public class ProtocolDecoder {
+
+	/** Longest command line kept.  The rest of a longer line is dropped. */
+	public static final int LINE_SIZE = 256;
+
+	/** Longest message, a new player message */
+	public static final int MESSAGE_SIZE = 12;
+
+	/**
+	 * Receives what a <code>ProtocolDecoder</code> decodes.  The arrays passed
+	 * belong to the decoder and are reused, so they must be copied if they are
+	 * to be kept after the call returns.
+	 */
+	public interface Sink {
+
+		/**
+		 * Accept the command line, without its linefeed.  Each byte has had its
+		 * top bit cleared.
+		 *
+		 * @param line	the command line
+		 * @param len	the length of the command line
+		 * @return		<code>true</code> to continue decoding, or
+		 * 				<code>false</code> to stop
+		 */
+		boolean commandLine(byte[] line, int len);
+
+		/**
+		 * Accept a message.  The type byte at the start has had its top bit
+		 * cleared, and the body is as received.
+		 *
+		 * @param message	the message
+		 * @param len		the length of the message, including the type byte
+		 * @return			<code>true</code> to continue decoding, or
+		 * 					<code>false</code> to stop
+		 */
+		boolean message(byte[] message, int len);
+	}
+
+	/** Length of a message of each type, including the type byte */
+	private static final byte[] messageLength = new byte[0200];
+
+	static {
+		for (int i = 0; i < messageLength.length; ++i) {
+			messageLength[i] = 1;
+		}
+		messageLength[1] = 2;			// Leave
+		messageLength[2] = 5;			// Location
+		messageLength[3] = 3;			// Kill
+		messageLength[4] = 12;			// New player
+	}
+
+	private final byte[] line;
+	private final byte[] message;
+	private boolean readingLine;		// Still in the command line
+	private int lineLen;				// Bytes of the command line so far
+	private int messageLen;				// Bytes of the current message so far
+	private int messageEnd;				// Length of the current message
+
+	/**
+	 * Create a decoder at the start of a stream.
+	 */
+	public ProtocolDecoder() {
+		super();
+		line = new byte[LINE_SIZE];
+		message = new byte[MESSAGE_SIZE];
+		reset();
+	}
+
+	/**
+	 * Return to the start of a stream, dropping any unfinished line or message.
+	 */
+	public void reset() {
+		readingLine = true;
+		lineLen = 0;
+		messageLen = 0;
+		messageEnd = 0;
+	}
+
+	/**
+	 * Return the length of a message of a given type.
+	 *
+	 * @param type	the type byte, with its top bit cleared
+	 * @return		the length of the message, including the type byte
+	 */
+	public static int lengthOf(int type) {
+		return messageLength[type & 0177];
+	}
+
+	/**
+	 * Return <code>true</code> if the command line has not been completed yet.
+	 *
+	 * @return	<code>true</code> if still reading the command line
+	 */
+	public boolean isReadingLine() {
+		return readingLine;
+	}
+
+	/**
+	 * Return the number of bytes held for an unfinished line or message.
+	 *
+	 * @return	the number of bytes held
+	 */
+	public int getPending() {
+		return readingLine ? lineLen : messageLen;
+	}
+
+	/**
+	 * Decode the remaining bytes of a buffer.  The buffer is read until it is
+	 * empty or the sink asks to stop, and its position is left after the last
+	 * byte consumed.  When the sink stops, the rest of the buffer is left
+	 * unread, and decoding may be resumed from there.
+	 *
+	 * @param in	the input, from its position to its limit
+	 * @param sink	where to pass each line and message
+	 * @return		<code>true</code> if the whole buffer was consumed, or
+	 * 				<code>false</code> if the sink asked to stop
+	 */
+	public boolean decode(ByteBuffer in, Sink sink) {
+		while (readingLine) {
+			if (!in.hasRemaining()) {
+				return true;
+			}
+			byte b = (byte) (in.get() & 0177);
+			if (b == 012) {
+				readingLine = false;
+				if (!sink.commandLine(line, lineLen)) {
+					return false;
+				}
+			} else if (lineLen < line.length) {
+				line[lineLen++] = b;
+			}
+		}
+		while (in.hasRemaining()) {
+			if (messageLen == 0) {
+				byte b = (byte) (in.get() & 0177);
+				message[0] = b;
+				messageLen = 1;
+				messageEnd = messageLength[b];
+			}
+			int n = messageEnd - messageLen;
+			if (n > in.remaining()) {
+				n = in.remaining();
+			}
+			if (n > 0) {
+				in.get(message, messageLen, n);
+				messageLen += n;
+			}
+			if (messageLen < messageEnd) {
+				return true;
+			}
+			int len = messageLen;
+			messageLen = 0;
+			if (!sink.message(message, len)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
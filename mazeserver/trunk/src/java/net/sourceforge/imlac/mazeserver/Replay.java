@@ -0,0 +1,337 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class replays a session recorded in a <code>CaptureLog</code> against a
+ * new <code>Server</code>.  No client connections are made: each captured
+ * connection becomes a player on an in-memory channel, the captured input is
+ * passed to the player's decoder, and whatever the server sends is counted and
+ * discarded.  The server is created but not started, so the replay thread
+ * plays the part of the event loop thread, and a replay is deterministic.
+ * <p>
+ * The log may be replayed at the pace at which it was recorded, to reproduce a
+ * problem, or as fast as possible, to measure the decode and broadcast paths
+ * with real traffic.
+ * <p>
+ * Usage: <code>Replay [-paced] [-repeat <i>n</i>] <i>logfile</i></code>
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see CaptureLog
+ */
+public class Replay {
+
+	private final MappedByteBuffer log;
+	private final boolean paced;
+	private final HashMap<Integer, Player> players = new HashMap<Integer, Player>();
+	private long records;
+	private long connections;
+	private long rejected;
+	private long bytesIn;
+	private long bytesOut;
+
+	/**
+	 * Open a capture log for replay.
+	 *
+	 * @param path			the log file
+	 * @param paced			<code>true</code> to replay at the recorded pace,
+	 * 						<code>false</code> to replay as fast as possible
+	 * @throws IOException	if the log cannot be read
+	 */
+	public Replay(File path, boolean paced) throws IOException {
+		super();
+		this.paced = paced;
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel chan = file.getChannel();
+			log = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+		} finally {
+			file.close();
+		}
+		if ((log.capacity() < CaptureLog.HEADER_SIZE) || (log.getLong(0) != CaptureLog.MAGIC)) {
+			throw new IOException("Not a capture log: " + path);
+		}
+	}
+
+	/**
+	 * Replay the whole log against a new server.
+	 *
+	 * @throws IOException	if the server cannot be created
+	 */
+	public void run() throws IOException {
+		records = 0;
+		connections = 0;
+		rejected = 0;
+		bytesIn = 0;
+		bytesOut = 0;
+		Server server = new Server(new InetSocketAddress("localhost", 0));
+		EventLoop loop = server.getEventLoops()[0];
+		byte[] data = new byte[65536];
+		long startTime = System.nanoTime();
+		int pos = CaptureLog.HEADER_SIZE;
+		while (pos + CaptureLog.RECORD_SIZE <= log.capacity()) {
+			byte type = log.get(pos);
+			if (type == 0) {
+				break;
+			}
+			Integer connection = Integer.valueOf(log.getInt(pos + 1));
+			long time = log.getLong(pos + 5);
+			pos += CaptureLog.RECORD_SIZE;
+			if (paced) {
+				long delay = startTime + time - System.nanoTime();
+				if (delay > 0) {
+					LockSupport.parkNanos(delay);
+				}
+			}
+			++records;
+			Player player = players.get(connection);
+			switch (type) {
+				case CaptureLog.CONNECT:
+					Game game = loop.getRouter().selectGame();
+					if (game == null) {
+						++rejected;
+						break;
+					}
+					players.put(connection, new Player(game, new ReplayChannel(), false));
+					++connections;
+					break;
+				case CaptureLog.DATA:
+					int len = log.getShort(pos) & 0xffff;
+					pos += 2;
+					for (int i = 0; i < len; ++i) {
+						data[i] = log.get(pos + i);
+					}
+					pos += len;
+					bytesIn += len;
+					if ((player != null) && player.isOpen()) {
+						feed(player, data, len);
+						flush(player.getGame());
+					}
+					break;
+				case CaptureLog.CLOSE:
+					players.remove(connection);
+					if ((player != null) && player.isOpen()) {
+						Game g = player.getGame();
+						int id = player.getId();
+						if (id > 0) {
+							g.queueMessage(id, Player.makeLeaveMessage(id));
+						}
+						g.removePlayer(player);
+						flush(g);
+					}
+					break;
+				default:
+					throw new IOException("Bad record type " + type + " in capture log");
+			}
+		}
+		loop.getRouter().closeAll();
+		players.clear();
+		server.listenChannel.close();
+		loop.getSelector().close();
+	}
+
+	private void feed(Player player, byte[] data, int len) {
+		int offset = 0;
+		while ((offset < len) && player.isOpen()) {
+			int n = Math.min(len - offset, player.inBuf.remaining());
+			player.inBuf.put(data, offset, n);
+			offset += n;
+			player.processInput();
+		}
+	}
+
+	private void flush(Game game) throws IOException {
+		for (Player player : game.getPlayers()) {
+			player.getOutputQueue().write((ReplayChannel) player.schan);
+		}
+	}
+
+	/**
+	 * Return the number of records replayed by the last run.
+	 *
+	 * @return	the number of records
+	 */
+	public long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Return the number of bytes of client input replayed by the last run.
+	 *
+	 * @return	the number of bytes
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * Return the number of bytes which the server sent to clients in the last run.
+	 *
+	 * @return	the number of bytes
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * A connection which exists only in memory.  Reads return nothing, since the
+	 * input comes from the log, and writes are counted and discarded.
+	 */
+	private class ReplayChannel extends SocketChannel {
+
+		ReplayChannel() {
+			super(SelectorProvider.provider());
+		}
+
+		public int read(ByteBuffer dst) {
+			return 0;
+		}
+
+		public long read(ByteBuffer[] dsts, int offset, int length) {
+			return 0;
+		}
+
+		public int write(ByteBuffer src) {
+			int len = src.remaining();
+			src.position(src.limit());
+			bytesOut += len;
+			return len;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long len = 0;
+			for (int i = offset; i < offset + length; ++i) {
+				len += write(srcs[i]);
+			}
+			return len;
+		}
+
+		public Socket socket() {
+			return new Socket() {
+				public void setTcpNoDelay(boolean on) {
+				}
+
+				public void close() {
+				}
+			};
+		}
+
+		public SocketChannel bind(SocketAddress local) {
+			return this;
+		}
+
+		public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+			return this;
+		}
+
+		public <T> T getOption(SocketOption<T> name) {
+			return null;
+		}
+
+		public Set<SocketOption<?>> supportedOptions() {
+			return Collections.emptySet();
+		}
+
+		public SocketChannel shutdownInput() {
+			return this;
+		}
+
+		public SocketChannel shutdownOutput() {
+			return this;
+		}
+
+		public boolean isConnected() {
+			return isOpen();
+		}
+
+		public boolean isConnectionPending() {
+			return false;
+		}
+
+		public boolean connect(SocketAddress remote) {
+			return true;
+		}
+
+		public boolean finishConnect() {
+			return true;
+		}
+
+		public SocketAddress getRemoteAddress() {
+			return null;
+		}
+
+		public SocketAddress getLocalAddress() {
+			return null;
+		}
+
+		protected void implCloseSelectableChannel() {
+		}
+
+		protected void implConfigureBlocking(boolean block) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean paced = false;
+		int repeat = 1;
+		String path = null;
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-paced")) {
+				paced = true;
+			} else if (args[i].equals("-repeat") && (i + 1 < args.length)) {
+				repeat = Integer.parseInt(args[++i]);
+			} else {
+				path = args[i];
+			}
+		}
+		if (path == null) {
+			System.out.println("Usage: Replay [-paced] [-repeat n] logfile");
+			return;
+		}
+		Replay replay = new Replay(new File(path), paced);
+		for (int n = 0; n < repeat; ++n) {
+			long t0 = System.nanoTime();
+			replay.run();
+			double seconds = (System.nanoTime() - t0) / 1e9;
+			System.out.println("Replayed " + replay.records + " records, "
+				+ replay.connections + " connections (" + replay.rejected + " rejected), "
+				+ replay.bytesIn + " bytes in, " + replay.bytesOut + " bytes out in "
+				+ Math.round(seconds * 1000) + "ms: "
+				+ Math.round(replay.records / seconds) + " records/s, "
+				+ Math.round(replay.bytesIn / seconds) + " bytes in/s");
+		}
+	}
+}
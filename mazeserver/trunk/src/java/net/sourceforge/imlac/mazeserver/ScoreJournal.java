@@ -0,0 +1,388 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the hits and deaths of every player name on disk, so that
+ * they survive both reconnects and server restarts.  Kills are appended to a
+ * memory-mapped journal, and when the journal is full the whole scoreboard is
+ * written to a compacted snapshot file and the journal is started again.  On
+ * startup the scoreboard is rebuilt from the snapshot and the journal.
+ * <p>
+ * The event loops only put kills on a queue.  A single writer thread takes
+ * them off the queue, applies them to the scoreboard, and writes the journal
+ * and the snapshots, so the event loops never wait for the disk.  The
+ * scoreboard itself may be read from any thread.
+ * <p>
+ * Both files start with a magic number and a generation number.  A snapshot
+ * includes every kill in the journals of earlier generations, so a journal is
+ * replayed only if it has the same generation as the snapshot.  This makes a
+ * crash between writing a snapshot and restarting the journal harmless.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Server#setScoreJournal(ScoreJournal)
+ */
+public class ScoreJournal implements Runnable {
+
+	/** Name of the journal file in the score directory */
+	public static final String JOURNAL_FILE = "scores.journal";
+
+	/** Name of the snapshot file in the score directory */
+	public static final String SNAPSHOT_FILE = "scores.snapshot";
+
+	/** Default number of kills in the journal before it is compacted */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	private static final long JOURNAL_MAGIC = 0x4d617a654a726e6cL;		// "MazeJrnl"
+	private static final long SNAPSHOT_MAGIC = 0x4d617a6553636f72L;	// "MazeScor"
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 16;
+	private static final long VALID = 1L << 63;		// Marks a written record
+	private static final long FORCE_INTERVAL = 1000;	// Milliseconds
+
+	/**
+	 * A kill on its way to the writer thread.
+	 */
+	private static final class Kill {
+		final long killer;
+		final long victim;
+
+		Kill(long killer, long victim) {
+			this.killer = killer;
+			this.victim = victim;
+		}
+	}
+
+	private final File dir;
+	private final int capacity;
+	private final Map<Long, Long> scores = new ConcurrentHashMap<Long, Long>();
+	private final LinkedBlockingQueue<Kill> queue = new LinkedBlockingQueue<Kill>();
+	private final RandomAccessFile journalFile;
+	private final MappedByteBuffer journal;
+	private long generation;
+	private int recordCount;
+	private boolean failed = false;
+	private volatile boolean quit = false;
+	private volatile Thread writer;
+
+	/**
+	 * Open the score journal in a directory, and rebuild the scoreboard from it.
+	 * The directory and files are created if they do not exist.
+	 *
+	 * @param dir			the score directory
+	 * @throws IOException	if the files cannot be read or created
+	 */
+	public ScoreJournal(File dir) throws IOException {
+		this(dir, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Open the score journal in a directory, with a given journal capacity.
+	 *
+	 * @param dir			the score directory
+	 * @param capacity		the number of kills in the journal before it is
+	 * 						compacted into a snapshot
+	 * @throws IOException	if the files cannot be read or created
+	 */
+	public ScoreJournal(File dir, int capacity) throws IOException {
+		super();
+		this.dir = dir;
+		this.capacity = capacity;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create score directory " + dir);
+		}
+		generation = readSnapshot();
+		journalFile = new RandomAccessFile(new File(dir, JOURNAL_FILE), "rw");
+		journal = journalFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+			HEADER_SIZE + (long) capacity * RECORD_SIZE);
+		if ((journal.getLong(0) == JOURNAL_MAGIC) && (journal.getLong(8) == generation)) {
+			recordCount = replay();
+		} else {
+			// New, or already included in the snapshot
+			resetJournal();
+		}
+		System.out.println("Score journal: " + scores.size() + " players, "
+			+ recordCount + " kills since the last snapshot");
+	}
+
+	/**
+	 * Start the writer thread.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "Maze score journal");
+		thread.setDaemon(true);
+		writer = thread;
+		thread.start();
+	}
+
+	/**
+	 * Record a kill.  This only queues the kill for the writer thread, and may be
+	 * called from any thread.
+	 *
+	 * @param killer	the name of the player who made the kill
+	 * @param victim	the name of the player who was killed, or <code>null</code>
+	 * 					if it is not known
+	 */
+	public void recordKill(byte[] killer, byte[] victim) {
+		queue.offer(new Kill(NameIndex.pack(killer) | VALID,
+			(victim != null) ? NameIndex.pack(victim) : 0));
+	}
+
+	/**
+	 * Return the number of hits recorded for a player name.
+	 *
+	 * @param name	the player name
+	 * @return		the number of hits
+	 */
+	public int getHits(byte[] name) {
+		Long score = scores.get(Long.valueOf(NameIndex.pack(name)));
+		return (score != null) ? (int) (score.longValue() >>> 32) : 0;
+	}
+
+	/**
+	 * Return the number of deaths recorded for a player name.
+	 *
+	 * @param name	the player name
+	 * @return		the number of deaths
+	 */
+	public int getDeaths(byte[] name) {
+		Long score = scores.get(Long.valueOf(NameIndex.pack(name)));
+		return (score != null) ? (int) score.longValue() : 0;
+	}
+
+	/**
+	 * Return the number of player names in the scoreboard.
+	 *
+	 * @return	the number of names
+	 */
+	public int size() {
+		return scores.size();
+	}
+
+	/**
+	 * Return the number of kills which have been queued but not yet written.
+	 *
+	 * @return	the number of pending kills
+	 */
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Write the pending kills, stop the writer thread, and close the journal.
+	 */
+	public void close() {
+		quit = true;
+		Thread thread = writer;
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException iex) {
+				// Close anyway
+			}
+		} else {
+			drain();
+		}
+		journal.force();
+		try {
+			journalFile.close();
+		} catch (IOException iox) {
+			System.out.println("I/O exception while closing score journal");
+		}
+	}
+
+	/**
+	 * This is the writer thread.
+	 */
+	public void run() {
+		long lastForce = System.currentTimeMillis();
+		boolean dirty = false;
+		while (!quit) {
+			Kill kill;
+			try {
+				kill = queue.poll(FORCE_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException iex) {
+				continue;
+			}
+			if (kill != null) {
+				write(kill);
+				dirty = true;
+				drain();
+			}
+			long now = System.currentTimeMillis();
+			if (dirty && ((now - lastForce) >= FORCE_INTERVAL)) {
+				journal.force();
+				lastForce = now;
+				dirty = false;
+			}
+		}
+		drain();
+	}
+
+	private void drain() {
+		Kill kill;
+		while ((kill = queue.poll()) != null) {
+			write(kill);
+		}
+	}
+
+	private void write(Kill kill) {
+		if (!failed && (recordCount >= capacity)) {
+			// The snapshot must not include this kill, which goes in the new journal
+			try {
+				compact();
+			} catch (IOException iox) {
+				System.out.println("I/O exception while compacting score journal: "
+					+ iox.getMessage() + ", scores will not be saved");
+				failed = true;
+			}
+		}
+		apply(kill.killer, kill.victim);
+		if (failed) {
+			return;
+		}
+		int offset = HEADER_SIZE + recordCount * RECORD_SIZE;
+		// The victim goes first, so that a record is valid only when complete
+		journal.putLong(offset + 8, kill.victim);
+		journal.putLong(offset, kill.killer);
+		++recordCount;
+	}
+
+	private void apply(long killer, long victim) {
+		Long key = Long.valueOf(killer & ~VALID);
+		Long score = scores.get(key);
+		scores.put(key, Long.valueOf(((score != null) ? score.longValue() : 0) + (1L << 32)));
+		if (victim != 0) {
+			key = Long.valueOf(victim);
+			score = scores.get(key);
+			scores.put(key, Long.valueOf(((score != null) ? score.longValue() : 0) + 1));
+		}
+	}
+
+	/**
+	 * Replay the records in the journal in bulk.
+	 *
+	 * @return	the number of records
+	 */
+	private int replay() {
+		journal.position(HEADER_SIZE);
+		LongBuffer records = journal.slice().asLongBuffer();
+		long[] chunk = new long[1024];
+		int count = 0;
+		while (records.hasRemaining()) {
+			int n = Math.min(chunk.length, records.remaining());
+			records.get(chunk, 0, n);
+			for (int i = 0; i < n; i += 2) {
+				if ((chunk[i] & VALID) == 0) {
+					return count;
+				}
+				apply(chunk[i], chunk[i + 1]);
+				++count;
+			}
+		}
+		return count;
+	}
+
+	private void resetJournal() {
+		journal.clear();
+		for (int i = 0; i < journal.capacity(); i += 8) {
+			journal.putLong(i, 0);
+		}
+		journal.putLong(0, JOURNAL_MAGIC);
+		journal.putLong(8, generation);
+		journal.force();
+		recordCount = 0;
+	}
+
+	/**
+	 * Read the snapshot file into the scoreboard.
+	 *
+	 * @return	the generation of the snapshot, or 0 if there is none
+	 * @throws IOException	if the snapshot cannot be read
+	 */
+	private long readSnapshot() throws IOException {
+		File file = new File(dir, SNAPSHOT_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel chan = raf.getChannel();
+			ByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+			if ((buf.remaining() < HEADER_SIZE) || (buf.getLong() != SNAPSHOT_MAGIC)) {
+				throw new IOException("Bad score snapshot " + file);
+			}
+			long gen = buf.getLong();
+			while (buf.remaining() >= RECORD_SIZE) {
+				long name = buf.getLong();
+				scores.put(Long.valueOf(name), Long.valueOf(buf.getLong()));
+			}
+			return gen;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write the scoreboard to a new snapshot, and start a new journal.
+	 *
+	 * @throws IOException	if the snapshot cannot be written
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel chan = raf.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + scores.size() * RECORD_SIZE);
+			buf.putLong(SNAPSHOT_MAGIC);
+			buf.putLong(generation + 1);
+			for (Map.Entry<Long, Long> entry : scores.entrySet()) {
+				buf.putLong(entry.getKey().longValue());
+				buf.putLong(entry.getValue().longValue());
+			}
+			buf.flip();
+			while (buf.hasRemaining()) {
+				chan.write(buf);
+			}
+			chan.force(true);
+		} finally {
+			raf.close();
+		}
+		Files.move(tmp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		++generation;
+		resetJournal();
+	}
+}
@@ -17,6 +17,7 @@
  */
 package net.sourceforge.imlac.mazeserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
@@ -26,19 +27,32 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class implements the Imlac Maze Server as a thread.  It accepts incoming
  * connections, creates new <code>Player</code> instances, and relays messages
- * between them.
+ * between them.  The server hosts any number of <code>Game</code> instances on a
+ * single port, and each new connection is placed in a game with a free slot,
+ * starting a new game when all the others are full.
+ * <p>
+ * The games are run by one or more <code>EventLoop</code> instances.  In the
+ * single-selector mode, the server thread accepts connections and runs the only
+ * event loop itself.  In the multi-reactor mode, the server thread only accepts
+ * connections, and hands each one to one of several worker threads, each running
+ * an event loop.  A connection goes to a worker with a free slot in one of its
+ * games if there is one, so that all the members of a game share a worker.
+ * <p>
+ * In the thread-per-connection mode, a <code>ThreadedLoop</code> accepts
+ * connections with blocking accepts on the server thread, and every connection
+ * is read and written by threads of its own.
  * 
  * @author Howard Palmer
  * @version $Id$
  * @see java.lang.Thread
+ * @see EventLoop
  */
 public class Server extends Thread {
 	
@@ -46,10 +60,26 @@ public class Server extends Thread {
 	protected final ServerSocketChannel listenChannel;
 	protected final Selector selector;
 	protected final SelectionKey acceptKey;
+	protected final EventLoop[] loops;
+	protected final Thread[] workers;
+	protected final int maxGames;
+	protected final ServerMetrics metrics;
 	
-	protected final ArrayList<Player> playerList = new ArrayList<Player>(8);
+	private final AtomicInteger gameCount = new AtomicInteger();
+	private final AtomicInteger nextGameId = new AtomicInteger(1);
+	private final BitSet federatedGameIds = new BitSet();	// In use, when federated
+	private int nextLoop = 0;
+	private volatile int outputLimit = OutputQueue.DEFAULT_LIMIT;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.COALESCE;
+	private volatile ScoreJournal scoreJournal = null;
+	private volatile CaptureLog captureLog = null;
+	private volatile MazeModel mazeModel = null;
+	private volatile long outOfSightInterval = -1;
+	private volatile long batchInterval = BatchCodec.DEFAULT_INTERVAL;
+	private volatile StatusServer statusServer = null;
+	private volatile long idleTimeout = 0;
+	private volatile Federation federation = null;
 	
-	protected int idMask = 0;
 	protected volatile boolean quit = false;
 	
 	/**
@@ -60,15 +90,73 @@ public class Server extends Thread {
 	 * @throws IOException		if an error occurs in binding the local socket
 	 */
 	public Server(InetSocketAddress serverAddress) throws IOException {
+		this(serverAddress, 0, 0);
+	}
+	
+	/**
+	 * Create the server thread, listening for Maze client connections on a
+	 * specified local TCP/IP address, and hosting up to a given number of games.
+	 * 
+	 * @param serverAddress		the local IP address and TCP port number
+	 * @param maxGames			the maximum number of games, or 0 for no limit
+	 * @param workerCount		the number of worker threads, or 0 for the
+	 * 							single-selector mode
+	 * @throws IOException		if an error occurs in binding the local socket
+	 */
+	public Server(InetSocketAddress serverAddress, int maxGames, int workerCount)
+			throws IOException {
+		this(serverAddress, maxGames, workerCount, false);
+	}
+	
+	/**
+	 * Create the server thread, listening for Maze client connections on a
+	 * specified local TCP/IP address, and hosting up to a given number of games,
+	 * in either a selector mode or the thread-per-connection mode.
+	 * 
+	 * @param serverAddress		the local IP address and TCP port number
+	 * @param maxGames			the maximum number of games, or 0 for no limit
+	 * @param workerCount		the number of worker threads, or 0 for the
+	 * 							single-selector mode.  This is ignored in the
+	 * 							thread-per-connection mode.
+	 * @param threaded			<code>true</code> for the thread-per-connection mode
+	 * @throws IOException		if an error occurs in binding the local socket
+	 */
+	public Server(InetSocketAddress serverAddress, int maxGames, int workerCount,
+			boolean threaded) throws IOException {
 		super();
 		setDaemon(true);
 		this.serverAddress = serverAddress;
-		selector = SelectorProvider.provider().openSelector();
+		this.maxGames = maxGames;
 		listenChannel = ServerSocketChannel.open();
-		listenChannel.configureBlocking(false);
+		if (threaded) {
+			loops = new EventLoop[1];
+			loops[0] = new ThreadedLoop(this, listenChannel);
+			workers = null;
+			selector = loops[0].getSelector();
+		} else if (workerCount > 0) {
+			selector = SelectorProvider.provider().openSelector();
+			loops = new EventLoop[workerCount];
+			workers = new Thread[workerCount];
+			for (int i = 0; i < workerCount; ++i) {
+				loops[i] = new EventLoop(this, i);
+				workers[i] = new Thread(loops[i], "Maze worker " + i);
+				workers[i].setDaemon(true);
+			}
+		} else {
+			loops = new EventLoop[1];
+			loops[0] = new EventLoop(this, 0);
+			workers = null;
+			selector = loops[0].getSelector();
+		}
 		listenChannel.socket().setReuseAddress(true);
 		listenChannel.socket().bind(serverAddress);
-		acceptKey = listenChannel.register(selector, SelectionKey.OP_ACCEPT);
+		if (threaded) {
+			acceptKey = null;
+		} else {
+			listenChannel.configureBlocking(false);
+			acceptKey = listenChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		metrics = new ServerMetrics(this);
 	}
 
 	/**
@@ -76,232 +164,468 @@ public class Server extends Thread {
 	 */
 	public void shutdown() {
 		quit = true;
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
 		interrupt();
 	}
 	
 	/**
-	 * Allocate one of the eight Imlac ids.
+	 * Return the event loops which run the games of this server.
 	 * 
-	 * @returns the allocated Imlac id (1-8)
+	 * @returns the server <code>EventLoop</code> instances
 	 */
-	public int allocateId() {
-		int id;
-		for (id = 0; id < 8; ++id) {
-			int bit = 1 << id;
-			if ((bit & idMask) == 0) {
-				idMask |= bit;
-				return id + 1;
+	public EventLoop[] getEventLoops() {
+		return loops;
+	}
+	
+	/**
+	 * Find the event loop which hosts a game.  This may be called from any
+	 * thread.
+	 * 
+	 * @param gameId	the game id
+	 * @returns the <code>EventLoop</code>, or <code>null</code> if there is no
+	 * 			such game
+	 */
+	public EventLoop findGameLoop(int gameId) {
+		for (EventLoop loop : loops) {
+			if (loop.getRouter().findGame(gameId) != null) {
+				return loop;
 			}
 		}
-		return 0;
+		return null;
 	}
 	
 	/**
-	 * Free a previously allocated Imlac id.
+	 * Return the metrics registry of this server.
 	 * 
-	 * @param id	the Imlac id (1-8)
+	 * @returns the <code>ServerMetrics</code>
 	 */
-	public void freeId(int id) {
-		if (id != 0) {
-			id -= 1;
-			idMask &= ~(1 << id);
-		}
+	public ServerMetrics getMetrics() {
+		return metrics;
 	}
 	
 	/**
-	 * Return the <code>Selector</code> used by the server thread.  This is used
-	 * by a <code>Player</code> instance to add its own connection to the <code>Selector</code>.
+	 * Return <code>true</code> if the server runs in the multi-reactor mode,
+	 * with the event loops on worker threads.
 	 * 
-	 * @returns the server <code>Selector</code>
+	 * @returns <code>true</code> in the multi-reactor mode
 	 */
-	public Selector getSelector() {
-		return selector;
+	public boolean isMultiReactor() {
+		return workers != null;
 	}
 	
 	/**
-	 * Find the <code>Player</code> instance for a given user name.
+	 * Return <code>true</code> if the server runs in the thread-per-connection
+	 * mode.
 	 * 
-	 * @param the user name, in ASCII (case-sensitive)
-	 * @returns the corresponding <code>Player</code> if any, or else <code>null</code>
+	 * @returns <code>true</code> in the thread-per-connection mode
 	 */
-	public Player findUser(byte[] name) {
-		
-		for (Player player : playerList) {
-			if (Arrays.equals(name, player.getName())) {
-				return player;
-			}
+	public boolean isThreaded() {
+		return acceptKey == null;
+	}
+	
+	/**
+	 * Set the output queue limit and overflow policy given to new connections.
+	 * Connections which already exist keep their settings.
+	 * 
+	 * @param limit		the number of messages which may be queued for a client
+	 * 					before the overflow policy is applied
+	 * @param policy	the overflow policy
+	 */
+	public void setOutputPolicy(int limit, OverflowPolicy policy) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Output queue limit must be positive");
 		}
-		return null;
+		outputLimit = limit;
+		overflowPolicy = policy;
 	}
 	
 	/**
-	 * Find the <code>Player</code> instance for a given Imlac id.
+	 * Return the output queue limit given to new connections.
 	 * 
-	 * @param the Imlac id (1-8)
-	 * @returns the corresponding <code>Player</code> if any, or else <code>null</code>
+	 * @returns the limit in messages
 	 */
-	public Player findPlayer(int id) {
-		for (Player player : playerList) {
-			if (id == player.getId()) {
-				return player;
-			}
+	public int getOutputLimit() {
+		return outputLimit;
+	}
+	
+	/**
+	 * Return the overflow policy given to new connections.
+	 * 
+	 * @returns the <code>OverflowPolicy</code>
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	/**
+	 * Set the journal in which the scores of the players are kept.  Without one,
+	 * scores are kept only while a player is connected.
+	 * 
+	 * @param journal	the <code>ScoreJournal</code>, or <code>null</code>
+	 */
+	public void setScoreJournal(ScoreJournal journal) {
+		scoreJournal = journal;
+	}
+	
+	/**
+	 * Return the journal in which the scores of the players are kept.
+	 * 
+	 * @returns the <code>ScoreJournal</code>, or <code>null</code> if there is none
+	 */
+	public ScoreJournal getScoreJournal() {
+		return scoreJournal;
+	}
+	
+	/**
+	 * Set the maze against which kills are checked.  A kill message is discarded
+	 * if the victim could not have been seen by the player claiming the kill.
+	 * By default there is no maze model, and every kill is accepted.
+	 * <code>MazeModel.DEFAULT</code> is the maze assembled into the Imlac
+	 * program.
+	 * 
+	 * @param maze	the <code>MazeModel</code>, or <code>null</code> to accept
+	 * 				every kill
+	 */
+	public void setMazeModel(MazeModel maze) {
+		mazeModel = maze;
+	}
+	
+	/**
+	 * Return the maze against which kills are checked.
+	 * 
+	 * @returns the <code>MazeModel</code>, or <code>null</code> if kills are not checked
+	 */
+	public MazeModel getMazeModel() {
+		return mazeModel;
+	}
+	
+	/**
+	 * Set how often a player is sent the location of another player which is out
+	 * of its sight, according to the maze model.  Location messages between
+	 * players which cannot see each other are withheld, except for one in each
+	 * interval, and a player is sent the latest location of another as soon as
+	 * it comes into sight.  Without a maze model, every location is sent.
+	 * By default every location is sent, so that the stream seen by existing
+	 * clients does not change.  <code>Game.DEFAULT_OUT_OF_SIGHT_INTERVAL</code>
+	 * is the usual interval when withholding is wanted.
+	 * 
+	 * @param millis	the interval in milliseconds, 0 to withhold every location
+	 * 					out of sight, or negative to send every location
+	 */
+	public void setOutOfSightInterval(long millis) {
+		outOfSightInterval = millis;
+	}
+	
+	/**
+	 * Return how often a player is sent the location of another player which is
+	 * out of its sight.
+	 * 
+	 * @returns the interval in milliseconds, or negative if every location is sent
+	 */
+	public long getOutOfSightInterval() {
+		return outOfSightInterval;
+	}
+	
+	/**
+	 * Set the shortest time between the frames sent to a client which uses the
+	 * batched frame protocol.  A longer interval puts more messages in each
+	 * frame, and so takes fewer writes, but delays the messages more.
+	 * 
+	 * @param millis	the interval in milliseconds, or 0 to send a frame after
+	 * 					every pass of the event loop
+	 */
+	public void setBatchInterval(long millis) {
+		batchInterval = millis;
+	}
+	
+	/**
+	 * Return the shortest time between the frames sent to a client which uses the
+	 * batched frame protocol.
+	 * 
+	 * @returns the interval in milliseconds
+	 */
+	public long getBatchInterval() {
+		return batchInterval;
+	}
+	
+	/**
+	 * Set the time after which a connection from which nothing has been
+	 * received is closed, and a leave message sent for its player.  This frees
+	 * the slots of clients which have crashed or lost their network, which are
+	 * otherwise only noticed when they reconnect.  A client only sends when
+	 * its player moves, so the timeout must allow for players who stand still.
+	 * This must be called before the server is started.
+	 * 
+	 * @param millis	the timeout in milliseconds, or 0 to keep silent
+	 * 					connections open
+	 */
+	public void setIdleTimeout(long millis) {
+		idleTimeout = millis;
+	}
+	
+	/**
+	 * Return the time after which a connection from which nothing has been
+	 * received is closed.
+	 * 
+	 * @returns the timeout in milliseconds, or 0 if there is none
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+	
+	/**
+	 * Start an HTTP endpoint which reports the games of this server as JSON, for
+	 * monitoring.  The event loops then publish a snapshot of their games at
+	 * most once in each interval.  The endpoint is stopped when the server
+	 * exits.
+	 * 
+	 * @param address		the local address and port to listen on, which
+	 * 						should normally be a loopback address
+	 * @param millis		the time in milliseconds between snapshots
+	 * @throws IOException	if the address cannot be bound
+	 */
+	public void startStatusServer(InetSocketAddress address, long millis) throws IOException {
+		StatusServer status = new StatusServer(this, address, millis);
+		status.start();
+		statusServer = status;
+	}
+	
+	/**
+	 * Return the HTTP endpoint which reports the games of this server.
+	 * 
+	 * @returns the <code>StatusServer</code>, or <code>null</code> if there is none
+	 */
+	public StatusServer getStatusServer() {
+		return statusServer;
+	}
+	
+	/**
+	 * Make this server a node of a federation, which hosts each game together
+	 * with the other nodes, and open its relay links to them.  This must be
+	 * called before the server is started.  The links are closed when the
+	 * server exits.
+	 * 
+	 * @param node			the index of this node in the list
+	 * @param nodes			the relay address of every node, in the same order
+	 * 						on every node
+	 * @throws IOException	if the relay address of this node cannot be bound
+	 * @see Federation
+	 */
+	public void startFederation(int node, InetSocketAddress[] nodes) throws IOException {
+		Federation f = new Federation(this, node, nodes);
+		federation = f;
+		f.start();
+	}
+	
+	/**
+	 * Return the federation of which this server is a node.
+	 * 
+	 * @returns the <code>Federation</code>, or <code>null</code> if there is none
+	 */
+	public Federation getFederation() {
+		return federation;
+	}
+	
+	/**
+	 * Return the number of connections which each game of this server may hold.
+	 * 
+	 * @returns the number of slots in a game
+	 */
+	int getGameSlots() {
+		Federation f = federation;
+		return (f != null) ? f.getShare() : Game.MAX_PLAYERS;
+	}
+	
+	/**
+	 * Set the log in which the input from new connections is captured, for
+	 * <code>Replay</code>.  Connections which already exist are not captured.
+	 * 
+	 * @param log	the <code>CaptureLog</code>, or <code>null</code> to stop capturing
+	 */
+	public void setCaptureLog(CaptureLog log) {
+		captureLog = log;
+	}
+	
+	/**
+	 * Return the log in which the input from new connections is captured.
+	 * 
+	 * @returns the <code>CaptureLog</code>, or <code>null</code> if there is none
+	 */
+	public CaptureLog getCaptureLog() {
+		return captureLog;
+	}
+	
+	/**
+	 * Open a datagram side channel in each event loop, for clients which ask to
+	 * send and receive location messages by UDP.  This must be called before the
+	 * server is started, and is not supported in the thread-per-connection mode.
+	 * 
+	 * @param lossRate		the fraction of datagrams to discard in each
+	 * 						direction, to simulate a lossy network, or 0
+	 * @throws IOException	if a datagram channel cannot be opened
+	 */
+	public void enableDatagrams(double lossRate) throws IOException {
+		if (isThreaded()) {
+			throw new IllegalStateException(
+				"Datagrams are not supported in the thread-per-connection mode");
+		}
+		for (EventLoop loop : loops) {
+			loop.openDatagrams(serverAddress, lossRate);
 		}
-		return null;
 	}
 	
 	/**
-	 * Queue a message from one player, identified by Imlac id, to all of the other
-	 * players.
+	 * Return the local port on which the server is listening.
 	 * 
-	 * @param fromId	the Imlac id (1-8) of the message sender
-	 * @param message	the message to be sent to the other players
+	 * @returns the TCP port number
 	 */
-	public void queueMessage(int fromId, byte[] message) {
-		for (Player player : playerList) {
-			int id = player.getId();
-			if ((id != fromId) && (id != 0)) {
-				player.queueMessage(message);
+	public int getLocalPort() {
+		return listenChannel.socket().getLocalPort();
+	}
+	
+	/**
+	 * Reserve a game for a <code>GameRouter</code> which is about to create one.
+	 * This may be called from any event loop.
+	 * 
+	 * @returns <code>true</code> if the game may be created, or <code>false</code>
+	 * 			if the server already has the maximum number of games
+	 */
+	boolean reserveGame() {
+		while (true) {
+			int count = gameCount.get();
+			if ((maxGames > 0) && (count >= maxGames)) {
+				return false;
+			}
+			if (gameCount.compareAndSet(count, count + 1)) {
+				return true;
 			}
 		}
 	}
 	
 	/**
-	 * Add a new player to the list of active players.
+	 * Release a game reserved by <code>reserveGame()</code> when the game is
+	 * discarded.
 	 * 
-	 * @param player	<code>Player</code> instance representing the new player
+	 * @param gameId	the id of the game
 	 */
-	public void addPlayer(Player player) {
-		playerList.add(player);
+	void releaseGame(int gameId) {
+		if (federation != null) {
+			synchronized (federatedGameIds) {
+				federatedGameIds.clear(gameId);
+			}
+		}
+		gameCount.decrementAndGet();
 	}
 	
 	/**
-	 * Terminate a given player and remove the <code>Player</code> instance from
-	 * the list of active players.
+	 * Return a new game id, unique within this server.  In a federation the
+	 * game id is also the identity of the game on every node, so the lowest id
+	 * which no game here has is taken.  Every node then fills the same games
+	 * in the same order, whichever node and event loop each player arrives on.
 	 * 
-	 * @param player	<code>Player</code> instance to be terminated
+	 * @returns the game id
 	 */
-	public void removePlayer(Player player) {
-		int id = player.getId();
-		freeId(id);
-		player.close();
-		playerList.remove(player);
+	int nextGameId() {
+		if (federation == null) {
+			return nextGameId.getAndIncrement();
+		}
+		synchronized (federatedGameIds) {
+			int gameId = federatedGameIds.nextClearBit(1);
+			federatedGameIds.set(gameId);
+			return gameId;
+		}
 	}
 	
 	/**
-	 * Replace a player, identified by Imlac id, with a new player.  The new player
-	 * may have the same or a different Imlac id.  This is used when a client stops
-	 * or crashes and the server does not detect it until the client tries to enter
-	 * the game again.
-	 * 
-	 * @param id			the Imlac id (1-8) of the player to be replaced
-	 * @param newPlayer		the <code>Player</code> instance for the new player
+	 * Accept all the pending connections on the listening socket, and assign each
+	 * one to an event loop.  This is called on the server thread in the
+	 * multi-reactor mode, and from the only event loop in the single-selector mode.
 	 */
-	public void replacePlayer(int id, Player newPlayer) {
-		Player oldPlayer = findPlayer(id);
-		oldPlayer.close();
-		playerList.remove(oldPlayer);
-		playerList.add(newPlayer);
+	void acceptConnections() {
+		while (true) {
+			SocketChannel playerChan = null;
+			try {
+				playerChan = listenChannel.accept();
+				if (playerChan == null) {
+					break;
+				}
+				assignConnection(playerChan);
+			} catch (ClosedChannelException ccx) {
+				if (playerChan != null) {
+					closeChannel(playerChan);
+				}
+				System.out.println(
+					"Connection closed during accept in server");
+				break;
+			} catch (IOException iox) {
+				System.out.println("Accept failed in server");
+				break;
+			}
+		}
 	}
 	
 	/**
-	 * Send initial messages to a newly joined player.  The new player gets a
-	 * "new player" and a "location" message for each of the other players.
+	 * Assign a new connection to an event loop.  A loop which has a free slot in
+	 * one of its games is preferred.  Otherwise the loops take turns starting new
+	 * games.
 	 * 
-	 * @param player	the <code>Player</code> instance for the new player
+	 * @param chan	the new connection
 	 */
-	public void sendPlayerLocations(Player player) {
-		for (Player otherPlayer : playerList) {
-			if ((otherPlayer == player) || (otherPlayer.getId() == 0)) continue;
-			byte[] newplayerMsg = otherPlayer.makeNewPlayerMessage();
-			player.queueMessage(newplayerMsg);
-			byte[] locationMsg = otherPlayer.makeLocationMessage();
-			player.queueMessage(locationMsg);
+	private void assignConnection(SocketChannel chan) {
+		if (loops.length == 1) {
+			loops[0].assign(chan);
+			return;
 		}
+		for (EventLoop loop : loops) {
+			if (loop.getOpenSlots() > 0) {
+				loop.assign(chan);
+				return;
+			}
+		}
+		EventLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		loop.assignNewGame(chan);
 	}
 	
 	/**
 	 * This contains the main loop of the server.
 	 */
 	public void run() {
-		int readyCount = 0;
 		System.out.println("Server thread started.");
+		metrics.register();
 		
-		do {
-			try {
-				readyCount = selector.select();
-			} catch (IOException iox) {
-				System.out.println("I/O exception from select()");
-				break;
+		if (workers == null) {
+			loops[0].run();
+		} else {
+			for (Thread worker : workers) {
+				worker.start();
 			}
-			if (quit) {
-				System.out.println("Server shutting down.");
-				break;
-			} 
-			if (readyCount > 0) {
-				Set<SelectionKey> readyKeys = selector.selectedKeys();
-				Iterator<SelectionKey> iter = readyKeys.iterator();
-				while (iter.hasNext()) {
-					SelectionKey key = iter.next();
-					iter.remove();
-					SelectableChannel c = key.channel();
-					if (c.equals(listenChannel)) {
-						SocketChannel playerChan = null;
-						try {
-							playerChan = listenChannel.accept();
-							// Have we reached the max number of players?
-							if (playerList.size() >= 8) {
-								playerChan.close();
-								continue;
-							}
-							Player player = new Player(this, playerChan);
-						} catch (ClosedChannelException ccx) {
-							if (playerChan != null) {
-								closeChannel(playerChan);
-							}
-							System.out.println(
-								"Connection closed during accept in server");
-							continue;
-						} catch (IOException iox) {
-							System.out.println("Accept failed in server");
-							continue;
-						}
-					} else {
-						if (key.isReadable()) {
-							SocketChannel schan = (SocketChannel) c;
-							Player player = (Player) key.attachment();
-							try {
-								player.read();
-							} catch (IOException iox) {
-								int id = player.getId();
-								System.out.println(
-									"I/O exception on read from player id "
-										+ id);
-								if (id > 0) {
-									queueMessage(id, Player.makeLeaveMessage(id));
-								}
-								removePlayer(player);
-							}
-						}
-					}
-				}
-				
-				// After all players have read everything they can,
-				// give them a chance to send.
-				for (Player player : playerList) {
-					try {
-						player.write();
-					} catch (IOException iox) {
-						System.out.println(
-							"I/O exception on write to player id"
-								+ player.getId());
-						removePlayer(player);
-					}
+			runAcceptor();
+			for (EventLoop loop : loops) {
+				loop.shutdown();
+			}
+			for (Thread worker : workers) {
+				try {
+					worker.join();
+				} catch (InterruptedException iex) {
+					// Proceed to close the listening socket
 				}
 			}
-		} while (readyCount > 0);
+		}
 		
+		metrics.unregister();
+		if (statusServer != null) {
+			statusServer.stop();
+		}
+		if (federation != null) {
+			federation.stop();
+		}
 		try {
-			acceptKey.cancel();
+			if (acceptKey != null) {
+				acceptKey.cancel();
+			}
 			listenChannel.socket().close();
 			listenChannel.close();
 			selector.close();
@@ -309,13 +633,31 @@ public class Server extends Thread {
 			System.out.println("I/O exception while closing server socket");
 		}
 		
-		for (Player player : playerList) {
-			player.close();
-		}
 		System.out.println("Server thread exit");
 	}
 	
-	private void closeChannel(SelectableChannel chan) {
+	private void runAcceptor() {
+		while (!quit) {
+			try {
+				selector.select();
+			} catch (IOException iox) {
+				System.out.println("I/O exception from select()");
+				break;
+			}
+			if (quit) {
+				System.out.println("Server shutting down.");
+				break;
+			}
+			Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				iter.next();
+				iter.remove();
+				acceptConnections();
+			}
+		}
+	}
+	
+	void closeChannel(SelectableChannel chan) {
 		try {
 			chan.close();
 		} catch (IOException iox) {
@@ -323,18 +665,159 @@ public class Server extends Thread {
 	}
 	
 	/**
-	 * This entry point was used for testing purposes and may be obsolete.
+	 * Run a server from the command line.  The options are
+	 * <dl>
+	 * <dt><code>-port</code> <i>n</i></dt><dd>TCP port for Maze clients (8082)</dd>
+	 * <dt><code>-workers</code> <i>n</i></dt><dd>number of worker threads for the
+	 * 		multi-reactor mode, or 0 for the single-selector mode (0)</dd>
+	 * <dt><code>-threaded</code></dt><dd>use the thread-per-connection mode</dd>
+	 * <dt><code>-policy</code> <i>name</i></dt><dd>output overflow policy
+	 * 		(coalesce)</dd>
+	 * <dt><code>-limit</code> <i>n</i></dt><dd>output queue limit of each player
+	 * 		(256)</dd>
+	 * <dt><code>-scores</code> <i>directory</i></dt><dd>keep the scoreboard in a
+	 * 		journal in the directory</dd>
+	 * <dt><code>-capture</code> <i>file</i></dt><dd>capture the input of each
+	 * 		connection for <code>Replay</code></dd>
+	 * <dt><code>-udp</code> <i>rate</i></dt><dd>enable the datagram side channel,
+	 * 		discarding the given fraction of datagrams to simulate loss</dd>
+	 * <dt><code>-maze</code> <i>file</i></dt><dd>check kills against the maze in
+	 * 		an Imlac assembler source file, or "default" for the maze assembled
+	 * 		into the Imlac program (every kill is accepted)</dd>
+	 * <dt><code>-withhold</code> <i>ms</i></dt><dd>interval between the locations
+	 * 		sent to players out of sight, with <code>-maze</code> (every location
+	 * 		is sent)</dd>
+	 * <dt><code>-status</code> <i>port</i></dt><dd>local TCP port of the status
+	 * 		endpoint</dd>
+	 * <dt><code>-idle</code> <i>ms</i></dt><dd>idle timeout of each connection
+	 * 		(none)</dd>
+	 * <dt><code>-federation</code>
+	 * 		<i>node</i><code>@</code><i>host</i><code>:</code><i>port</i>,...</dt>
+	 * 		<dd>index of this node and the relay addresses of all the nodes of
+	 * 		a federation</dd>
+	 * </dl>
 	 * 
-	 * @param args	unused and ignored
+	 * @param args	the options
 	 */
 	public static void main(String[] args) {
-		InetSocketAddress serverAddress = new InetSocketAddress(8082);
+		int port = 8082;
+		int workerCount = 0;
+		boolean threaded = false;
+		OverflowPolicy policy = OverflowPolicy.COALESCE;
+		int limit = OutputQueue.DEFAULT_LIMIT;
+		String scores = null;
+		String captureFile = null;
+		double loss = -1;
+		String maze = null;
+		long outOfSight = -1;
+		int statusPort = -1;
+		long idle = 0;
+		String nodes = null;
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-threaded")) {
+				threaded = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			if (arg.equals("-port")) {
+				port = Integer.parseInt(value);
+			} else if (arg.equals("-workers")) {
+				workerCount = Integer.parseInt(value);
+			} else if (arg.equals("-policy")) {
+				policy = OverflowPolicy.forName(value);
+			} else if (arg.equals("-limit")) {
+				limit = Integer.parseInt(value);
+			} else if (arg.equals("-scores")) {
+				scores = value;
+			} else if (arg.equals("-capture")) {
+				captureFile = value;
+			} else if (arg.equals("-udp")) {
+				loss = Double.parseDouble(value);
+			} else if (arg.equals("-maze")) {
+				maze = value;
+			} else if (arg.equals("-withhold")) {
+				outOfSight = Long.parseLong(value);
+			} else if (arg.equals("-status")) {
+				statusPort = Integer.parseInt(value);
+			} else if (arg.equals("-idle")) {
+				idle = Long.parseLong(value);
+			} else if (arg.equals("-federation")) {
+				nodes = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		InetSocketAddress serverAddress = new InetSocketAddress(port);
 		Server server = null;
 		try {
-			server = new Server(serverAddress);
+			server = new Server(serverAddress, 0, workerCount, threaded);
 		} catch (IOException iox) {
 			throw new RuntimeException(iox);
 		}
+		server.setOutputPolicy(limit, policy);
+		ScoreJournal journal = null;
+		if (scores != null) {
+			try {
+				journal = new ScoreJournal(new File(scores));
+			} catch (IOException iox) {
+				throw new RuntimeException(iox);
+			}
+			journal.start();
+			server.setScoreJournal(journal);
+		}
+		CaptureLog capture = null;
+		if (captureFile != null) {
+			try {
+				capture = new CaptureLog(new File(captureFile));
+			} catch (IOException iox) {
+				throw new RuntimeException(iox);
+			}
+			server.setCaptureLog(capture);
+		}
+		if (loss >= 0) {
+			try {
+				server.enableDatagrams(loss);
+			} catch (IOException iox) {
+				throw new RuntimeException(iox);
+			}
+		}
+		if (maze != null) {
+			if (maze.equals("default")) {
+				server.setMazeModel(MazeModel.DEFAULT);
+			} else {
+				try {
+					server.setMazeModel(MazeModel.load(new File(maze)));
+				} catch (IOException iox) {
+					throw new RuntimeException(iox);
+				}
+			}
+		}
+		server.setOutOfSightInterval(outOfSight);
+		if (statusPort >= 0) {
+			try {
+				server.startStatusServer(new InetSocketAddress("localhost", statusPort),
+					StatusServer.DEFAULT_INTERVAL);
+			} catch (IOException iox) {
+				throw new RuntimeException(iox);
+			}
+		}
+		server.setIdleTimeout(idle);
+		if (nodes != null) {
+			int at = nodes.indexOf('@');
+			if (at < 0) {
+				throw new IllegalArgumentException("No node index in " + nodes);
+			}
+			try {
+				server.startFederation(Integer.parseInt(nodes.substring(0, at)),
+					Federation.parseNodes(nodes.substring(at + 1)));
+			} catch (IOException iox) {
+				throw new RuntimeException(iox);
+			}
+		}
 		server.setDaemon(true);
 		server.start();
 		try {
@@ -342,5 +825,11 @@ public class Server extends Thread {
 		} catch (InterruptedException iex) {
 			throw new RuntimeException(iex);
 		}
+		if (journal != null) {
+			journal.close();
+		}
+		if (capture != null) {
+			capture.close();
+		}
 	}
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class is the metrics registry of a <code>Server</code>.  It adds up the
+ * counters of all the server's event loops, and makes them available through
+ * JMX, along with the counters of each player.  The server's MBean is
+ * registered with the platform MBean server as
+ * <code>net.sourceforge.imlac.mazeserver:type=Server,port=</code><i>port</i>
+ * while the server runs, and each player which has been assigned an Imlac id
+ * is registered as
+ * <code>net.sourceforge.imlac.mazeserver:type=Player,port=</code><i>port</i><code>,game=</code><i>game</i><code>,id=</code><i>id</i>.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see LoopMetrics
+ * @see PlayerMetrics
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+	/** JMX domain of the server MBeans */
+	public static final String DOMAIN = "net.sourceforge.imlac.mazeserver";
+
+	private final Server server;
+	private final LoopMetrics[] loopMetrics;
+	private MBeanServer mbeanServer;
+	private ObjectName serverName;
+
+	/**
+	 * Create the metrics registry of a server.
+	 *
+	 * @param server	the server
+	 */
+	public ServerMetrics(Server server) {
+		super();
+		this.server = server;
+		EventLoop[] loops = server.getEventLoops();
+		loopMetrics = new LoopMetrics[loops.length];
+		for (int i = 0; i < loops.length; ++i) {
+			loopMetrics[i] = loops[i].getMetrics();
+		}
+	}
+
+	/**
+	 * Register the server MBean.  A failure is reported, but the server runs
+	 * without it.
+	 */
+	public synchronized void register() {
+		try {
+			mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			serverName = new ObjectName(DOMAIN + ":type=Server,port=" + server.getLocalPort());
+			mbeanServer.registerMBean(this, serverName);
+		} catch (JMException jmx) {
+			System.out.println("Failed to register server MBean: " + jmx);
+			mbeanServer = null;
+		}
+	}
+
+	/**
+	 * Unregister the server MBean, and the MBeans of any remaining players.
+	 */
+	public synchronized void unregister() {
+		if (mbeanServer == null) {
+			return;
+		}
+		try {
+			mbeanServer.unregisterMBean(serverName);
+			ObjectName players = new ObjectName(DOMAIN + ":type=Player,port="
+				+ server.getLocalPort() + ",*");
+			for (ObjectName name : mbeanServer.queryNames(players, null)) {
+				mbeanServer.unregisterMBean(name);
+			}
+		} catch (JMException jmx) {
+			System.out.println("Failed to unregister server MBeans: " + jmx);
+		}
+		mbeanServer = null;
+	}
+
+	/**
+	 * Register the MBean of a player which has been assigned an Imlac id.  This
+	 * may be called from any event loop.
+	 *
+	 * @param player	the player
+	 */
+	public void registerPlayer(Player player) {
+		MBeanServer mbs = getMBeanServer();
+		if (mbs != null) {
+			try {
+				mbs.registerMBean(player.getMetrics(), playerName(player));
+			} catch (JMException jmx) {
+				System.out.println("Failed to register player MBean: " + jmx);
+			}
+		}
+	}
+
+	/**
+	 * Unregister the MBean of a player, if it is registered.  This may be called
+	 * from any event loop.
+	 *
+	 * @param player	the player
+	 */
+	public void unregisterPlayer(Player player) {
+		MBeanServer mbs = getMBeanServer();
+		if (mbs != null) {
+			try {
+				ObjectName name = playerName(player);
+				if (mbs.isRegistered(name)) {
+					mbs.unregisterMBean(name);
+				}
+			} catch (JMException jmx) {
+				System.out.println("Failed to unregister player MBean: " + jmx);
+			}
+		}
+	}
+
+	private synchronized MBeanServer getMBeanServer() {
+		return mbeanServer;
+	}
+
+	private ObjectName playerName(Player player) throws JMException {
+		return new ObjectName(DOMAIN + ":type=Player,port=" + server.getLocalPort()
+			+ ",game=" + player.getGame().getGameId() + ",id=" + player.getId());
+	}
+
+	private long sum(int counter) {
+		long total = 0;
+		for (LoopMetrics metrics : loopMetrics) {
+			total += metrics.get(counter);
+		}
+		return total;
+	}
+
+	public long getAcceptedCount() {
+		return sum(LoopMetrics.ACCEPTED);
+	}
+
+	public long getRejectedCount() {
+		return sum(LoopMetrics.REJECTED);
+	}
+
+	public long getInvalidKillCount() {
+		return sum(LoopMetrics.INVALID_KILLS);
+	}
+
+	public long getWithheldLocationCount() {
+		return sum(LoopMetrics.WITHHELD_LOCATIONS);
+	}
+
+	public long getIdleEvictionCount() {
+		return sum(LoopMetrics.IDLE_EVICTIONS);
+	}
+
+	public int getConnectionCount() {
+		int total = 0;
+		for (EventLoop loop : server.getEventLoops()) {
+			total += loop.getConnectionCount();
+		}
+		return total;
+	}
+
+	public long getSelectCount() {
+		return sum(LoopMetrics.SELECTS);
+	}
+
+	public long getWakeupCount() {
+		return sum(LoopMetrics.WAKEUPS);
+	}
+
+	public long getBytesIn() {
+		return sum(LoopMetrics.BYTES_IN);
+	}
+
+	public long getBytesOut() {
+		return sum(LoopMetrics.BYTES_OUT);
+	}
+
+	public long getMessagesIn() {
+		return PlayerMetrics.sum(getMessagesInByClass());
+	}
+
+	public long getMessagesOut() {
+		return PlayerMetrics.sum(getMessagesOutByClass());
+	}
+
+	public String[] getMessageClasses() {
+		return LoopMetrics.CLASS_NAMES.clone();
+	}
+
+	public long[] getMessagesInByClass() {
+		long[] sums = new long[LoopMetrics.CLASS_COUNT];
+		for (LoopMetrics metrics : loopMetrics) {
+			metrics.addMessages(true, sums);
+		}
+		return sums;
+	}
+
+	public long[] getMessagesOutByClass() {
+		long[] sums = new long[LoopMetrics.CLASS_COUNT];
+		for (LoopMetrics metrics : loopMetrics) {
+			metrics.addMessages(false, sums);
+		}
+		return sums;
+	}
+
+	public long getQueuedMessages() {
+		return sum(LoopMetrics.QUEUED_MESSAGES);
+	}
+
+	public long getQueuedBytes() {
+		return sum(LoopMetrics.QUEUED_BYTES);
+	}
+
+	public long getMaxQueueDepth() {
+		long max = 0;
+		for (LoopMetrics metrics : loopMetrics) {
+			max = Math.max(max, metrics.get(LoopMetrics.MAX_QUEUE_DEPTH));
+		}
+		return max;
+	}
+
+	public String[] getSelectTimeBuckets() {
+		String[] buckets = new String[LoopMetrics.HISTOGRAM_BUCKETS];
+		for (int i = 0; i < buckets.length - 1; ++i) {
+			buckets[i] = "<" + (1L << i) + "us";
+		}
+		buckets[buckets.length - 1] = ">=" + (1L << (buckets.length - 2)) + "us";
+		return buckets;
+	}
+
+	public long[] getSelectTimeHistogram() {
+		long[] sums = new long[LoopMetrics.HISTOGRAM_BUCKETS];
+		for (LoopMetrics metrics : loopMetrics) {
+			metrics.addSelectTimes(sums);
+		}
+		return sums;
+	}
+}
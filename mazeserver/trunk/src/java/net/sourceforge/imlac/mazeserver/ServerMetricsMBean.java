@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+/**
+ * The JMX management interface of <code>ServerMetrics</code>.  The counts are
+ * totals for all the event loops of the server since it was started.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see ServerMetrics
+ */
+public interface ServerMetricsMBean {
+
+	/** @return the number of connections attached to a game */
+	public long getAcceptedCount();
+
+	/** @return the number of connections closed because there was no room */
+	public long getRejectedCount();
+
+	/** @return the number of kill messages discarded as impossible */
+	public long getInvalidKillCount();
+
+	/** @return the number of location messages not sent to players out of sight */
+	public long getWithheldLocationCount();
+
+	/** @return the number of connections closed because they were silent too long */
+	public long getIdleEvictionCount();
+
+	/** @return the number of current connections */
+	public int getConnectionCount();
+
+	/** @return the number of selector loop iterations */
+	public long getSelectCount();
+
+	/** @return the number of iterations on which no key was ready */
+	public long getWakeupCount();
+
+	/** @return the number of bytes read from clients */
+	public long getBytesIn();
+
+	/** @return the number of bytes written to clients */
+	public long getBytesOut();
+
+	/** @return the number of messages received from clients */
+	public long getMessagesIn();
+
+	/** @return the number of messages queued for clients */
+	public long getMessagesOut();
+
+	/** @return the names of the message classes */
+	public String[] getMessageClasses();
+
+	/** @return the number of messages received, by message class */
+	public long[] getMessagesInByClass();
+
+	/** @return the number of messages queued for clients, by message class */
+	public long[] getMessagesOutByClass();
+
+	/** @return the number of messages in all output queues */
+	public long getQueuedMessages();
+
+	/** @return the number of bytes in all output queues */
+	public long getQueuedBytes();
+
+	/** @return the largest number of messages seen in one output queue */
+	public long getMaxQueueDepth();
+
+	/** @return the upper bounds of the select time histogram buckets */
+	public String[] getSelectTimeBuckets();
+
+	/** @return the number of loop iterations in each select time bucket */
+	public long[] getSelectTimeHistogram();
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A read-only connection which watches a game.  A client asks to watch a game
+ * by sending the game id in place of a name, followed by " WATCH", as in
+ * "<code>3 WATCH</code>".  The connection is then moved to the event loop which
+ * hosts that game, and is sent the game's players and their locations, and
+ * from then on every message broadcast in the game.  A spectator has no Imlac
+ * id and does not take one of the game's slots, and anything that it sends is
+ * ignored.
+ * <p>
+ * A spectator does not have an output queue.  It is written from the game's
+ * <code>BroadcastLog</code>, and keeps only its position in the log.  It is
+ * disconnected if it falls further behind than the log holds, or when the
+ * game ends.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Game
+ */
+public class Spectator {
+
+	private final SocketChannel schan;
+	private final int gameId;
+	private SelectionKey key;
+	private Game game;
+	private BroadcastLog log;
+	private ByteBuffer[] views;
+	private ByteBuffer initial;			// Players and locations, until written
+	private long cursor;				// Position in the log written up to
+	private boolean waiting;			// OP_WRITE interest is registered
+	private final ByteBuffer discard = ByteBuffer.allocate(64);
+
+	/**
+	 * Create a spectator for a connection.
+	 *
+	 * @param schan		the connection, in non-blocking mode
+	 * @param key		the key of the connection, to be reused if it is
+	 * 					registered with the selector of the game's loop, or
+	 * 					<code>null</code>
+	 * @param gameId	the id of the game to watch
+	 */
+	Spectator(SocketChannel schan, SelectionKey key, int gameId) {
+		super();
+		this.schan = schan;
+		this.key = key;
+		this.gameId = gameId;
+	}
+
+	/**
+	 * Return the id of the game which this spectator watches.
+	 *
+	 * @return	the game id
+	 */
+	public int getGameId() {
+		return gameId;
+	}
+
+	/**
+	 * Return the game which this spectator watches.
+	 *
+	 * @return	the <code>Game</code>, or <code>null</code> until it is attached
+	 */
+	public Game getGame() {
+		return game;
+	}
+
+	/**
+	 * Register the connection with the selector of an event loop.  This must be
+	 * called on the loop thread.
+	 *
+	 * @param loop			the <code>EventLoop</code> of the game
+	 * @throws IOException	if the connection cannot be registered
+	 */
+	void register(EventLoop loop) throws IOException {
+		if ((key == null) || (key.selector() != loop.getSelector())) {
+			key = schan.register(loop.getSelector(), SelectionKey.OP_READ);
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		key.attach(this);
+		waiting = false;
+	}
+
+	/**
+	 * Start watching a game, at the current end of its log.
+	 *
+	 * @param game		the <code>Game</code>
+	 * @param log		the game's <code>BroadcastLog</code>
+	 * @param initial	the messages to send first, or <code>null</code>
+	 */
+	void start(Game game, BroadcastLog log, ByteBuffer initial) {
+		this.game = game;
+		this.log = log;
+		views = log.newViews();
+		cursor = log.getHead();
+		this.initial = initial;
+	}
+
+	/**
+	 * Read and discard whatever the client has sent.
+	 *
+	 * @throws IOException	if the connection fails or is closed by the client
+	 */
+	void read() throws IOException {
+		int len;
+		do {
+			discard.clear();
+			len = schan.read(discard);
+		} while (len > 0);
+		if (len < 0) {
+			throw new IOException("spectator closed the connection");
+		}
+	}
+
+	/**
+	 * Write as much of the log as the connection will take.
+	 * <code>OP_WRITE</code> interest is registered only while output remains.
+	 *
+	 * @return	the number of bytes written
+	 * @throws IOException	if the connection fails, or the spectator has fallen
+	 * 						too far behind
+	 */
+	long write() throws IOException {
+		long len = 0;
+		if (initial != null) {
+			len += schan.write(initial);
+			if (initial.hasRemaining()) {
+				setWaiting(true);
+				return len;
+			}
+			initial = null;
+		}
+		long behind = log.getHead() - cursor;
+		if (behind > log.getCapacity()) {
+			throw new IOException("spectator fell " + behind + " bytes behind");
+		}
+		if (behind > 0) {
+			long n = log.write(schan, cursor, views);
+			cursor += n;
+			len += n;
+		}
+		setWaiting(cursor != log.getHead());
+		return len;
+	}
+
+	private void setWaiting(boolean wait) {
+		if (wait != waiting) {
+			waiting = wait;
+			key.interestOps(wait ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE)
+				: SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Close the connection.
+	 */
+	void close() {
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			schan.close();
+		} catch (IOException iox) {
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP endpoint which reports the live state of a server as JSON, for
+ * monitoring.  A GET of <code>/status</code> returns every game, with the
+ * position, score and output queue depth of each of its players.
+ * <p>
+ * The endpoint never touches the games itself.  Each event loop captures a
+ * <code>StatusSnapshot</code> of its games on its own thread, at most once in
+ * each status interval, and publishes it through a volatile reference, from
+ * which the requests are answered.  So a request takes no locks and cannot slow
+ * down a game, and the report may be up to one interval old.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see StatusSnapshot
+ */
+public class StatusServer implements HttpHandler {
+
+	/** Default time in milliseconds between snapshots of an event loop */
+	public static final long DEFAULT_INTERVAL = 250;
+
+	private final Server server;
+	private final HttpServer http;
+	private final long interval;
+
+	/**
+	 * Create the status endpoint for a server.  It is not started until
+	 * <code>start()</code> is called.
+	 *
+	 * @param server		the <code>Server</code> to report on
+	 * @param address		the local address and port to listen on
+	 * @param interval		the time in milliseconds between snapshots
+	 * @throws IOException	if the address cannot be bound
+	 */
+	public StatusServer(Server server, InetSocketAddress address, long interval)
+			throws IOException {
+		super();
+		this.server = server;
+		this.interval = interval;
+		http = HttpServer.create(address, 0);
+		http.createContext("/status", this);
+	}
+
+	/**
+	 * Return the time between snapshots of an event loop.
+	 *
+	 * @return	the interval in milliseconds
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Return the local port on which the endpoint is listening.
+	 *
+	 * @return	the TCP port number
+	 */
+	public int getLocalPort() {
+		return http.getAddress().getPort();
+	}
+
+	/**
+	 * Start answering requests, on a thread of the HTTP server.
+	 */
+	public void start() {
+		http.start();
+	}
+
+	/**
+	 * Stop answering requests, and close the listening socket.
+	 */
+	public void stop() {
+		http.stop(0);
+	}
+
+	/**
+	 * Return the status of the server as JSON text.
+	 *
+	 * @return	the JSON text
+	 */
+	public String getStatus() {
+		StringBuilder json = new StringBuilder(1024);
+		json.append("{\"time\":").append(System.currentTimeMillis())
+			.append(",\"interval\":").append(interval)
+			.append(",\"games\":[");
+		boolean first = true;
+		for (EventLoop loop : server.getEventLoops()) {
+			StatusSnapshot snapshot = loop.getStatus();
+			if (snapshot != null) {
+				first = snapshot.appendGames(json, first);
+			}
+		}
+		json.append("]}\n");
+		return json.toString();
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				exchange.getResponseHeaders().set("Allow", "GET");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = getStatus().getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} finally {
+			exchange.close();
+		}
+	}
+}
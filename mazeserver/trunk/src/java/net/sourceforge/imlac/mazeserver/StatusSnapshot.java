@@ -0,0 +1,247 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.util.Collection;
+
+/**
+ * An immutable copy of the state of the games of one event loop, for the
+ * status endpoint.  The loop thread captures one at a bounded rate and
+ * publishes it through a volatile reference, so that readers on other
+ * threads never touch the live games.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see StatusServer
+ */
+public final class StatusSnapshot {
+
+	/** A summary of round-trip times, in microseconds */
+	public static final class RoundTrips {
+		public final long count;
+		public final long median;
+		public final long p99;
+		public final long max;
+
+		RoundTrips(LatencyHistogram histogram) {
+			super();
+			count = histogram.getCount();
+			median = histogram.percentile(50);
+			p99 = histogram.percentile(99);
+			max = histogram.getMax();
+		}
+	}
+
+	/** The state of one player */
+	public static final class PlayerStatus {
+		public final int id;
+		public final String name;
+		public final int x;
+		public final int y;
+		public final int direction;
+		public final int hits;
+		public final int deaths;
+		public final int queueDepth;
+		public final int queuedBytes;
+		public final RoundTrips roundTrips;
+
+		PlayerStatus(Player player) {
+			super();
+			id = player.getId();
+			name = new String(player.getName(), 0, player.getName().length).trim();
+			x = player.getX();
+			y = player.getY();
+			direction = player.getDirection();
+			hits = player.getHits();
+			deaths = player.getDeaths();
+			queueDepth = player.getOutputQueue().size();
+			queuedBytes = player.getOutputQueue().getPendingBytes();
+			roundTrips = new RoundTrips(player.getMetrics().getRoundTrips());
+		}
+	}
+
+	/** The state of one game */
+	public static final class GameStatus {
+		public final int gameId;
+		public final int connections;
+		public final int spectators;
+		public final PlayerStatus[] players;
+		public final RoundTrips roundTrips;
+
+		GameStatus(Game game) {
+			super();
+			gameId = game.getGameId();
+			connections = game.getConnectionCount();
+			spectators = game.getSpectatorCount();
+			roundTrips = new RoundTrips(game.getRoundTrips());
+			Collection<Player> list = game.getPlayers();
+			players = new PlayerStatus[list.size()];
+			int i = 0;
+			for (Player player : list) {
+				players[i++] = new PlayerStatus(player);
+			}
+		}
+	}
+
+	private final int loopId;
+	private final long time;
+	private final GameStatus[] games;
+
+	/**
+	 * Capture the state of some games.  This must be called on the thread which
+	 * owns the games.
+	 *
+	 * @param loopId	the id of the event loop
+	 * @param time		the time of the capture, in milliseconds
+	 * @param list		the games
+	 */
+	StatusSnapshot(int loopId, long time, Collection<Game> list) {
+		this(loopId, time, list.toArray(new Game[list.size()]));
+	}
+
+	private StatusSnapshot(int loopId, long time, Game[] list) {
+		super();
+		this.loopId = loopId;
+		this.time = time;
+		games = new GameStatus[list.length];
+		for (int i = 0; i < list.length; ++i) {
+			games[i] = new GameStatus(list[i]);
+		}
+	}
+
+	/**
+	 * Capture the state of some games, taking the lock on each game while it is
+	 * copied.  This is for the thread-per-connection engine, in which no one
+	 * thread owns the games.
+	 *
+	 * @param loopId	the id of the engine
+	 * @param time		the time of the capture, in milliseconds
+	 * @param list		the games
+	 * @return			the snapshot
+	 */
+	static StatusSnapshot captureLocked(int loopId, long time, Game[] list) {
+		GameStatus[] games = new GameStatus[list.length];
+		for (int i = 0; i < list.length; ++i) {
+			synchronized (list[i]) {
+				games[i] = new GameStatus(list[i]);
+			}
+		}
+		return new StatusSnapshot(loopId, time, games);
+	}
+
+	private StatusSnapshot(int loopId, long time, GameStatus[] games) {
+		super();
+		this.loopId = loopId;
+		this.time = time;
+		this.games = games;
+	}
+
+	/**
+	 * Return the id of the event loop that this snapshot was taken from.
+	 *
+	 * @return	the loop id
+	 */
+	public int getLoopId() {
+		return loopId;
+	}
+
+	/**
+	 * Return the time at which this snapshot was taken.
+	 *
+	 * @return	the time in milliseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Return the state of the games.  The array must not be modified.
+	 *
+	 * @return	the games
+	 */
+	public GameStatus[] getGames() {
+		return games;
+	}
+
+	/**
+	 * Append the games of this snapshot to a JSON array being built, each as an
+	 * object.
+	 *
+	 * @param json	the JSON text so far
+	 * @param first	<code>true</code> if nothing has been added to the array yet
+	 * @return		<code>true</code> if nothing has been added to the array yet
+	 */
+	boolean appendGames(StringBuilder json, boolean first) {
+		for (GameStatus game : games) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			json.append("{\"game\":").append(game.gameId)
+				.append(",\"loop\":").append(loopId)
+				.append(",\"time\":").append(time)
+				.append(",\"connections\":").append(game.connections)
+				.append(",\"spectators\":").append(game.spectators);
+			appendRoundTrips(json, game.roundTrips);
+			json.append(",\"players\":[");
+			for (int i = 0; i < game.players.length; ++i) {
+				PlayerStatus p = game.players[i];
+				if (i > 0) {
+					json.append(',');
+				}
+				json.append("{\"id\":").append(p.id)
+					.append(",\"name\":");
+				appendString(json, p.name);
+				json.append(",\"x\":").append(p.x)
+					.append(",\"y\":").append(p.y)
+					.append(",\"direction\":").append(p.direction)
+					.append(",\"hits\":").append(p.hits)
+					.append(",\"deaths\":").append(p.deaths)
+					.append(",\"queueDepth\":").append(p.queueDepth)
+					.append(",\"queuedBytes\":").append(p.queuedBytes);
+				appendRoundTrips(json, p.roundTrips);
+				json.append('}');
+			}
+			json.append("]}");
+		}
+		return first;
+	}
+
+	private static void appendRoundTrips(StringBuilder json, RoundTrips rtt) {
+		json.append(",\"rtt\":{\"count\":").append(rtt.count)
+			.append(",\"median\":").append(rtt.median)
+			.append(",\"p99\":").append(rtt.p99)
+			.append(",\"max\":").append(rtt.max)
+			.append('}');
+	}
+
+	private static void appendString(StringBuilder json, String s) {
+		json.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				json.append('\\').append(c);
+			} else if (c < 040) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is the engine of the thread-per-connection server mode, an
+ * alternative to the selector loops.  It accepts connections on the server's
+ * listening socket with blocking accepts, places each in a game, and starts a
+ * <code>ThreadedPlayer</code> for it, which reads and writes its connection
+ * with blocking I/O on threads of its own.  On a Java runtime with virtual
+ * threads they are used for the player threads, so that thousands of mostly
+ * idle connections cost little more than their sockets.
+ * <p>
+ * Messages are decoded by the same <code>Player</code> code as in the selector
+ * engine, but while holding the lock on the player's <code>Game</code>, which
+ * protects the game's state and its <code>MessagePool</code>.  Each game has a
+ * pool of its own, so the players of different games do not contend.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see ThreadedPlayer
+ * @see EventLoop
+ */
+public class ThreadedLoop extends EventLoop {
+
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (Exception ex) {
+			// No virtual threads in this runtime
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_UNSTARTED = unstarted;
+	}
+
+	private final ServerSocketChannel listenChannel;
+	private volatile boolean quit = false;
+	private Thread prober;					// Sends probes, once one is asked for
+
+	/**
+	 * Create the engine for a server.
+	 *
+	 * @param server		the <code>Server</code> that this engine belongs to
+	 * @param listenChannel	the listening socket, in blocking mode
+	 * @throws IOException	if the engine cannot be created
+	 */
+	public ThreadedLoop(Server server, ServerSocketChannel listenChannel) throws IOException {
+		super(server, 0, true);
+		this.listenChannel = listenChannel;
+	}
+
+	/**
+	 * Return <code>true</code> if player threads are virtual threads.
+	 *
+	 * @return	<code>true</code> if virtual threads are available
+	 */
+	public static boolean hasVirtualThreads() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Create a thread for a player.  The thread is a virtual thread if the
+	 * runtime has them, and otherwise a daemon platform thread.
+	 *
+	 * @param task	the task of the thread
+	 * @param name	the name of the thread
+	 * @return		the unstarted thread
+	 */
+	static Thread newThread(Runnable task, String name) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Object builder = OF_VIRTUAL.invoke(null);
+				builder = BUILDER_NAME.invoke(builder, name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+			} catch (Exception ex) {
+				// Fall back to a platform thread
+			}
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	public void assign(SocketChannel chan) {
+		attach(chan);
+	}
+
+	public void shutdown() {
+		quit = true;
+		getServer().closeChannel(listenChannel);
+	}
+
+	/**
+	 * Accept connections until <code>shutdown()</code> is called, and then close
+	 * all the connections.
+	 */
+	public void run() {
+		System.out.println("Thread-per-connection engine started, "
+			+ (hasVirtualThreads() ? "virtual" : "platform") + " threads.");
+		if (server.getIdleTimeout() > 0) {
+			idleWheel = new TimingWheel(server.getIdleTimeout());
+			Thread ticker = new Thread(new Runnable() {
+				public void run() {
+					runIdleTimer();
+				}
+			}, "Maze idle timer");
+			ticker.setDaemon(true);
+			ticker.start();
+		}
+		while (!quit && !server.quit) {
+			try {
+				SocketChannel chan = listenChannel.accept();
+				assign(chan);
+			} catch (AsynchronousCloseException acx) {
+				break;
+			} catch (IOException iox) {
+				System.out.println("Accept failed in thread-per-connection engine");
+				break;
+			}
+		}
+		ArrayList<Game> games;
+		synchronized (router) {
+			games = new ArrayList<Game>(router.getGames());
+		}
+		for (Game game : games) {
+			synchronized (game) {
+				game.closeAll();
+			}
+		}
+		System.out.println("Thread-per-connection engine exit");
+	}
+
+	/**
+	 * Advance the idle timers at each tick of the wheel until the engine
+	 * exits, and remove the players whose timers expire.  The wheel is locked
+	 * only while it is advanced, and each game while its player is removed, so
+	 * the lock on the wheel is never held while waiting for a game.
+	 */
+	private void runIdleTimer() {
+		ArrayList<Player> expired = new ArrayList<Player>();
+		while (!quit && !server.quit) {
+			long wait;
+			synchronized (idleWheel) {
+				wait = idleWheel.getNextTickTime() - System.nanoTime();
+			}
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			synchronized (idleWheel) {
+				idleWheel.advance(System.nanoTime(), expired);
+			}
+			for (Player player : expired) {
+				Game game = player.getGame();
+				synchronized (game) {
+					if (!player.isOpen()) {
+						continue;
+					}
+					int id = player.getId();
+					System.out.println("Idle timeout for player id " + id
+						+ " in game " + game.getGameId());
+					metrics.idleEvicted();
+					game.removePlayer(player);
+					if (id > 0) {
+						game.queueMessage(id, Player.makeLeaveMessage(id));
+					}
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	void startIdleTimer(TimingWheel.Timer timer) {
+		if (idleWheel != null) {
+			synchronized (idleWheel) {
+				idleWheel.add(timer);
+			}
+		}
+	}
+
+	void stopIdleTimer(TimingWheel.Timer timer) {
+		if (idleWheel != null) {
+			synchronized (idleWheel) {
+				idleWheel.remove(timer);
+			}
+		}
+	}
+
+	void startProbes(Player player) {
+		synchronized (probedPlayers) {
+			probedPlayers.add(player);
+			if (prober == null) {
+				prober = new Thread(new Runnable() {
+					public void run() {
+						runProbes();
+					}
+				}, "Maze probe timer");
+				prober.setDaemon(true);
+				prober.start();
+			}
+		}
+	}
+
+	void stopProbes(Player player) {
+		synchronized (probedPlayers) {
+			probedPlayers.remove(player);
+		}
+	}
+
+	/**
+	 * Probe the players which have asked for probes once in each probe
+	 * interval until the engine exits.  The list of players is copied, so that
+	 * its lock is never held while waiting for a game.
+	 */
+	private void runProbes() {
+		ArrayList<Player> players = new ArrayList<Player>();
+		while (!quit && !server.quit) {
+			LockSupport.parkNanos(this, Player.PROBE_INTERVAL * 1000000L);
+			synchronized (probedPlayers) {
+				players.addAll(probedPlayers);
+			}
+			long now = System.nanoTime();
+			for (Player player : players) {
+				synchronized (player.getGame()) {
+					if (player.isOpen()) {
+						player.probe(now);
+					}
+				}
+			}
+			players.clear();
+		}
+	}
+
+	/**
+	 * Deliver a message from another node at once, on the calling thread,
+	 * while holding the lock on its game.
+	 */
+	void relay(int gameId, int fromId, byte[] message) {
+		Game game = router.findGame(gameId);
+		if (game != null) {
+			synchronized (game) {
+				game.relayed(fromId, message);
+			}
+		}
+	}
+
+	private void attach(SocketChannel chan) {
+		while (true) {
+			Game game = router.selectGame();
+			if (game == null) {
+				metrics.rejected();
+				server.closeChannel(chan);
+				return;
+			}
+			ThreadedPlayer player;
+			synchronized (game) {
+				// The game may have been discarded or filled since it was selected
+				if ((router.findGame(game.getGameId()) != game) || !game.hasFreeSlot()) {
+					continue;
+				}
+				try {
+					player = new ThreadedPlayer(game, chan);
+				} catch (IOException iox) {
+					System.out.println("Failed to start connection");
+					metrics.rejected();
+					server.closeChannel(chan);
+					return;
+				}
+			}
+			player.start();
+			metrics.accepted();
+			return;
+		}
+	}
+
+	/**
+	 * Have the outbox of each game send a relay link which has opened the
+	 * players of the game, while holding the lock on the game.  The games are
+	 * copied first, so that the lock on the router is not held while waiting
+	 * for a game.
+	 */
+	void relayLinkUp() {
+		ArrayList<Game> games;
+		synchronized (router) {
+			games = new ArrayList<Game>(router.getGames());
+		}
+		for (Game game : games) {
+			synchronized (game) {
+				if (game.relayOutbox != null) {
+					game.relayOutbox.flush();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return a snapshot of the games, taking a new one if the last is more than
+	 * a status interval old.  There is no loop thread to take snapshots, so one
+	 * is taken here, on the thread asking for it, holding the lock on each game
+	 * while it is copied.
+	 *
+	 * @return	the <code>StatusSnapshot</code>
+	 */
+	public StatusSnapshot getStatus() {
+		StatusSnapshot snapshot = super.getStatus();
+		StatusServer statusServer = server.getStatusServer();
+		long interval = (statusServer != null)
+			? statusServer.getInterval() : StatusServer.DEFAULT_INTERVAL;
+		long now = System.currentTimeMillis();
+		if ((snapshot == null) || (now - snapshot.getTime() >= interval)) {
+			Game[] games;
+			synchronized (router) {
+				games = router.getGames().toArray(new Game[0]);
+			}
+			snapshot = StatusSnapshot.captureLocked(loopId, now, games);
+			setStatus(snapshot);
+		}
+		return snapshot;
+	}
+
+	synchronized int addConnection(Player player) {
+		return super.addConnection(player);
+	}
+
+	synchronized void removeConnection(Player player) {
+		super.removeConnection(player);
+	}
+
+	public synchronized Player findConnection(int n) {
+		return super.findConnection(n);
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A player in the thread-per-connection engine.  A reader thread blocks in
+ * reads from the connection, and decodes what it reads with the same code as
+ * the selector engine, holding the lock on the game.  Messages for the player
+ * are delivered to a lock-free mailbox, from which a writer thread copies them
+ * to its own buffer and writes them with blocking writes.
+ * <p>
+ * The reference counts of pooled messages are protected by the lock on the
+ * game, so the writer takes the lock once for each buffer full of messages, to
+ * release the messages it has copied.  A player whose mailbox holds more than
+ * <code>OutputQueue.HARD_LIMIT_FACTOR</code> times the server's output queue
+ * limit is disconnected.  The mailbox does not coalesce location messages.
+ * <p>
+ * For a client which uses the batched frame protocol, the writer encodes the
+ * messages into a frame in its buffer instead of copying them, and writes at
+ * most one frame in each batch interval.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see ThreadedLoop
+ */
+public class ThreadedPlayer extends Player {
+
+	private final ConcurrentLinkedQueue<MessageBuffer> mailbox =
+		new ConcurrentLinkedQueue<MessageBuffer>();
+	private final AtomicInteger mailboxSize = new AtomicInteger();
+	private final int mailboxLimit;
+	private final ByteBuffer outBuf = ByteBuffer.allocateDirect(4096);
+	private final ArrayList<MessageBuffer> copied = new ArrayList<MessageBuffer>();
+	private volatile Thread writer;
+	private volatile boolean closed = false;
+	private long nextFrameTime;
+
+	/**
+	 * Create a player for a connection.  This must be called while holding the
+	 * lock on the game.
+	 *
+	 * @param game			the <code>Game</code> which this player joins
+	 * @param schan			the connection to the player's client
+	 * @throws IOException	if the connection cannot be set up
+	 */
+	public ThreadedPlayer(Game game, SocketChannel schan) throws IOException {
+		super(game, schan, false);
+		mailboxLimit = server.getOutputLimit() * OutputQueue.HARD_LIMIT_FACTOR;
+	}
+
+	/**
+	 * Start the reader and writer threads.
+	 */
+	void start() {
+		String name = "Maze player " + game.getGameId() + "/" + getConnectionNumber();
+		writer = ThreadedLoop.newThread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, name + " writer");
+		Thread reader = ThreadedLoop.newThread(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		}, name + " reader");
+		writer.start();
+		reader.start();
+	}
+
+	private void readLoop() {
+		while (!closed) {
+			int len;
+			try {
+				len = schan.read(inBuf);
+			} catch (IOException iox) {
+				if (!closed) {
+					System.out.println("I/O exception on read from player id "
+						+ id + " in game " + game.getGameId());
+				}
+				len = -1;
+			}
+			synchronized (game) {
+				if (closed) {
+					break;
+				}
+				if (len < 0) {
+					game.removePlayer(this);
+					if (id > 0) {
+						game.queueMessage(id, makeLeaveMessage(id));
+					}
+					break;
+				}
+				idleTimer.touch();
+				metrics.bytesIn(len);
+				captured(len);
+				processInput();
+			}
+		}
+	}
+
+	private void writeLoop() {
+		while (true) {
+			MessageBuffer msg = mailbox.poll();
+			if (msg == null) {
+				if (outBuf.position() > 0) {
+					long wait = nextFrameTime - System.nanoTime();
+					if (outQueue.isBatched() && (wait > 0) && !closed) {
+						LockSupport.parkNanos(this, wait);
+					} else {
+						flush();
+					}
+					continue;
+				}
+				if (closed) {
+					break;
+				}
+				LockSupport.park(this);
+				continue;
+			}
+			mailboxSize.decrementAndGet();
+			BatchCodec batch = outQueue.getBatchCodec();
+			if (batch != null) {
+				if (outBuf.position() == 0) {
+					batch.beginFrame(outBuf);
+				} else if (!batch.hasRoom(msg, outBuf)) {
+					flush();
+					batch.beginFrame(outBuf);
+				}
+				batch.encode(msg, outBuf);
+				copied.add(msg);
+				continue;
+			}
+			for (int offset = 0; offset < msg.length(); ) {
+				if (!outBuf.hasRemaining()) {
+					flush();
+				}
+				int n = Math.min(msg.length() - offset, outBuf.remaining());
+				for (int i = 0; i < n; ++i) {
+					outBuf.put(msg.get(offset + i));
+				}
+				offset += n;
+			}
+			copied.add(msg);
+		}
+		release();
+	}
+
+	private void flush() {
+		release();
+		BatchCodec batch = outQueue.getBatchCodec();
+		if (batch != null) {
+			batch.endFrame(outBuf);
+			nextFrameTime = System.nanoTime() + server.getBatchInterval() * 1000000L;
+		} else {
+			outBuf.flip();
+		}
+		try {
+			while (outBuf.hasRemaining()) {
+				long len = schan.write(outBuf);
+				metrics.bytesOut(len);
+			}
+		} catch (IOException iox) {
+			// The reader sees the connection fail and removes the player
+			closeChannel();
+		}
+		outBuf.clear();
+	}
+
+	private void release() {
+		if (!copied.isEmpty()) {
+			synchronized (game) {
+				for (MessageBuffer msg : copied) {
+					msg.release();
+				}
+			}
+			copied.clear();
+		}
+	}
+
+	private void closeChannel() {
+		try {
+			schan.close();
+		} catch (IOException iox) {
+		}
+	}
+
+	/**
+	 * Deliver a message to this player's mailbox.  This must be called while
+	 * holding the lock on the game.
+	 *
+	 * @param message	the encoded message to be sent
+	 */
+	public void queueMessage(MessageBuffer message) {
+		if (closed) {
+			return;
+		}
+		metrics.messageOut(classOf(message));
+		int size = mailboxSize.incrementAndGet();
+		if (size > mailboxLimit) {
+			System.out.println("Mailbox overflow for player id " + id
+				+ " in game " + game.getGameId());
+			mailboxSize.decrementAndGet();
+			closeChannel();
+			return;
+		}
+		game.getEventLoop().getMetrics().maxQueueDepth(size);
+		mailbox.add(message.retain());
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Nothing is written here, because the writer thread writes the connection.
+	 */
+	public void write() {
+	}
+
+	/**
+	 * Terminate the connection, and release any messages in the mailbox.  This
+	 * must be called while holding the lock on the game.
+	 */
+	public void close() {
+		closed = true;
+		super.close();
+		MessageBuffer msg;
+		while ((msg = mailbox.poll()) != null) {
+			mailboxSize.decrementAndGet();
+			msg.release();
+		}
+		Thread w = writer;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+}
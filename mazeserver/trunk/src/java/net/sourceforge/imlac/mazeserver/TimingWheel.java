@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timing wheel which finds the connections from which nothing has
+ * been received for a given time.  The wheel is a ring of slots, each a list
+ * of the timers which fall due in one tick, and it is advanced one tick at a
+ * time by the event loop.  Only the slots of the ticks passed are visited, so
+ * the cost does not grow with the number of connections.
+ * <p>
+ * A timer is not moved when its connection is active, because that would
+ * cost a list operation for every read.  A read only stores the time in the
+ * timer.  When the tick of a timer comes round, the time of the last read is
+ * checked, and the timer is either expired or placed in the slot of the tick
+ * in which it is now due.  The wheel spans twice the timeout, so a timer is
+ * looked at about once in each timeout, however busy its connection is.
+ * <p>
+ * The wheel itself is not thread-safe.  A timer's activity time may be set by
+ * any thread.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see EventLoop
+ */
+public class TimingWheel {
+
+	/** Number of slots in a wheel */
+	public static final int SLOTS = 64;
+
+	/**
+	 * The idle timer of one connection.
+	 */
+	static final class Timer {
+		final Player player;
+		volatile long lastActivity;		// Time of last input, from System.nanoTime()
+		Timer next;
+		Timer prev;
+		int slot = -1;					// Slot index, or -1 if not in a wheel
+
+		Timer(Player player) {
+			super();
+			this.player = player;
+		}
+
+		/**
+		 * Record input from the connection.
+		 */
+		void touch() {
+			lastActivity = System.nanoTime();
+		}
+	}
+
+	private final Timer[] slots = new Timer[SLOTS];
+	private final long timeout;
+	private final long tickNanos;
+	private final long origin;
+	private long tick;						// Next tick to be processed
+	private int count;
+
+	/**
+	 * Create an empty wheel.
+	 *
+	 * @param timeoutMillis	the time in milliseconds after which a silent
+	 * 						connection expires
+	 */
+	public TimingWheel(long timeoutMillis) {
+		super();
+		timeout = timeoutMillis * 1000000L;
+		tickNanos = Math.max(timeout / (SLOTS / 2), 1000000L);
+		origin = System.nanoTime();
+		tick = 1;
+	}
+
+	/**
+	 * Return the timeout of this wheel.
+	 *
+	 * @return	the timeout in milliseconds
+	 */
+	public long getTimeout() {
+		return timeout / 1000000L;
+	}
+
+	/**
+	 * Return the number of timers in this wheel.
+	 *
+	 * @return	the number of timers
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Return the time at which the next tick is due.
+	 *
+	 * @return	the time, as given by <code>System.nanoTime()</code>
+	 */
+	public long getNextTickTime() {
+		return origin + tick * tickNanos;
+	}
+
+	/**
+	 * Start a timer for a new connection, counting from now.
+	 *
+	 * @param timer	the timer, which must not be in a wheel
+	 */
+	void add(Timer timer) {
+		timer.touch();
+		schedule(timer, timer.lastActivity + timeout);
+		++count;
+	}
+
+	/**
+	 * Stop a timer.  Removing a timer which is not in the wheel has no effect.
+	 *
+	 * @param timer	the timer
+	 */
+	void remove(Timer timer) {
+		if (timer.slot < 0) {
+			return;
+		}
+		unlink(timer);
+		--count;
+	}
+
+	/**
+	 * Advance the wheel to a given time, and collect the players whose timers
+	 * have expired.  Their timers are removed from the wheel.
+	 *
+	 * @param now		the time, as given by <code>System.nanoTime()</code>
+	 * @param expired	the list to which the expired players are added
+	 */
+	void advance(long now, ArrayList<Player> expired) {
+		long last = (now - origin) / tickNanos;
+		if (last - tick >= SLOTS) {
+			// Asleep for more than a turn, so every slot is due
+			tick = last - SLOTS + 1;
+		}
+		while (tick <= last) {
+			int index = (int) (tick & (SLOTS - 1));
+			Timer timer = slots[index];
+			slots[index] = null;
+			++tick;
+			while (timer != null) {
+				Timer next = timer.next;
+				timer.slot = -1;
+				timer.next = null;
+				timer.prev = null;
+				long due = timer.lastActivity + timeout;
+				if (due - now <= 0) {
+					--count;
+					expired.add(timer.player);
+				} else {
+					schedule(timer, due);
+				}
+				timer = next;
+			}
+		}
+	}
+
+	private void schedule(Timer timer, long due) {
+		long t = (due - origin + tickNanos - 1) / tickNanos;
+		if (t < tick) {
+			t = tick;
+		}
+		int index = (int) (t & (SLOTS - 1));
+		Timer head = slots[index];
+		timer.slot = index;
+		timer.prev = null;
+		timer.next = head;
+		if (head != null) {
+			head.prev = timer;
+		}
+		slots[index] = timer;
+	}
+
+	private void unlink(Timer timer) {
+		if (timer.prev != null) {
+			timer.prev.next = timer.next;
+		} else {
+			slots[timer.slot] = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.prev = timer.prev;
+		}
+		timer.slot = -1;
+		timer.next = null;
+		timer.prev = null;
+	}
+}
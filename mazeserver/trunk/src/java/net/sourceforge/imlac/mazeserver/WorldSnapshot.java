@@ -0,0 +1,195 @@
+/*
+ * Copyright © 2004, 2005, 2006 by Howard Palmer.  All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.sourceforge.imlac.mazeserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class keeps the messages which describe the players of a game to a new
+ * player, already encoded.  For each Imlac id in use there is a "new player"
+ * message followed by a location message, and the records are updated in place
+ * as the players move, kill and are killed.  When a player joins, each
+ * message of the other players is copied from its record into a pooled
+ * <code>MessageBuffer</code>, instead of being built from the state of the
+ * player.
+ * <p>
+ * Like the rest of a game, a snapshot is not thread-safe.
+ *
+ * @author Howard Palmer
+ * @version $Id$
+ * @see Game#sendPlayerLocations(Player)
+ */
+public class WorldSnapshot {
+
+	/** Length of a "new player" message */
+	public static final int NEW_PLAYER_LENGTH = 12;
+
+	/** Length of a location message */
+	public static final int LOCATION_LENGTH = 5;
+
+	/** Length of the record for one player */
+	public static final int RECORD_LENGTH = NEW_PLAYER_LENGTH + LOCATION_LENGTH;
+
+	private final byte[] records;
+	private final boolean[] present;
+	private int count;
+
+	/**
+	 * Create an empty snapshot for a game.
+	 *
+	 * @param maxPlayers	the number of Imlac ids
+	 */
+	public WorldSnapshot(int maxPlayers) {
+		super();
+		records = new byte[maxPlayers * RECORD_LENGTH];
+		present = new boolean[maxPlayers + 1];
+		count = 0;
+	}
+
+	/**
+	 * Return the number of players in the snapshot.
+	 *
+	 * @return	the number of players
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Return <code>true</code> if the snapshot has a player with a given Imlac
+	 * id.
+	 *
+	 * @param id	the Imlac id (1-8)
+	 * @return		<code>true</code> if there is such a player
+	 */
+	public boolean contains(int id) {
+		return present[id];
+	}
+
+	/**
+	 * Add a player which has been assigned an Imlac id, or replace the record of
+	 * the player with the same id.
+	 *
+	 * @param player	the player
+	 */
+	public void put(Player player) {
+		int id = player.getId();
+		int offset = (id - 1) * RECORD_LENGTH;
+		player.putNewPlayerMessage(records, offset);
+		player.putLocationMessage(records, offset + NEW_PLAYER_LENGTH);
+		if (!present[id]) {
+			present[id] = true;
+			++count;
+		}
+	}
+
+	/**
+	 * Update the location of a player, after a location message or a relative
+	 * move.
+	 *
+	 * @param player	the player
+	 */
+	public void moved(Player player) {
+		int id = player.getId();
+		if (present[id]) {
+			player.putLocationMessage(records, (id - 1) * RECORD_LENGTH + NEW_PLAYER_LENGTH);
+		}
+	}
+
+	/**
+	 * Update the hits and deaths of a player.
+	 *
+	 * @param player	the player
+	 */
+	public void scored(Player player) {
+		int id = player.getId();
+		if (present[id]) {
+			player.putNewPlayerMessage(records, (id - 1) * RECORD_LENGTH);
+		}
+	}
+
+	/**
+	 * Remove the player with a given Imlac id.
+	 *
+	 * @param id	the Imlac id (1-8)
+	 */
+	public void remove(int id) {
+		if (present[id]) {
+			present[id] = false;
+			--count;
+		}
+	}
+
+	/**
+	 * Queue the messages of all the players except one to a player.  The
+	 * "new player" and location messages of each player are queued separately,
+	 * so each fits in a pooled buffer and is counted by its own class.
+	 *
+	 * @param player	the player to send the messages to, which is left out
+	 * 					of them
+	 * @param pool		the pool to allocate the buffers from
+	 */
+	public void send(Player player, MessagePool pool) {
+		int excludeId = player.getId();
+		for (int id = 1; id < present.length; ++id) {
+			if (present[id] && (id != excludeId)) {
+				int offset = (id - 1) * RECORD_LENGTH;
+				MessageBuffer buf = pool.encode(records, offset, NEW_PLAYER_LENGTH);
+				player.queueMessage(buf);
+				buf.release();
+				buf = pool.encode(records, offset + NEW_PLAYER_LENGTH, LOCATION_LENGTH);
+				player.queueMessage(buf);
+				buf.release();
+			}
+		}
+	}
+
+	/**
+	 * Return the length of the records of all the players.
+	 *
+	 * @return	the length in bytes
+	 */
+	public int length() {
+		return count * RECORD_LENGTH;
+	}
+
+	/**
+	 * Copy the record of one player into a buffer.
+	 *
+	 * @param id	the Imlac id of a player in the snapshot
+	 * @param dst	the destination buffer, with at least
+	 * 				<code>RECORD_LENGTH</code> bytes remaining
+	 */
+	public void copyTo(int id, ByteBuffer dst) {
+		dst.put(records, (id - 1) * RECORD_LENGTH, RECORD_LENGTH);
+	}
+
+	/**
+	 * Copy the records of all the players into a buffer.
+	 *
+	 * @param dst	the destination buffer, with at least <code>length()</code>
+	 * 				bytes remaining
+	 */
+	public void copyTo(ByteBuffer dst) {
+		for (int id = 1; id < present.length; ++id) {
+			if (present[id]) {
+				dst.put(records, (id - 1) * RECORD_LENGTH, RECORD_LENGTH);
+			}
+		}
+	}
+}